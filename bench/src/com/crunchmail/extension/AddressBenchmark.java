@@ -0,0 +1,77 @@
+package com.crunchmail.extension;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.crunchmail.extension.ContactsCrawler.ContactObject;
+import com.crunchmail.extension.lib.AddressScanner;
+
+/**
+ * Address extraction and validation, run for every contact and group member
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class AddressBenchmark {
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int contacts;
+
+    private ContactsFetcher mCrawler;
+    private List<String> mAddresses = new ArrayList<String>();
+    private List<String> mHeaders = new ArrayList<String>();
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchFixture fixture = BenchFixture.create();
+        mCrawler = fixture.newFetcher();
+        for (int i = 0; i < contacts; i++) {
+            String address = fixture.nextAddress();
+            mAddresses.add(address);
+            // inline members come in all shapes
+            switch (i % 3) {
+                case 0: mHeaders.add(address); break;
+                case 1: mHeaders.add("Name " + i + " <" + address + ">"); break;
+                default: mHeaders.add(" " + address + ",");
+            }
+        }
+    }
+
+    @Benchmark
+    public void extract(Blackhole bh) {
+        for (String header : mHeaders) {
+            bh.consume(AddressScanner.extract(header));
+        }
+    }
+
+    @Benchmark
+    public void validateEmail(Blackhole bh) {
+        for (String address : mAddresses) {
+            bh.consume(ContactObject.validateEmail(mCrawler, address));
+        }
+    }
+
+    @Benchmark
+    public void extractAndValidate(Blackhole bh) {
+        for (String header : mHeaders) {
+            bh.consume(ContactObject.validateEmail(mCrawler, AddressScanner.extract(header)));
+        }
+    }
+}
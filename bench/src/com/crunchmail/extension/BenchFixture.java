@@ -0,0 +1,285 @@
+package com.crunchmail.extension;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Group;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Contact;
+import com.zimbra.cs.mailbox.ContactGroup;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.OperationContext;
+
+/**
+ * Address books and distribution lists built in the in-memory directory
+ * and mailboxes of the benchmark stubs.
+ *
+ * Content is generated from a fixed seed so runs can be compared.
+ */
+class BenchFixture {
+
+    static final String DOMAIN = "bench.example.com";
+
+    // One group per GROUP_RATIO contacts, with GROUP_SIZE members
+    private static final int GROUP_RATIO = 100;
+    private static final int GROUP_SIZE = 20;
+    // Lists included by the lists of several accounts
+    private static final int SHARED_LISTS = 20;
+
+    Account mAccount;
+    Mailbox mMbox;
+    // Contact folders, "Contacts" first
+    List<Folder> mFolders = new ArrayList<Folder>();
+    // Directory accounts, referenced by groups and lists
+    List<Account> mDirectory = new ArrayList<Account>();
+
+    private Random mRandom;
+    private int mAddresses = 0;
+
+    private BenchFixture(Account account, List<Account> directory, long seed) throws ServiceException {
+        mAccount = account;
+        mMbox = MailboxManager.getInstance().getMailboxByAccount(account);
+        mDirectory = directory;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * A fresh directory with the requesting account and its mailbox
+     */
+    static BenchFixture create() throws ServiceException {
+        reset();
+        Account account = Provisioning.getInstance().createAccount("user@" + DOMAIN, null, null);
+        return new BenchFixture(account, new ArrayList<Account>(), 42);
+    }
+
+    /**
+     * Content of one more account of the current directory, the directory
+     * accounts are shared with the other fixtures
+     */
+    static BenchFixture forAccount(Account account, List<Account> directory, long seed) throws ServiceException {
+        return new BenchFixture(account, directory, seed);
+    }
+
+    /**
+     * Drop the directory, the mailboxes and the settings cache
+     */
+    static void reset() {
+        Provisioning.reset();
+        MailboxManager.reset();
+        UserSettings.clearCache();
+    }
+
+    /**
+     * Spread contacts and contact groups over a tree of 10 address books
+     */
+    static BenchFixture withContacts(int contacts) throws ServiceException {
+        BenchFixture fixture = create();
+        fixture.mDirectory.addAll(createDirectoryAccounts(Math.max(contacts / 10, GROUP_SIZE)));
+        fixture.addFolders(10);
+        fixture.addContacts(contacts);
+        return fixture;
+    }
+
+    /**
+     * Lists owned by the account, holding members in total (accounts and
+     * external addresses) in three levels of nested lists
+     */
+    static BenchFixture withLists(int members) throws ServiceException {
+        BenchFixture fixture = create();
+        fixture.mDirectory.addAll(createDirectoryAccounts(members / 2));
+        fixture.addLists(members, createSharedLists());
+        return fixture;
+    }
+
+    ContactsFetcher newFetcher() throws ServiceException {
+        return new ContactsFetcher(mMbox, mAccount, false, new HashSet<String>());
+    }
+
+    /**
+     * Plain contacts of all the address books, in folder order
+     */
+    List<Contact> getContacts() throws ServiceException {
+        OperationContext octxt = new OperationContext(mMbox);
+        List<Contact> contacts = new ArrayList<Contact>();
+        for (Folder folder : mFolders) {
+            for (Contact contact : mMbox.getContactList(octxt, folder.getId(), null)) {
+                if (!contact.isContactGroup()) contacts.add(contact);
+            }
+        }
+        return contacts;
+    }
+
+    /**
+     * Addresses as found in contacts: mostly simple ones, some needing a full
+     * RFC 822 check, a few invalid ones
+     */
+    String nextAddress() {
+        int i = mAddresses++;
+        if (i % 50 == 49) {
+            return "not an address " + i;
+        }
+        if (i % 20 == 19) {
+            return "\"first.last " + i + "\"@" + DOMAIN;
+        }
+        return "contact." + i + "@" + DOMAIN;
+    }
+
+    static List<Account> createDirectoryAccounts(int count) throws ServiceException {
+        Provisioning prov = Provisioning.getInstance();
+        List<Account> accounts = new ArrayList<Account>(count);
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> attrs = new HashMap<String, Object>();
+            attrs.put("givenName", "Given" + i);
+            attrs.put("sn", "Surname" + i);
+            attrs.put("displayName", "Given" + i + " Surname" + i);
+            accounts.add(prov.createAccount("account." + i + "@" + DOMAIN, null, attrs));
+        }
+        return accounts;
+    }
+
+    /**
+     * "Contacts" then address books of two subfolders each, count folders in all
+     */
+    void addFolders(int count) throws ServiceException {
+        OperationContext octxt = new OperationContext(mMbox);
+        mFolders.add(mMbox.getFolderById(octxt, Mailbox.ID_FOLDER_CONTACTS));
+        for (int i = 0; mFolders.size() < count; i++) {
+            Folder book = mMbox.createFolder(octxt, "Book " + i, Mailbox.ID_FOLDER_USER_ROOT, MailItem.Type.CONTACT);
+            mFolders.add(book);
+            for (int j = 0; j < 2 && mFolders.size() < count; j++) {
+                mFolders.add(mMbox.createFolder(octxt, "Book " + i + "." + j, book.getId(), MailItem.Type.CONTACT));
+            }
+        }
+    }
+
+    /**
+     * Mount address books of other accounts (on the same server), their
+     * owners granting access first
+     */
+    void addShares(List<BenchFixture> owners, int count) throws ServiceException {
+        if (owners.size() < 2) return;
+
+        OperationContext octxt = new OperationContext(mMbox);
+        for (int i = 0; i < count; i++) {
+            int idx = mRandom.nextInt(owners.size());
+            if (owners.get(idx) == this) idx = (idx + 1) % owners.size();
+            BenchFixture owner = owners.get(idx);
+            if (owner.mFolders.isEmpty()) continue;
+
+            Folder shared = owner.mFolders.get(mRandom.nextInt(owner.mFolders.size()));
+            owner.mMbox.grantAccess(new OperationContext(owner.mMbox), shared.getId(), mAccount.getId());
+            mMbox.createMountpoint(octxt, Mailbox.ID_FOLDER_USER_ROOT, "Shared " + i, owner.mAccount.getId(), shared.getId(), MailItem.Type.CONTACT);
+        }
+    }
+
+    void addContacts(int count) throws ServiceException {
+        OperationContext octxt = new OperationContext(mMbox);
+        List<Contact> created = new ArrayList<Contact>(count);
+
+        for (int i = 0; i < count; i++) {
+            Map<String, String> fields = new HashMap<String, String>();
+            fields.put("firstName", "First" + i);
+            fields.put("lastName", "Last" + i);
+            fields.put("company", "Company " + (i % 100));
+            // some contacts have no address at all
+            if (i % 40 != 39) fields.put("email", nextAddress());
+            String[] tags = i % 10 == 0 ? new String[] {"tag" + (i % 7)} : null;
+
+            Folder folder = mFolders.get(i % mFolders.size());
+            created.add(mMbox.createContact(octxt, fields, folder.getId(), tags));
+        }
+
+        int groups = Math.max(count / GROUP_RATIO, 1);
+        for (int i = 0; i < groups; i++) {
+            ContactGroup group = ContactGroup.init();
+            for (int j = 0; j < GROUP_SIZE; j++) {
+                switch (j % 4) {
+                    case 0:
+                    case 1:
+                        if (!created.isEmpty()) {
+                            Contact member = created.get(mRandom.nextInt(created.size()));
+                            group.addMember(ContactGroup.Member.Type.CONTACT_REF, Integer.toString(member.getId()));
+                        }
+                        break;
+                    case 2:
+                        Account account = mDirectory.get(mRandom.nextInt(mDirectory.size()));
+                        group.addMember(ContactGroup.Member.Type.GAL_REF, account.getDN());
+                        break;
+                    default:
+                        group.addMember(ContactGroup.Member.Type.INLINE, "Inline " + j + " <" + nextAddress() + ">");
+                }
+            }
+
+            Map<String, String> fields = new HashMap<String, String>();
+            fields.put("type", "group");
+            fields.put("fileAs", "Group " + i);
+            fields.put("groupMember", group.encode());
+            Folder folder = mFolders.get(i % mFolders.size());
+            mMbox.createContact(octxt, fields, folder.getId(), null);
+        }
+    }
+
+    /**
+     * Pool of lists to include in the lists of the fixtures
+     */
+    static List<Group> createSharedLists() throws ServiceException {
+        Provisioning prov = Provisioning.getInstance();
+        List<Group> shared = new ArrayList<Group>();
+        for (int i = 0; i < SHARED_LISTS; i++) {
+            shared.add(prov.createDistributionList("shared." + i + "@" + DOMAIN, null));
+        }
+        return shared;
+    }
+
+    /**
+     * Lists owned by the account, members are spread over them and the
+     * shared lists
+     */
+    void addLists(int members, List<Group> shared) throws ServiceException {
+        Provisioning prov = Provisioning.getInstance();
+        String prefix = mAccount.getName().substring(0, mAccount.getName().indexOf('@'));
+
+        // 10 top lists, each including 4 lists, each including 2 of the
+        // shared lists: shared lists are walked several times
+        List<Group> lists = new ArrayList<Group>(shared);
+        for (int i = 0; i < 10; i++) {
+            Group top = prov.createDistributionList(prefix + ".list." + i + "@" + DOMAIN, null);
+            prov.addGroupOwner(top, mAccount);
+            lists.add(top);
+            for (int j = 0; j < 4; j++) {
+                Group nested = prov.createDistributionList(prefix + ".list." + i + "." + j + "@" + DOMAIN, null);
+                lists.add(nested);
+                prov.addGroupMembers(top, new String[] {nested.getMail()});
+                prov.addGroupMembers(nested, new String[] {
+                    shared.get(mRandom.nextInt(shared.size())).getMail(),
+                    shared.get(mRandom.nextInt(shared.size())).getMail()
+                });
+            }
+        }
+
+        // half accounts, half external addresses
+        List<List<String>> listMembers = new ArrayList<List<String>>();
+        for (int i = 0; i < lists.size(); i++) {
+            listMembers.add(new ArrayList<String>());
+        }
+        for (int i = 0; i < members; i++) {
+            String member = i % 2 == 0 && i / 2 < mDirectory.size()
+                ? mDirectory.get(i / 2).getName()
+                : "external." + i + "@elsewhere.example.org";
+            listMembers.get(i % lists.size()).add(member);
+        }
+        for (int i = 0; i < lists.size(); i++) {
+            List<String> added = listMembers.get(i);
+            prov.addGroupMembers(lists.get(i), added.toArray(new String[added.size()]));
+        }
+    }
+}
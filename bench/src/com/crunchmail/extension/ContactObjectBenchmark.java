@@ -0,0 +1,110 @@
+package com.crunchmail.extension;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.zimbra.common.soap.Element;
+import com.zimbra.common.soap.MailConstants;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.GalContact;
+import com.zimbra.cs.mailbox.Contact;
+
+import com.crunchmail.extension.ContactsCrawler.ContactObject;
+
+/**
+ * ContactObject construction from each kind of source: mailbox contacts,
+ * GAL entries, inline group members and SOAP elements.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class ContactObjectBenchmark {
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int contacts;
+
+    private ContactsFetcher mCrawler;
+    private List<Contact> mContacts;
+    private List<GalContact> mGalContacts = new ArrayList<GalContact>();
+    private List<String> mInline = new ArrayList<String>();
+    private List<Element> mElements = new ArrayList<Element>();
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchFixture fixture = BenchFixture.withContacts(contacts);
+        mCrawler = fixture.newFetcher();
+        mContacts = fixture.getContacts();
+
+        for (int i = 0; i < contacts; i++) {
+            Account account = fixture.mDirectory.get(i % fixture.mDirectory.size());
+            Map<String, Object> attrs = new HashMap<String, Object>(account.getAttrs());
+            attrs.put("email", account.getName());
+            mGalContacts.add(new GalContact(account.getDN(), attrs));
+
+            String address = fixture.nextAddress();
+            mInline.add("Inline " + i + " <" + address + ">");
+
+            Element member = new Element.XMLElement("m");
+            member.addNonUniqueElement(MailConstants.E_ATTRIBUTE)
+                .addAttribute(MailConstants.A_ATTRIBUTE_NAME, "email")
+                .setText(address);
+            mElements.add(member);
+        }
+    }
+
+    @Benchmark
+    public void fromContact(Blackhole bh) {
+        for (Contact contact : mContacts) {
+            bh.consume(make(contact, null));
+        }
+    }
+
+    @Benchmark
+    public void fromGalContact(Blackhole bh) {
+        for (GalContact contact : mGalContacts) {
+            bh.consume(make(contact, "group:ref"));
+        }
+    }
+
+    @Benchmark
+    public void fromInline(Blackhole bh) {
+        for (String member : mInline) {
+            bh.consume(make(member, "group:ref"));
+        }
+    }
+
+    @Benchmark
+    public void fromElement(Blackhole bh) {
+        for (Element member : mElements) {
+            bh.consume(make(member, "group:ref"));
+        }
+    }
+
+    private ContactObject make(Object source, String ref) {
+        try {
+            return new ContactObject(mCrawler, source, ref);
+        } catch (Exception e) {
+            // no email or invalid email, part of the cost being measured
+            return null;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.crunchmail.extension;
+
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zimbra.common.soap.Element;
+
+/**
+ * Expansion of nested distribution lists, without the lists cache
+ * (the extension isn't initialized): every list is walked for every call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class ListsBenchmark {
+
+    // list members, in total
+    @Param({"100", "1000", "10000", "100000"})
+    public int contacts;
+
+    private BenchFixture mFixture;
+
+    @Setup
+    public void setUp() throws Exception {
+        mFixture = BenchFixture.withLists(contacts);
+    }
+
+    @Benchmark
+    public ListsFetcher.ListsCollection expand() throws Exception {
+        return new ListsFetcher(mFixture.mAccount, false, new HashSet<String>()).fetch();
+    }
+
+    @Benchmark
+    public Element expandToElement() throws Exception {
+        Element response = new Element.XMLElement("GetContactsResponse");
+        new ListsFetcher(mFixture.mAccount, false, new HashSet<String>()).fetch().toElement(response);
+        return response;
+    }
+}
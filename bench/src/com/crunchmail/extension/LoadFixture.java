@@ -0,0 +1,73 @@
+package com.crunchmail.extension;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Group;
+import com.zimbra.cs.account.Provisioning;
+
+/**
+ * Synthetic platform for the load harness: several accounts with their own
+ * address books, sharing some of them with each other, owning nested lists
+ * that include lists shared by all, and contact groups referencing the GAL.
+ *
+ * Shared address books are all on the local server: remote ones would need
+ * other mailbox servers answering HTTP.
+ */
+class LoadFixture {
+
+    static class Options {
+        int mAccounts = 10;
+        int mFolders = 20;
+        int mContacts = 2000;
+        int mShares = 2;
+        int mListMembers = 1000;
+        int mDirectory = 1000;
+    }
+
+    // Requesting accounts
+    List<Account> mAccounts = new ArrayList<Account>();
+    List<BenchFixture> mFixtures = new ArrayList<BenchFixture>();
+
+    /**
+     * A fresh directory and mailboxes, content is generated from fixed
+     * seeds so runs can be compared
+     */
+    static LoadFixture generate(Options options) throws ServiceException {
+        BenchFixture.reset();
+        Provisioning prov = Provisioning.getInstance();
+
+        LoadFixture fixture = new LoadFixture();
+        List<Account> directory = BenchFixture.createDirectoryAccounts(options.mDirectory);
+        List<Group> sharedLists = BenchFixture.createSharedLists();
+
+        for (int i = 0; i < options.mAccounts; i++) {
+            Map<String, Object> attrs = new HashMap<String, Object>();
+            attrs.put("zimbraZimletUserProperties", new String[] {
+                "com_crunchmail_zimlet:" + UserSettings.INCLUDE_SHARED + ":TRUE",
+                "com_crunchmail_zimlet:" + UserSettings.DLIST_MEMBER_OF + ":TRUE"
+            });
+            Account account = prov.createAccount("user." + i + "@" + BenchFixture.DOMAIN, null, attrs);
+            fixture.mAccounts.add(account);
+            // member of a shared list, and so of the lists including it
+            prov.addGroupMembers(sharedLists.get(i % sharedLists.size()), new String[] {account.getName()});
+
+            BenchFixture user = BenchFixture.forAccount(account, directory, 42 + i);
+            user.addFolders(options.mFolders);
+            user.addContacts(options.mContacts);
+            if (options.mListMembers > 0) user.addLists(options.mListMembers, sharedLists);
+            fixture.mFixtures.add(user);
+        }
+
+        // once all the address books exist
+        for (BenchFixture user : fixture.mFixtures) {
+            user.addShares(fixture.mFixtures, options.mShares);
+        }
+
+        return fixture;
+    }
+}
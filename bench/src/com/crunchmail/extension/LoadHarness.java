@@ -0,0 +1,308 @@
+package com.crunchmail.extension;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import com.sun.management.ThreadMXBean;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.soap.Element;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.AuthToken;
+import com.zimbra.soap.DocumentDispatcher;
+import com.zimbra.soap.DocumentHandler;
+import com.zimbra.soap.SoapServlet;
+import com.zimbra.soap.ZimbraSoapContext;
+
+import com.crunchmail.extension.lib.ZimbraVersion;
+
+/**
+ * End-to-end load of the GetContacts and GetContactsTree handlers, over the
+ * in-memory Zimbra classes of bench/stubs and a LoadFixture.
+ *
+ * The extension is initialized as by the server (executors, caches, SOAP
+ * handlers), then concurrent clients send requests for the accounts in turn
+ * through the registered handlers, responses being written out as the SOAP
+ * servlet would. Reports throughput, latency percentiles, allocation per
+ * request and the extension's own phase metrics.
+ *
+ *     LoadHarness [name=value ...]
+ *
+ *     accounts=10 folders=20 contacts=2000 shares=2 members=1000 directory=1000
+ *     threads=8 requests=500 warmup=100 request=both|GetContacts|GetContactsTree
+ *     format=xml|json
+ *
+ * The stubs read localconfig keys from the system properties, e.g.
+ * -Dcrunchmail_contacts_cache_size=0 to crawl on every request.
+ */
+public class LoadHarness {
+
+    private final LoadFixture mFixture;
+    private final DocumentDispatcher mDispatcher;
+    private final String[] mRequests;
+    private final int mThreads;
+    private final boolean mJson;
+    private final ThreadMXBean mThreadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * Latencies and allocations of the requests of a run
+     */
+    private static class Run {
+        String[] mNames;
+        long[] mNanos;
+        long[] mAllocated;
+        long mElapsed;
+        long mAllAllocated;
+        long mResponseChars;
+        int mErrors;
+        ServiceException mFirstError;
+    }
+
+    LoadHarness(LoadFixture fixture, DocumentDispatcher dispatcher, String[] requests, int threads, boolean json) {
+        mFixture = fixture;
+        mDispatcher = dispatcher;
+        mRequests = requests;
+        mThreads = threads;
+        mJson = json;
+        if (mThreadBean.isThreadAllocatedMemorySupported()) {
+            mThreadBean.setThreadAllocatedMemoryEnabled(true);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> params = new HashMap<String, String>();
+        for (String arg : args) {
+            int idx = arg.indexOf('=');
+            if (idx <= 0) {
+                System.err.println("Ignoring argument " + arg + ", expecting name=value");
+                continue;
+            }
+            params.put(arg.substring(0, idx), arg.substring(idx + 1));
+        }
+
+        LoadFixture.Options options = new LoadFixture.Options();
+        options.mAccounts = getInt(params, "accounts", options.mAccounts);
+        options.mFolders = getInt(params, "folders", options.mFolders);
+        options.mContacts = getInt(params, "contacts", options.mContacts);
+        options.mShares = getInt(params, "shares", options.mShares);
+        options.mListMembers = getInt(params, "members", options.mListMembers);
+        options.mDirectory = getInt(params, "directory", options.mDirectory);
+        int threads = getInt(params, "threads", 8);
+        int requests = getInt(params, "requests", 500);
+        int warmup = getInt(params, "warmup", 100);
+        boolean json = "json".equals(getString(params, "format", "xml"));
+
+        String request = getString(params, "request", "both");
+        String[] names = request.equals("both")
+            ? new String[] {"GetContactsRequest", "GetContactsTreeRequest"}
+            : new String[] {request + "Request"};
+
+        long start = System.nanoTime();
+        LoadFixture fixture = LoadFixture.generate(options);
+        System.out.println(String.format(
+            "Generated %d accounts of %d folders, %d contacts, %d shares and %d list members in %d ms",
+            options.mAccounts, options.mFolders, options.mContacts, options.mShares, options.mListMembers,
+            (System.nanoTime() - start) / 1000000
+        ));
+
+        // taken from the jar manifest, there is none here
+        CrunchmailExtensionVersion.target = ZimbraVersion.current;
+        new CrunchmailExtension().init();
+        DocumentDispatcher dispatcher = SoapServlet.getDispatcher("SoapServlet");
+        for (String name : names) {
+            if (dispatcher.getHandler(name) == null) {
+                throw new IllegalArgumentException("No handler for " + name);
+            }
+        }
+
+        LoadHarness harness = new LoadHarness(fixture, dispatcher, names, threads, json);
+        if (warmup > 0) {
+            harness.run(warmup);
+            Metrics.reset();
+        }
+        Run run = harness.run(requests);
+        harness.report(run);
+        System.exit(run.mErrors == 0 ? 0 : 1);
+    }
+
+    private static String getString(Map<String, String> params, String name, String def) {
+        String value = params.get(name);
+        return value == null ? def : value;
+    }
+
+    private static int getInt(Map<String, String> params, String name, int def) {
+        String value = params.get(name);
+        return value == null ? def : Integer.parseInt(value);
+    }
+
+    /**
+     * Send count requests from the client threads, request i being for account
+     * i modulo the number of accounts
+     */
+    Run run(final int count) throws InterruptedException, ExecutionException {
+        final Run run = new Run();
+        run.mNames = new String[count];
+        run.mNanos = new long[count];
+        run.mAllocated = new long[count];
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicLong chars = new AtomicLong();
+        final AtomicReference<ServiceException> firstError = new AtomicReference<ServiceException>();
+
+        ExecutorService clients = Executors.newFixedThreadPool(mThreads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        Map<Long, Long> allocatedStart = threadsAllocated();
+        long start = System.nanoTime();
+
+        for (int t = 0; t < mThreads; t++) {
+            futures.add(clients.submit(new Runnable() {
+                @Override
+                public void run() {
+                    long threadId = Thread.currentThread().getId();
+                    int i;
+                    while ((i = next.getAndIncrement()) < count) {
+                        Account account = mFixture.mAccounts.get(i % mFixture.mAccounts.size());
+                        String name = mRequests[i % mRequests.length];
+                        run.mNames[i] = name;
+
+                        long allocated = mThreadBean.getThreadAllocatedBytes(threadId);
+                        long requestStart = System.nanoTime();
+                        try {
+                            Element response = send(account, name);
+                            chars.addAndGet(response.toString().length());
+                        } catch (ServiceException e) {
+                            errors.incrementAndGet();
+                            firstError.compareAndSet(null, e);
+                        }
+                        run.mNanos[i] = System.nanoTime() - requestStart;
+                        run.mAllocated[i] = mThreadBean.getThreadAllocatedBytes(threadId) - allocated;
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        run.mElapsed = System.nanoTime() - start;
+        for (Map.Entry<Long, Long> entry : threadsAllocated().entrySet()) {
+            Long before = allocatedStart.get(entry.getKey());
+            run.mAllAllocated += entry.getValue() - (before == null ? 0 : before);
+        }
+        clients.shutdown();
+        clients.awaitTermination(1, TimeUnit.MINUTES);
+
+        run.mErrors = errors.get();
+        run.mFirstError = firstError.get();
+        run.mResponseChars = chars.get();
+        return run;
+    }
+
+    private Element send(Account account, String name) throws ServiceException {
+        Element request = mJson ? new Element.JSONElement(name) : new Element.XMLElement(name);
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put(DocumentHandler.ZIMBRA_CONTEXT, new ZimbraSoapContext(new AuthToken(account.getId(), false), account.getId(), mJson));
+        return mDispatcher.getHandler(name).handle(request, context);
+    }
+
+    /**
+     * Bytes allocated by each live thread, the extension's pools included
+     */
+    private Map<Long, Long> threadsAllocated() {
+        long[] ids = mThreadBean.getAllThreadIds();
+        long[] allocated = mThreadBean.getThreadAllocatedBytes(ids);
+        Map<Long, Long> byThread = new HashMap<Long, Long>();
+        for (int i = 0; i < ids.length; i++) {
+            if (allocated[i] >= 0) byThread.put(ids[i], allocated[i]);
+        }
+        return byThread;
+    }
+
+    void report(Run run) {
+        int count = run.mNanos.length;
+        System.out.println();
+        System.out.println(String.format("%d requests from %d threads in %d ms: %.1f requests/s, %d errors",
+            count, mThreads, run.mElapsed / 1000000, count * 1e9 / run.mElapsed, run.mErrors));
+        if (run.mFirstError != null) {
+            System.out.println("First error: " + run.mFirstError);
+        }
+        if (count == 0) return;
+
+        System.out.println(String.format("Allocated per request: %s on the request thread, %s by all threads",
+            formatBytes(mean(run.mAllocated)), formatBytes(run.mAllAllocated / count)));
+        System.out.println(String.format("Response size: %s", formatBytes(run.mResponseChars / count)));
+
+        System.out.println();
+        System.out.println(String.format("%-24s %8s %9s %9s %9s %9s %9s %9s %12s",
+            "request", "count", "mean ms", "p50", "p90", "p99", "p99.9", "max", "alloc"));
+        for (String name : mRequests) {
+            List<Integer> indexes = new ArrayList<Integer>();
+            for (int i = 0; i < count; i++) {
+                if (name.equals(run.mNames[i])) indexes.add(i);
+            }
+            long[] nanos = new long[indexes.size()];
+            long[] allocated = new long[indexes.size()];
+            for (int i = 0; i < nanos.length; i++) {
+                nanos[i] = run.mNanos[indexes.get(i)];
+                allocated[i] = run.mAllocated[indexes.get(i)];
+            }
+            printLatencies(name, nanos, allocated);
+        }
+        if (mRequests.length > 1) printLatencies("all", run.mNanos, run.mAllocated);
+
+        System.out.println();
+        System.out.println(String.format("%-40s %8s %6s %12s %12s %12s", "metric", "count", "unit", "mean", "p99", "max"));
+        Map<String, Metrics.Histogram> histograms = new TreeMap<String, Metrics.Histogram>(Metrics.getHistograms());
+        for (Map.Entry<String, Metrics.Histogram> entry : histograms.entrySet()) {
+            Metrics.Histogram histogram = entry.getValue();
+            System.out.println(String.format("%-40s %8d %6s %12d %12d %12d",
+                entry.getKey(), histogram.getCount(), histogram.getUnit(),
+                histogram.getMean(), histogram.getPercentile(0.99), histogram.getMax()));
+        }
+        for (Map.Entry<String, Long> entry : new TreeMap<String, Long>(Metrics.getCounters()).entrySet()) {
+            System.out.println(String.format("%-40s %8d", entry.getKey(), entry.getValue()));
+        }
+    }
+
+    private static void printLatencies(String name, long[] nanos, long[] allocated) {
+        if (nanos.length == 0) return;
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        System.out.println(String.format("%-24s %8d %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f %12s",
+            name, sorted.length, mean(sorted) / 1e6,
+            percentile(sorted, 0.5) / 1e6, percentile(sorted, 0.9) / 1e6,
+            percentile(sorted, 0.99) / 1e6, percentile(sorted, 0.999) / 1e6,
+            sorted[sorted.length - 1] / 1e6, formatBytes(mean(allocated))));
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        int rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.max(rank - 1, 0)];
+    }
+
+    private static long mean(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return values.length == 0 ? 0 : sum / values.length;
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes >= 1024 * 1024) return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        if (bytes >= 1024) return String.format("%.1f KB", bytes / 1024.0);
+        return bytes + " B";
+    }
+}
@@ -0,0 +1,73 @@
+package com.crunchmail.extension;
+
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.crunchmail.extension.ContactsCrawler.RemoteResponse;
+
+/**
+ * JSON exchanged between mailbox servers for shared folders: the owner's
+ * server writes the response, the requester's server reads it back.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class RemoteResponseBenchmark {
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int contacts;
+
+    @Param({"tree", "collection"})
+    public String mode;
+
+    private Gson mGson;
+    private RemoteResponse mResponse;
+    private String mJson;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchFixture fixture = BenchFixture.withContacts(contacts);
+        ContactsFetcher fetcher = fixture.newFetcher();
+        if (mode.equals("tree")) {
+            mResponse = fetcher.makeResponse(fetcher.fetchTree());
+        } else {
+            mResponse = fetcher.makeResponse(fetcher.fetchCollection());
+        }
+        mGson = ContactsCrawler.createGson(fetcher);
+        mJson = mGson.toJson(mResponse);
+    }
+
+    @Benchmark
+    public String write() {
+        StringWriter writer = new StringWriter(mJson.length());
+        mGson.toJson(mResponse, RemoteResponse.class, writer);
+        return writer.toString();
+    }
+
+    @Benchmark
+    public RemoteResponse read() {
+        return mGson.fromJson(mJson, RemoteResponse.class);
+    }
+
+    @Benchmark
+    public RemoteResponse roundTrip() {
+        return mGson.fromJson(write(), RemoteResponse.class);
+    }
+}
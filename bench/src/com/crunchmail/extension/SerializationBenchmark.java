@@ -0,0 +1,69 @@
+package com.crunchmail.extension;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.zimbra.common.soap.Element;
+
+import com.crunchmail.extension.ContactsCrawler.Collection;
+import com.crunchmail.extension.ContactsCrawler.Tree;
+
+/**
+ * SOAP responses building from crawl results, and the copies made
+ * when merging trees.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int contacts;
+
+    private ContactsFetcher mTreeFetcher;
+    private Tree mTree;
+    private Collection mCollection;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchFixture fixture = BenchFixture.withContacts(contacts);
+        mTreeFetcher = fixture.newFetcher();
+        mTree = mTreeFetcher.fetchTree();
+        mCollection = fixture.newFetcher().fetchCollection();
+    }
+
+    @Benchmark
+    public Element treeToElement() {
+        Element response = new Element.XMLElement("GetContactsTreeResponse");
+        mTree.toElement(response);
+        return response;
+    }
+
+    @Benchmark
+    public Element collectionToElement() {
+        Element response = new Element.XMLElement("GetContactsResponse");
+        mCollection.toElement(response);
+        return response;
+    }
+
+    @Benchmark
+    public Tree treeMerge() {
+        Tree copy = new Tree();
+        copy.merge(mTree);
+        return copy;
+    }
+}
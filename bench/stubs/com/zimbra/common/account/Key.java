@@ -0,0 +1,12 @@
+package com.zimbra.common.account;
+
+public class Key {
+
+    public static enum AccountBy {
+        id, name, adminName, appAdminName, foreignPrincipal, krb5Principal, name2
+    }
+
+    public static enum DistributionListBy {
+        id, name
+    }
+}
@@ -0,0 +1,26 @@
+package com.zimbra.common.account;
+
+public class ZAttrProvisioning {
+
+    public static final String A_cn = "cn";
+    public static final String A_displayName = "displayName";
+    public static final String A_givenName = "givenName";
+    public static final String A_mail = "mail";
+    public static final String A_objectClass = "objectClass";
+    public static final String A_sn = "sn";
+    public static final String A_uid = "uid";
+    public static final String A_zimbraHideInGal = "zimbraHideInGal";
+    public static final String A_zimbraId = "zimbraId";
+    public static final String A_zimbraMailAlias = "zimbraMailAlias";
+    public static final String A_zimbraMailDeliveryAddress = "zimbraMailDeliveryAddress";
+    public static final String A_zimbraMailForwardingAddress = "zimbraMailForwardingAddress";
+    public static final String A_zimbraZimletUserProperties = "zimbraZimletUserProperties";
+
+    public static enum MailMode {
+        http, https, mixed, both, redirect;
+
+        public boolean isHttp() {
+            return this == http || this == mixed || this == both;
+        }
+    }
+}
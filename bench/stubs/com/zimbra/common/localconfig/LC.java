@@ -0,0 +1,12 @@
+package com.zimbra.common.localconfig;
+
+/**
+ * Localconfig keys are read from the system properties,
+ * e.g. -Dcrunchmail_gal_batch_size=50
+ */
+public class LC {
+
+    public static String get(String key) {
+        return System.getProperty(key, "");
+    }
+}
@@ -0,0 +1,15 @@
+package com.zimbra.common.mailbox;
+
+public class Color {
+
+    private final long mRgb;
+
+    public Color(long rgb) {
+        mRgb = rgb & 0xffffff;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("#%06x", mRgb);
+    }
+}
@@ -0,0 +1,11 @@
+package com.zimbra.common.mailbox;
+
+public class ContactConstants {
+
+    public static final String A_email = "email";
+    public static final String A_fileAs = "fileAs";
+    public static final String A_firstName = "firstName";
+    public static final String A_fullName = "fullName";
+    public static final String A_groupMember = "groupMember";
+    public static final String A_lastName = "lastName";
+}
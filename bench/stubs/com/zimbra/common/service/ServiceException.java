@@ -0,0 +1,45 @@
+package com.zimbra.common.service;
+
+/**
+ * Benchmark stand-in for the Zimbra service exception
+ */
+public class ServiceException extends Exception {
+
+    public static final String FAILURE = "service.FAILURE";
+    public static final String INVALID_REQUEST = "service.INVALID_REQUEST";
+    public static final String PERM_DENIED = "service.PERM_DENIED";
+    public static final String TEMPORARILY_UNAVAILABLE = "service.TEMPORARILY_UNAVAILABLE";
+
+    private String mCode;
+    private boolean mReceiver;
+
+    protected ServiceException(String message, String code, boolean isReceiversFault, Throwable cause) {
+        super(message, cause);
+        mCode = code;
+        mReceiver = isReceiversFault;
+    }
+
+    public String getCode() {
+        return mCode;
+    }
+
+    public boolean isReceiversFault() {
+        return mReceiver;
+    }
+
+    public static ServiceException FAILURE(String message, Throwable cause) {
+        return new ServiceException("system failure: " + message, FAILURE, true, cause);
+    }
+
+    public static ServiceException INVALID_REQUEST(String message, Throwable cause) {
+        return new ServiceException("invalid request: " + message, INVALID_REQUEST, false, cause);
+    }
+
+    public static ServiceException PERM_DENIED(String message) {
+        return new ServiceException("permission denied: " + message, PERM_DENIED, false, null);
+    }
+
+    public static ServiceException TEMPORARILY_UNAVAILABLE() {
+        return new ServiceException("service temporarily unavailable", TEMPORARILY_UNAVAILABLE, true, null);
+    }
+}
@@ -0,0 +1,297 @@
+package com.zimbra.common.soap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.zimbra.common.service.ServiceException;
+
+/**
+ * In-memory SOAP element tree.
+ *
+ * Building it costs about what the real XMLElement/JSONElement do (one node
+ * and one attribute map per element), toString() writes the document out.
+ */
+public abstract class Element {
+
+    protected String mName;
+    protected String mText;
+    protected Map<String, Object> mAttributes;
+    protected List<Element> mChildren;
+
+    protected Element(String name) {
+        mName = name;
+    }
+
+    protected abstract Element createElement(String name);
+
+    public String getName() {
+        return mName;
+    }
+
+    public Element addNonUniqueElement(String name) {
+        Element child = createElement(name);
+        if (mChildren == null) mChildren = new ArrayList<Element>();
+        mChildren.add(child);
+        return child;
+    }
+
+    public Element addUniqueElement(String name) {
+        Element existing = getOptionalElement(name);
+        return existing != null ? existing : addNonUniqueElement(name);
+    }
+
+    public Element addElement(String name) {
+        return addNonUniqueElement(name);
+    }
+
+    public Element addAttribute(String key, String value) {
+        return setAttribute(key, value);
+    }
+
+    public Element addAttribute(String key, boolean value) {
+        return setAttribute(key, value);
+    }
+
+    public Element addAttribute(String key, long value) {
+        return setAttribute(key, value);
+    }
+
+    public Element addAttribute(String key, double value) {
+        return setAttribute(key, value);
+    }
+
+    private Element setAttribute(String key, Object value) {
+        if (mAttributes == null) mAttributes = new LinkedHashMap<String, Object>();
+        if (value == null) {
+            mAttributes.remove(key);
+        } else {
+            mAttributes.put(key, value);
+        }
+        return this;
+    }
+
+    public List<Element> listElements() {
+        return mChildren == null ? Collections.<Element>emptyList() : mChildren;
+    }
+
+    public List<Element> listElements(String name) {
+        List<Element> elements = new ArrayList<Element>();
+        for (Element child : listElements()) {
+            if (child.mName.equals(name)) elements.add(child);
+        }
+        return elements;
+    }
+
+    public Element getOptionalElement(String name) {
+        for (Element child : listElements()) {
+            if (child.mName.equals(name)) return child;
+        }
+        return null;
+    }
+
+    public Element getElement(String name) throws ServiceException {
+        Element child = getOptionalElement(name);
+        if (child == null) {
+            throw ServiceException.INVALID_REQUEST("missing required element: " + name, null);
+        }
+        return child;
+    }
+
+    public String getAttribute(String key, String defaultValue) {
+        Object value = mAttributes == null ? null : mAttributes.get(key);
+        return value == null ? defaultValue : value.toString();
+    }
+
+    public String getAttribute(String key) throws ServiceException {
+        String value = getAttribute(key, null);
+        if (value == null) {
+            throw ServiceException.INVALID_REQUEST("missing required attribute: " + key, null);
+        }
+        return value;
+    }
+
+    public long getAttributeLong(String key, long defaultValue) throws ServiceException {
+        String value = getAttribute(key, null);
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw ServiceException.INVALID_REQUEST("invalid long value '" + value + "' for attribute: " + key, e);
+        }
+    }
+
+    public int getAttributeInt(String key, int defaultValue) throws ServiceException {
+        return (int) getAttributeLong(key, defaultValue);
+    }
+
+    public boolean getAttributeBool(String key, boolean defaultValue) throws ServiceException {
+        String value = getAttribute(key, null);
+        return value == null ? defaultValue : parseBool(key, value);
+    }
+
+    public String getText() {
+        return mText == null ? "" : mText;
+    }
+
+    public Element setText(String text) {
+        mText = text;
+        return this;
+    }
+
+    public static boolean parseBool(String key, String value) throws ServiceException {
+        if (value.equals("1") || value.equalsIgnoreCase("true")) return true;
+        if (value.equals("0") || value.equalsIgnoreCase("false")) return false;
+        throw ServiceException.INVALID_REQUEST("invalid boolean value '" + value + "' for attribute: " + key, null);
+    }
+
+    public static class XMLElement extends Element {
+
+        public XMLElement(String name) {
+            super(name);
+        }
+
+        public XMLElement(org.dom4j.QName qname) {
+            super(qname.getName());
+        }
+
+        @Override
+        protected Element createElement(String name) {
+            return new XMLElement(name);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            write(sb);
+            return sb.toString();
+        }
+
+        private void write(StringBuilder sb) {
+            sb.append('<').append(mName);
+            if (mAttributes != null) {
+                for (Map.Entry<String, Object> attr : mAttributes.entrySet()) {
+                    sb.append(' ').append(attr.getKey()).append("=\"");
+                    escape(sb, attr.getValue().toString());
+                    sb.append('"');
+                }
+            }
+            if (mChildren == null && mText == null) {
+                sb.append("/>");
+                return;
+            }
+            sb.append('>');
+            if (mText != null) escape(sb, mText);
+            for (Element child : listElements()) {
+                ((XMLElement) child).write(sb);
+            }
+            sb.append("</").append(mName).append('>');
+        }
+
+        private static void escape(StringBuilder sb, String value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '<': sb.append("&lt;"); break;
+                    case '>': sb.append("&gt;"); break;
+                    case '&': sb.append("&amp;"); break;
+                    case '"': sb.append("&quot;"); break;
+                    default: sb.append(c);
+                }
+            }
+        }
+    }
+
+    public static class JSONElement extends Element {
+
+        public JSONElement(String name) {
+            super(name);
+        }
+
+        public JSONElement(org.dom4j.QName qname) {
+            super(qname.getName());
+        }
+
+        @Override
+        protected Element createElement(String name) {
+            return new JSONElement(name);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            write(sb);
+            return sb.toString();
+        }
+
+        private void write(StringBuilder sb) {
+            sb.append('{');
+            boolean first = true;
+            if (mAttributes != null) {
+                for (Map.Entry<String, Object> attr : mAttributes.entrySet()) {
+                    if (!first) sb.append(',');
+                    first = false;
+                    quote(sb, attr.getKey());
+                    sb.append(':');
+                    Object value = attr.getValue();
+                    if (value instanceof String) {
+                        quote(sb, (String) value);
+                    } else {
+                        sb.append(value);
+                    }
+                }
+            }
+            if (mText != null) {
+                if (!first) sb.append(',');
+                first = false;
+                sb.append("\"_content\":");
+                quote(sb, mText);
+            }
+            // children are grouped by name, as arrays
+            Map<String, List<Element>> groups = new LinkedHashMap<String, List<Element>>();
+            for (Element child : listElements()) {
+                List<Element> group = groups.get(child.mName);
+                if (group == null) {
+                    group = new ArrayList<Element>();
+                    groups.put(child.mName, group);
+                }
+                group.add(child);
+            }
+            for (Map.Entry<String, List<Element>> group : groups.entrySet()) {
+                if (!first) sb.append(',');
+                first = false;
+                quote(sb, group.getKey());
+                sb.append(":[");
+                for (int i = 0; i < group.getValue().size(); i++) {
+                    if (i > 0) sb.append(',');
+                    ((JSONElement) group.getValue().get(i)).write(sb);
+                }
+                sb.append(']');
+            }
+            sb.append('}');
+        }
+
+        private static void quote(StringBuilder sb, String value) {
+            sb.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"': sb.append("\\\""); break;
+                    case '\\': sb.append("\\\\"); break;
+                    case '\n': sb.append("\\n"); break;
+                    case '\r': sb.append("\\r"); break;
+                    case '\t': sb.append("\\t"); break;
+                    default:
+                        if (c < 0x20) {
+                            sb.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            sb.append(c);
+                        }
+                }
+            }
+            sb.append('"');
+        }
+    }
+}
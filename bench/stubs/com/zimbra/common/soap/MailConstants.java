@@ -0,0 +1,7 @@
+package com.zimbra.common.soap;
+
+public class MailConstants {
+
+    public static final String E_ATTRIBUTE = "a";
+    public static final String A_ATTRIBUTE_NAME = "n";
+}
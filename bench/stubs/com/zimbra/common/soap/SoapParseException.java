@@ -0,0 +1,8 @@
+package com.zimbra.common.soap;
+
+public class SoapParseException extends Exception {
+
+    public SoapParseException(String message, String content) {
+        super(message + ": " + content);
+    }
+}
@@ -0,0 +1,37 @@
+package com.zimbra.common.util;
+
+/**
+ * Discards everything: benchmarks measure the code, not the logging backend
+ */
+public class Log {
+
+    public boolean isDebugEnabled() {
+        return false;
+    }
+
+    public void trace(Object o) {}
+
+    public void trace(String format, Object... objects) {}
+
+    public void debug(Object o) {}
+
+    public void debug(String format, Object... objects) {}
+
+    public void info(Object o) {}
+
+    public void info(String format, Object... objects) {}
+
+    public void warn(Object o) {}
+
+    public void warn(String format, Object... objects) {}
+
+    public void warn(Object o, Throwable t) {}
+
+    public void error(Object o) {}
+
+    public void error(String format, Object... objects) {}
+
+    public void error(Object o, Throwable t) {}
+
+    public void fatal(Object o) {}
+}
@@ -0,0 +1,20 @@
+package com.zimbra.common.util;
+
+public class Pair<F, S> {
+
+    private F mFirst;
+    private S mSecond;
+
+    public Pair(F first, S second) {
+        mFirst = first;
+        mSecond = second;
+    }
+
+    public F getFirst() {
+        return mFirst;
+    }
+
+    public S getSecond() {
+        return mSecond;
+    }
+}
@@ -0,0 +1,7 @@
+package com.zimbra.common.util;
+
+public class ZimbraLog {
+
+    public static final Log extensions = new Log();
+    public static final Log mailbox = new Log();
+}
@@ -0,0 +1,48 @@
+package com.zimbra.cs.account;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.ldap.entry.LdapEntry;
+
+public class Account extends MailTarget implements LdapEntry {
+
+    public Account(String name, String id, Map<String, Object> attrs) {
+        super(name, id, attrs);
+    }
+
+    @Override
+    public String getDN() {
+        return getDN("people");
+    }
+
+    public String getMailHost() {
+        return getAttr("zimbraMailHost", "localhost");
+    }
+
+    public String getGivenName() {
+        return getAttr("givenName");
+    }
+
+    public String getSn() {
+        return getAttr("sn");
+    }
+
+    public String[] getMailAlias() {
+        return getMultiAttr("zimbraMailAlias");
+    }
+
+    public String[] getZimletUserProperties() {
+        return getMultiAttr("zimbraZimletUserProperties");
+    }
+
+    public synchronized void removeZimletUserProperties(String property) throws ServiceException {
+        List<String> properties = new ArrayList<String>();
+        for (String value : getZimletUserProperties()) {
+            if (!value.equals(property)) properties.add(value);
+        }
+        setAttr("zimbraZimletUserProperties", properties.toArray(new String[properties.size()]));
+    }
+}
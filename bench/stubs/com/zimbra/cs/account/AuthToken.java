@@ -0,0 +1,55 @@
+package com.zimbra.cs.account;
+
+import com.zimbra.common.service.ServiceException;
+
+/**
+ * Tokens are encoded as "account-id" or "account-id:admin", never expire
+ * and are accepted as long as the account exists
+ */
+public class AuthToken {
+
+    private final String mAccountId;
+    private final boolean mAdmin;
+
+    public AuthToken(String accountId, boolean admin) {
+        mAccountId = accountId;
+        mAdmin = admin;
+    }
+
+    public static AuthToken getAuthToken(String encoded) throws AuthTokenException {
+        if (encoded == null || encoded.isEmpty()) {
+            throw new AuthTokenException("empty auth token");
+        }
+        boolean admin = encoded.endsWith(":admin");
+        String accountId = admin ? encoded.substring(0, encoded.length() - 6) : encoded;
+        return new AuthToken(accountId, admin);
+    }
+
+    public String getAccountId() {
+        return mAccountId;
+    }
+
+    public Account getAccount() throws ServiceException {
+        Account account = Provisioning.getInstance().getAccount(mAccountId);
+        if (account == null) {
+            throw ServiceException.PERM_DENIED("no such account: " + mAccountId);
+        }
+        return account;
+    }
+
+    public boolean isAdmin() {
+        return mAdmin;
+    }
+
+    public boolean isExpired() {
+        return false;
+    }
+
+    public boolean isZimbraUser() {
+        return true;
+    }
+
+    public String getEncoded() throws AuthTokenException {
+        return mAdmin ? mAccountId + ":admin" : mAccountId;
+    }
+}
@@ -0,0 +1,8 @@
+package com.zimbra.cs.account;
+
+public class AuthTokenException extends Exception {
+
+    public AuthTokenException(String message) {
+        super(message);
+    }
+}
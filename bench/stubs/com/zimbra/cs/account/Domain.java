@@ -0,0 +1,10 @@
+package com.zimbra.cs.account;
+
+import java.util.Map;
+
+public class Domain extends NamedEntry {
+
+    public Domain(String name, String id, Map<String, Object> attrs) {
+        super(name, id, attrs);
+    }
+}
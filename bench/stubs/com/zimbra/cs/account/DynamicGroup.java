@@ -0,0 +1,22 @@
+package com.zimbra.cs.account;
+
+import java.util.Map;
+
+import com.zimbra.cs.account.ldap.entry.LdapEntry;
+
+public class DynamicGroup extends Group implements LdapEntry {
+
+    public DynamicGroup(String name, String id, Map<String, Object> attrs) {
+        super(name, id, attrs);
+    }
+
+    @Override
+    public String getDN() {
+        return getDN("groups");
+    }
+
+    @Override
+    public boolean isDynamic() {
+        return true;
+    }
+}
@@ -0,0 +1,65 @@
+package com.zimbra.cs.account;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Directory entry whose attributes are kept in memory, values are
+ * either a String or a String[]
+ */
+public abstract class Entry {
+
+    private final Map<String, Object> mAttrs = new HashMap<String, Object>();
+
+    protected Entry(Map<String, Object> attrs) {
+        if (attrs != null) mAttrs.putAll(attrs);
+    }
+
+    public Map<String, Object> getAttrs() {
+        return mAttrs;
+    }
+
+    public void setAttr(String name, Object value) {
+        if (value == null) {
+            mAttrs.remove(name);
+        } else {
+            mAttrs.put(name, value);
+        }
+    }
+
+    public String getAttr(String name) {
+        Object value = mAttrs.get(name);
+        if (value instanceof String[]) {
+            String[] values = (String[]) value;
+            return values.length > 0 ? values[0] : null;
+        }
+        return (String) value;
+    }
+
+    public String getAttr(String name, String defaultValue) {
+        String value = getAttr(name);
+        return value == null ? defaultValue : value;
+    }
+
+    public String[] getMultiAttr(String name) {
+        Object value = mAttrs.get(name);
+        if (value == null) return new String[0];
+        if (value instanceof String) return new String[] {(String) value};
+        return ((String[]) value).clone();
+    }
+
+    public Set<String> getMultiAttrSet(String name) {
+        Set<String> values = new LinkedHashSet<String>();
+        for (String value : getMultiAttr(name)) {
+            values.add(value);
+        }
+        return values;
+    }
+
+    public boolean getBooleanAttr(String name, boolean defaultValue) {
+        String value = getAttr(name);
+        return value == null ? defaultValue : value.equalsIgnoreCase("TRUE");
+    }
+}
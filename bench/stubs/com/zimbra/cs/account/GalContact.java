@@ -0,0 +1,22 @@
+package com.zimbra.cs.account;
+
+import java.util.Map;
+
+public class GalContact {
+
+    private String mId;
+    private Map<String, Object> mAttrs;
+
+    public GalContact(String dn, Map<String, Object> attrs) {
+        mId = dn;
+        mAttrs = attrs;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public Map<String, Object> getAttrs() {
+        return mAttrs;
+    }
+}
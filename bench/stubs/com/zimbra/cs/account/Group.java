@@ -0,0 +1,30 @@
+package com.zimbra.cs.account;
+
+import java.util.Map;
+import java.util.Set;
+
+import com.zimbra.common.service.ServiceException;
+
+public abstract class Group extends MailTarget {
+
+    protected Group(String name, String id, Map<String, Object> attrs) {
+        super(name, id, attrs);
+    }
+
+    public abstract boolean isDynamic();
+
+    public String[] getAllMembers() throws ServiceException {
+        return getMultiAttr("zimbraMailForwardingAddress");
+    }
+
+    public boolean hideInGal() {
+        return getBooleanAttr("zimbraHideInGal", false);
+    }
+
+    public static class GroupOwner {
+
+        public static Set<Group> getOwnedGroups(Account account) throws ServiceException {
+            return Provisioning.getInstance().getOwnedGroups(account);
+        }
+    }
+}
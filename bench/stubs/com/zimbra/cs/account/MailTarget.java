@@ -0,0 +1,32 @@
+package com.zimbra.cs.account;
+
+import java.util.Map;
+
+public abstract class MailTarget extends NamedEntry {
+
+    protected MailTarget(String name, String id, Map<String, Object> attrs) {
+        super(name, id, attrs);
+    }
+
+    public String getMail() {
+        return getAttr("mail", getName());
+    }
+
+    public String getDisplayName() {
+        return getAttr("displayName");
+    }
+
+    protected String getDN(String ou) {
+        int at = getName().indexOf('@');
+        StringBuilder dn = new StringBuilder("uid=").append(getName().substring(0, at)).append(",ou=").append(ou);
+        for (String dc : getDomainName().split("\\.")) {
+            dn.append(",dc=").append(dc);
+        }
+        return dn.toString();
+    }
+
+    public String getDomainName() {
+        int at = getName().indexOf('@');
+        return at < 0 ? null : getName().substring(at + 1);
+    }
+}
@@ -0,0 +1,28 @@
+package com.zimbra.cs.account;
+
+import java.util.Map;
+
+public abstract class NamedEntry extends Entry {
+
+    private final String mId;
+    private final String mName;
+
+    protected NamedEntry(String name, String id, Map<String, Object> attrs) {
+        super(attrs);
+        mId = id;
+        mName = name;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
@@ -0,0 +1,266 @@
+package com.zimbra.cs.account;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.zimbra.common.account.Key;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+
+/**
+ * In-memory directory: accounts, groups and servers live in maps and
+ * searches only understand the (attr=value) terms the extension sends.
+ */
+public class Provisioning {
+
+    public static final String SERVICE_MAILBOX = "mailbox";
+
+    private static final Pattern FILTER_TERM = Pattern.compile("\\((\\w+)=([^()]*)\\)");
+
+    private static volatile Provisioning sInstance = new Provisioning();
+
+    private final Map<String, Account> mAccountsById = new ConcurrentHashMap<String, Account>();
+    // by lower-cased name, mail and aliases
+    private final Map<String, Account> mAccountsByAddress = new ConcurrentHashMap<String, Account>();
+    private final Map<String, Group> mGroupsById = new ConcurrentHashMap<String, Group>();
+    private final Map<String, Group> mGroupsByAddress = new ConcurrentHashMap<String, Group>();
+    // by lower-cased DN
+    private final Map<String, NamedEntry> mEntriesByDN = new ConcurrentHashMap<String, NamedEntry>();
+    // owned groups by owner account id
+    private final Map<String, Set<Group>> mOwnedGroups = new ConcurrentHashMap<String, Set<Group>>();
+    private final Map<String, Server> mServers = new ConcurrentHashMap<String, Server>();
+
+    public static Provisioning getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Drop everything, for a new benchmark fixture
+     */
+    public static void reset() {
+        sInstance = new Provisioning();
+    }
+
+    public Account createAccount(String emailAddress, String password, Map<String, Object> attrs) throws ServiceException {
+        Map<String, Object> accountAttrs = new HashMap<String, Object>();
+        if (attrs != null) accountAttrs.putAll(attrs);
+        String id = (String) accountAttrs.get("zimbraId");
+        if (id == null) id = UUID.randomUUID().toString();
+        accountAttrs.put("zimbraId", id);
+        accountAttrs.put("mail", emailAddress);
+        accountAttrs.put("zimbraMailDeliveryAddress", emailAddress);
+        if (!accountAttrs.containsKey("zimbraMailHost")) accountAttrs.put("zimbraMailHost", getLocalServer().getName());
+
+        Account account = new Account(emailAddress, id, accountAttrs);
+        mAccountsById.put(id, account);
+        mAccountsByAddress.put(emailAddress.toLowerCase(), account);
+        for (String alias : account.getMailAlias()) {
+            mAccountsByAddress.put(alias.toLowerCase(), account);
+        }
+        mEntriesByDN.put(account.getDN().toLowerCase(), account);
+        return account;
+    }
+
+    public DistributionList createDistributionList(String listAddress, Map<String, Object> listAttrs) throws ServiceException {
+        return (DistributionList) createGroup(listAddress, listAttrs, false);
+    }
+
+    public Group createGroup(String name, Map<String, Object> attrs, boolean dynamic) throws ServiceException {
+        Map<String, Object> groupAttrs = new HashMap<String, Object>();
+        if (attrs != null) groupAttrs.putAll(attrs);
+        String id = UUID.randomUUID().toString();
+        groupAttrs.put("zimbraId", id);
+        groupAttrs.put("mail", name);
+
+        Group group = dynamic ? new DynamicGroup(name, id, groupAttrs) : new DistributionList(name, id, groupAttrs);
+        mGroupsById.put(id, group);
+        mGroupsByAddress.put(name.toLowerCase(), group);
+        mEntriesByDN.put(((com.zimbra.cs.account.ldap.entry.LdapEntry) group).getDN().toLowerCase(), group);
+        return group;
+    }
+
+    public void addGroupMembers(Group group, String[] members) throws ServiceException {
+        synchronized (group) {
+            Set<String> all = new LinkedHashSet<String>();
+            Collections.addAll(all, group.getAllMembers());
+            Collections.addAll(all, members);
+            group.setAttr("zimbraMailForwardingAddress", all.toArray(new String[all.size()]));
+        }
+    }
+
+    public void removeGroupMembers(Group group, String[] members) throws ServiceException {
+        synchronized (group) {
+            Set<String> all = new LinkedHashSet<String>();
+            Collections.addAll(all, group.getAllMembers());
+            for (String member : members) {
+                all.remove(member);
+            }
+            group.setAttr("zimbraMailForwardingAddress", all.toArray(new String[all.size()]));
+        }
+    }
+
+    /**
+     * Grant the ownership of a group to an account
+     */
+    public void addGroupOwner(Group group, Account owner) {
+        Set<Group> owned = mOwnedGroups.get(owner.getId());
+        if (owned == null) {
+            owned = Collections.newSetFromMap(new ConcurrentHashMap<Group, Boolean>());
+            mOwnedGroups.put(owner.getId(), owned);
+        }
+        owned.add(group);
+    }
+
+    Set<Group> getOwnedGroups(Account account) {
+        Set<Group> owned = mOwnedGroups.get(account.getId());
+        return owned == null ? new LinkedHashSet<Group>() : new LinkedHashSet<Group>(owned);
+    }
+
+    public Server createServer(String name, Map<String, Object> attrs) throws ServiceException {
+        Server server = new Server(name, UUID.randomUUID().toString(), attrs);
+        mServers.put(name, server);
+        return server;
+    }
+
+    public Account getAccount(String key) throws ServiceException {
+        Account account = mAccountsById.get(key);
+        return account != null ? account : mAccountsByAddress.get(key.toLowerCase());
+    }
+
+    public Account get(Key.AccountBy by, String key) throws ServiceException {
+        switch (by) {
+            case id:
+                return mAccountsById.get(key);
+            case name:
+                return mAccountsByAddress.get(key.toLowerCase());
+            default:
+                throw ServiceException.INVALID_REQUEST("unsupported lookup: " + by, null);
+        }
+    }
+
+    public Group getGroup(Key.DistributionListBy by, String key) throws ServiceException {
+        return by == Key.DistributionListBy.id ? mGroupsById.get(key) : mGroupsByAddress.get(key.toLowerCase());
+    }
+
+    /**
+     * Groups the account is a member of, with the nested ones unless directOnly
+     */
+    public List<Group> getGroups(Account account, boolean directOnly, Map<String, String> via) throws ServiceException {
+        Set<String> addresses = new LinkedHashSet<String>();
+        addresses.add(account.getName().toLowerCase());
+        for (String alias : account.getMailAlias()) {
+            addresses.add(alias.toLowerCase());
+        }
+
+        Map<String, Group> found = new LinkedHashMap<String, Group>();
+        List<String> pending = new ArrayList<String>(addresses);
+        while (!pending.isEmpty()) {
+            List<String> next = new ArrayList<String>();
+            for (Group group : mGroupsById.values()) {
+                if (found.containsKey(group.getId())) continue;
+                for (String member : group.getAllMembers()) {
+                    if (pending.contains(member.toLowerCase())) {
+                        found.put(group.getId(), group);
+                        if (via != null && !addresses.contains(member.toLowerCase())) via.put(group.getName(), member);
+                        next.add(group.getMail().toLowerCase());
+                        break;
+                    }
+                }
+            }
+            pending = directOnly ? new ArrayList<String>() : next;
+        }
+        return new ArrayList<Group>(found.values());
+    }
+
+    /**
+     * Only the (mail=...) and (entryDN=...) terms of the filter are
+     * understood, they are OR-ed whatever the filter says
+     */
+    public List<NamedEntry> searchDirectory(SearchDirectoryOptions options) throws ServiceException {
+        Set<SearchDirectoryOptions.ObjectType> types = options.getTypes();
+        boolean accounts = types.contains(SearchDirectoryOptions.ObjectType.accounts);
+        boolean lists = types.contains(SearchDirectoryOptions.ObjectType.distributionlists);
+        boolean dynamic = types.contains(SearchDirectoryOptions.ObjectType.dynamicgroups);
+
+        Map<String, NamedEntry> results = new LinkedHashMap<String, NamedEntry>();
+        Matcher matcher = FILTER_TERM.matcher(options.getFilterString());
+        while (matcher.find()) {
+            String attr = matcher.group(1);
+            String value = unescape(matcher.group(2)).toLowerCase();
+
+            List<NamedEntry> candidates = new ArrayList<NamedEntry>(2);
+            if (attr.equals("mail")) {
+                if (mAccountsByAddress.containsKey(value)) candidates.add(mAccountsByAddress.get(value));
+                if (mGroupsByAddress.containsKey(value)) candidates.add(mGroupsByAddress.get(value));
+            } else if (attr.equals("entryDN")) {
+                if (mEntriesByDN.containsKey(value)) candidates.add(mEntriesByDN.get(value));
+            }
+
+            for (NamedEntry entry : candidates) {
+                boolean wanted = entry instanceof Account ? accounts
+                    : entry instanceof DynamicGroup ? dynamic
+                    : lists;
+                if (wanted) results.put(entry.getId(), entry);
+            }
+        }
+
+        List<NamedEntry> list = new ArrayList<NamedEntry>(results.values());
+        if (options.getMaxResults() > 0 && list.size() > options.getMaxResults()) {
+            list = list.subList(0, options.getMaxResults());
+        }
+        return list;
+    }
+
+    private static String unescape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 2 < value.length()) {
+                sb.append((char) Integer.parseInt(value.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    public Server getServerByName(String name) throws ServiceException {
+        return mServers.get(name);
+    }
+
+    /**
+     * Named by the zimbra_server_hostname localconfig key, created on first use
+     */
+    public synchronized Server getLocalServer() throws ServiceException {
+        String name = LC.get("zimbra_server_hostname");
+        if (name.isEmpty()) name = "localhost";
+        Server server = mServers.get(name);
+        if (server == null) {
+            server = createServer(name, null);
+        }
+        return server;
+    }
+
+    public List<Server> getAllServers(String service) throws ServiceException {
+        return new ArrayList<Server>(mServers.values());
+    }
+
+    public Domain getDomainByName(String name) throws ServiceException {
+        return null;
+    }
+
+    public static boolean onLocalServer(Account account) throws ServiceException {
+        return account.getMailHost().equals(getInstance().getLocalServer().getName());
+    }
+}
@@ -0,0 +1,64 @@
+package com.zimbra.cs.account;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import com.zimbra.cs.ldap.ZLdapFilterFactory.FilterId;
+
+public class SearchDirectoryOptions {
+
+    public static enum ObjectType {
+        accounts, aliases, distributionlists, dynamicgroups, resources, domains, coses, servers
+    }
+
+    private Set<ObjectType> mTypes = EnumSet.noneOf(ObjectType.class);
+    private String mFilter;
+    private String[] mReturnAttrs;
+    private int mMaxResults = 0;
+    private Domain mDomain;
+
+    public void setTypes(ObjectType... types) {
+        mTypes = EnumSet.noneOf(ObjectType.class);
+        for (ObjectType type : types) {
+            mTypes.add(type);
+        }
+    }
+
+    public Set<ObjectType> getTypes() {
+        return mTypes;
+    }
+
+    public void setFilterString(FilterId filterId, String filter) {
+        mFilter = filter;
+    }
+
+    public String getFilterString() {
+        return mFilter;
+    }
+
+    public void setReturnAttrs(String[] attrs) {
+        mReturnAttrs = attrs;
+    }
+
+    public String[] getReturnAttrs() {
+        return mReturnAttrs;
+    }
+
+    public void setMaxResults(int maxResults) {
+        mMaxResults = maxResults;
+    }
+
+    public int getMaxResults() {
+        return mMaxResults;
+    }
+
+    public void setDomain(Domain domain) {
+        mDomain = domain;
+    }
+
+    public Domain getDomain() {
+        return mDomain;
+    }
+
+    public void setOnMaster(boolean onMaster) {}
+}
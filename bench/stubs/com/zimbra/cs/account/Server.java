@@ -0,0 +1,32 @@
+package com.zimbra.cs.account;
+
+import java.util.Map;
+
+import com.zimbra.common.account.ZAttrProvisioning;
+
+public class Server extends NamedEntry {
+
+    public Server(String name, String id, Map<String, Object> attrs) {
+        super(name, id, attrs);
+    }
+
+    public ZAttrProvisioning.MailMode getMailMode() {
+        return ZAttrProvisioning.MailMode.valueOf(getAttr("zimbraMailMode", "http"));
+    }
+
+    public String getMailPortAsString() {
+        return getAttr("zimbraMailPort", "80");
+    }
+
+    public String getMailSSLPortAsString() {
+        return getAttr("zimbraMailSSLPort", "443");
+    }
+
+    public String getServiceHostname() {
+        return getAttr("zimbraServiceHostname", getName());
+    }
+
+    public boolean hasMailboxService() {
+        return true;
+    }
+}
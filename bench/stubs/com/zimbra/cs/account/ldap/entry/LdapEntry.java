@@ -0,0 +1,6 @@
+package com.zimbra.cs.account.ldap.entry;
+
+public interface LdapEntry {
+
+    String getDN();
+}
@@ -0,0 +1,20 @@
+package com.zimbra.cs.extension;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.zimbra.common.service.ServiceException;
+
+public class ExtensionDispatcherServlet {
+
+    private static final Map<String, ExtensionHttpHandler> sHandlers = new ConcurrentHashMap<String, ExtensionHttpHandler>();
+
+    public static void register(ZimbraExtension ext, ExtensionHttpHandler handler) throws ServiceException {
+        handler.init(ext);
+        sHandlers.put(handler.getPath(), handler);
+    }
+
+    public static ExtensionHttpHandler getHandler(String path) {
+        return sHandlers.get(path);
+    }
+}
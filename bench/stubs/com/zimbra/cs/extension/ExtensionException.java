@@ -0,0 +1,8 @@
+package com.zimbra.cs.extension;
+
+public class ExtensionException extends Exception {
+
+    public ExtensionException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,29 @@
+package com.zimbra.cs.extension;
+
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.zimbra.common.service.ServiceException;
+
+public abstract class ExtensionHttpHandler {
+
+    protected ZimbraExtension mExtension;
+
+    public String getPath() {
+        return "/" + mExtension.getName();
+    }
+
+    public void init(ZimbraExtension ext) throws ServiceException {
+        mExtension = ext;
+    }
+
+    public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException, ServletException {
+        throw new ServletException("HTTP GET requests are not supported");
+    }
+
+    public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException, ServletException {
+        throw new ServletException("HTTP POST requests are not supported");
+    }
+}
@@ -0,0 +1,12 @@
+package com.zimbra.cs.extension;
+
+import com.zimbra.common.service.ServiceException;
+
+public interface ZimbraExtension {
+
+    String getName();
+
+    void init() throws ExtensionException, ServiceException;
+
+    void destroy();
+}
@@ -0,0 +1,5 @@
+package com.zimbra.cs.index;
+
+public enum SortBy {
+    NONE, NAME_ASC
+}
@@ -0,0 +1,8 @@
+package com.zimbra.cs.ldap;
+
+public class ZLdapFilterFactory {
+
+    public static enum FilterId {
+        ADMIN_SEARCH, ACCOUNTS_HOMED_ON_SERVER, SEARCH_ALIAS_TARGET
+    }
+}
@@ -0,0 +1,52 @@
+package com.zimbra.cs.mailbox;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.zimbra.common.mailbox.ContactConstants;
+import com.zimbra.common.service.ServiceException;
+
+public class Contact extends MailItem {
+
+    private Map<String, String> mFields;
+
+    Contact(Mailbox mbox, int id, int folderId, Map<String, String> fields, String[] tags) {
+        super(mbox, id, Type.CONTACT, folderId, null);
+        mFields = new HashMap<String, String>(fields);
+        if (tags != null) mTags = tags.clone();
+    }
+
+    void setFields(Map<String, String> fields) {
+        mFields = new HashMap<String, String>(fields);
+    }
+
+    public String get(String field) {
+        return mFields.get(field);
+    }
+
+    public Map<String, String> getFields() {
+        return Collections.unmodifiableMap(mFields);
+    }
+
+    public boolean isContactGroup() {
+        return "group".equals(mFields.get("type"));
+    }
+
+    public String getFileAsString() throws ServiceException {
+        String fileAs = mFields.get(ContactConstants.A_fileAs);
+        if (fileAs != null) return fileAs;
+        String fullName = mFields.get(ContactConstants.A_fullName);
+        if (fullName != null) return fullName;
+
+        String first = mFields.get(ContactConstants.A_firstName);
+        String last = mFields.get(ContactConstants.A_lastName);
+        if (first == null && last == null) {
+            String email = mFields.get(ContactConstants.A_email);
+            return email == null ? "" : email;
+        }
+        if (first == null) return last;
+        if (last == null) return first;
+        return last + ", " + first;
+    }
+}
@@ -0,0 +1,148 @@
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.GalContact;
+import com.zimbra.cs.account.NamedEntry;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.SearchDirectoryOptions;
+import com.zimbra.cs.ldap.ZLdapFilterFactory.FilterId;
+
+/**
+ * Members are encoded one per line as "C:item-id", "G:dn" or "I:address"
+ */
+public class ContactGroup {
+
+    private final List<Member> mMembers = new ArrayList<Member>();
+    private List<Member> mDerefedMembers;
+
+    public static ContactGroup init() {
+        return new ContactGroup();
+    }
+
+    public static ContactGroup init(String encoded) throws ServiceException {
+        ContactGroup group = new ContactGroup();
+        if (encoded == null || encoded.isEmpty()) return group;
+
+        for (String line : encoded.split("\n")) {
+            if (line.length() < 2 || line.charAt(1) != ':') {
+                throw ServiceException.INVALID_REQUEST("invalid group member: " + line, null);
+            }
+            String value = line.substring(2);
+            switch (line.charAt(0)) {
+                case 'C': group.addMember(Member.Type.CONTACT_REF, value); break;
+                case 'G': group.addMember(Member.Type.GAL_REF, value); break;
+                case 'I': group.addMember(Member.Type.INLINE, value); break;
+                default: throw ServiceException.INVALID_REQUEST("invalid group member: " + line, null);
+            }
+        }
+        return group;
+    }
+
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        for (Member member : mMembers) {
+            if (sb.length() > 0) sb.append('\n');
+            switch (member.getType()) {
+                case CONTACT_REF: sb.append("C:"); break;
+                case GAL_REF: sb.append("G:"); break;
+                default: sb.append("I:");
+            }
+            sb.append(member.getValue());
+        }
+        return sb.toString();
+    }
+
+    public void addMember(Member.Type type, String value) throws ServiceException {
+        mMembers.add(new StubMember(type, value));
+        mDerefedMembers = null;
+    }
+
+    public List<Member> getMembers() {
+        return mMembers;
+    }
+
+    public List<Member> getDerefedMembers() {
+        return mDerefedMembers == null ? mMembers : mDerefedMembers;
+    }
+
+    /**
+     * Contact refs are looked up in the group's mailbox, GAL refs with one
+     * directory search each, like the real implementation
+     */
+    public void derefAllMembers(Mailbox mbox, OperationContext octxt) {
+        for (Member member : mMembers) {
+            StubMember stub = (StubMember) member;
+            try {
+                switch (member.getType()) {
+                    case CONTACT_REF:
+                        stub.mDerefedObj = mbox.getContactById(octxt, Integer.parseInt(member.getValue()));
+                        break;
+                    case GAL_REF:
+                        stub.mDerefedObj = lookupGal(member.getValue());
+                        break;
+                    default:
+                        stub.mDerefedObj = member.getValue();
+                }
+            } catch (ServiceException | NumberFormatException e) {
+                stub.mDerefedObj = null;
+            }
+        }
+        mDerefedMembers = mMembers;
+    }
+
+    private static GalContact lookupGal(String dn) throws ServiceException {
+        SearchDirectoryOptions options = new SearchDirectoryOptions();
+        options.setTypes(SearchDirectoryOptions.ObjectType.accounts, SearchDirectoryOptions.ObjectType.distributionlists);
+        options.setFilterString(FilterId.ADMIN_SEARCH, "(entryDN=" + dn + ")");
+        for (NamedEntry entry : Provisioning.getInstance().searchDirectory(options)) {
+            Map<String, Object> attrs = new HashMap<String, Object>(entry.getAttrs());
+            attrs.put("email", entry.getName());
+            return new GalContact(dn, attrs);
+        }
+        return null;
+    }
+
+    public static abstract class Member {
+
+        public static enum Type {
+            CONTACT_REF, GAL_REF, INLINE
+        }
+
+        public abstract Type getType();
+
+        public abstract String getValue();
+
+        public abstract Object getDerefedObj();
+    }
+
+    private static class StubMember extends Member {
+        private final Type mType;
+        private final String mValue;
+        private Object mDerefedObj;
+
+        StubMember(Type type, String value) {
+            mType = type;
+            mValue = value;
+        }
+
+        @Override
+        public Type getType() {
+            return mType;
+        }
+
+        @Override
+        public String getValue() {
+            return mValue;
+        }
+
+        @Override
+        public Object getDerefedObj() {
+            return mDerefedObj;
+        }
+    }
+}
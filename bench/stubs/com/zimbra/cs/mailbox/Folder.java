@@ -0,0 +1,39 @@
+package com.zimbra.cs.mailbox;
+
+public class Folder extends MailItem {
+
+    protected Type mDefaultView;
+    protected int mImapModSeq;
+    protected long mItemCount = 0;
+
+    Folder(Mailbox mbox, int id, Type type, int parentId, String name, Type defaultView) {
+        super(mbox, id, type, parentId, name);
+        mDefaultView = defaultView;
+    }
+
+    public Type getDefaultView() {
+        return mDefaultView;
+    }
+
+    /**
+     * Change sequence of the last change to the folder or its content
+     */
+    public int getImapMODSEQ() {
+        return mImapModSeq;
+    }
+
+    public long getItemCount() {
+        return mItemCount;
+    }
+
+    public int getParentId() {
+        return mFolderId;
+    }
+
+    public String getPath() {
+        if (mId == Mailbox.ID_FOLDER_USER_ROOT) return "/";
+        Folder parent = mMailbox.getFolder(mFolderId);
+        String parentPath = parent == null ? "/" : parent.getPath();
+        return parentPath.endsWith("/") ? parentPath + mName : parentPath + "/" + mName;
+    }
+}
@@ -0,0 +1,76 @@
+package com.zimbra.cs.mailbox;
+
+import com.zimbra.common.mailbox.Color;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Account;
+
+public abstract class MailItem {
+
+    public static enum Type {
+        UNKNOWN, FOLDER, SEARCHFOLDER, TAG, CONVERSATION, MESSAGE, CONTACT, DOCUMENT, NOTE, FLAG, MOUNTPOINT
+    }
+
+    private static final String[] NO_TAGS = new String[0];
+
+    protected final Mailbox mMailbox;
+    protected final int mId;
+    protected final Type mType;
+    protected int mFolderId;
+    protected String mName;
+    protected String[] mTags = NO_TAGS;
+    protected Color mColor = new Color(0);
+    protected int mModSeq;
+    protected int mSavedSeq;
+
+    protected MailItem(Mailbox mbox, int id, Type type, int folderId, String name) {
+        mMailbox = mbox;
+        mId = id;
+        mType = type;
+        mFolderId = folderId;
+        mName = name;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    public Mailbox getMailbox() {
+        return mMailbox;
+    }
+
+    public Account getAccount() throws ServiceException {
+        return mMailbox.getAccount();
+    }
+
+    public String getAccountId() {
+        return mMailbox.getAccountId();
+    }
+
+    public int getFolderId() {
+        return mFolderId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String[] getTags() {
+        return mTags.clone();
+    }
+
+    public Color getRgbColor() {
+        return mColor;
+    }
+
+    public int getModifiedSequence() {
+        return mModSeq;
+    }
+
+    public int getSavedSequence() {
+        return mSavedSeq;
+    }
+}
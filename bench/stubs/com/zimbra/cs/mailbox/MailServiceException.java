@@ -0,0 +1,26 @@
+package com.zimbra.cs.mailbox;
+
+import com.zimbra.common.service.ServiceException;
+
+public class MailServiceException extends ServiceException {
+
+    public static final String MUST_RESYNC = "mail.MUST_RESYNC";
+    public static final String NO_SUCH_CONTACT = "mail.NO_SUCH_CONTACT";
+    public static final String NO_SUCH_FOLDER = "mail.NO_SUCH_FOLDER";
+
+    private MailServiceException(String message, String code, boolean isReceiversFault) {
+        super(message, code, isReceiversFault, null);
+    }
+
+    public static MailServiceException MUST_RESYNC() {
+        return new MailServiceException("cannot sync to token: tombstones were purged", MUST_RESYNC, false);
+    }
+
+    public static MailServiceException NO_SUCH_CONTACT(int id) {
+        return new MailServiceException("no such contact: " + id, NO_SUCH_CONTACT, false);
+    }
+
+    public static MailServiceException NO_SUCH_FOLDER(int id) {
+        return new MailServiceException("no such folder id: " + id, NO_SUCH_FOLDER, false);
+    }
+}
@@ -0,0 +1,341 @@
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Pair;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.index.SortBy;
+import com.zimbra.cs.mailbox.util.TypedIdList;
+import com.zimbra.cs.service.util.ItemId;
+
+/**
+ * In-memory mailbox holding folders, mountpoints, contacts and tags.
+ *
+ * Every change gets a new change id, like the real mailbox, so sync tokens
+ * and the contacts cache stamps behave the same. All the methods are
+ * synchronized on the mailbox, as the real ones take the mailbox lock.
+ */
+public class Mailbox {
+
+    public static final int ID_FOLDER_USER_ROOT = 1;
+    public static final int ID_FOLDER_TAGS = 8;
+    public static final int ID_FOLDER_CONTACTS = 7;
+    public static final int ID_FOLDER_AUTO_CONTACTS = 13;
+    public static final int FIRST_USER_ID = 257;
+
+    public static class FolderNode {
+        public int mId;
+        public String mName;
+        public Folder mFolder;
+        public List<FolderNode> mSubfolders = new ArrayList<FolderNode>();
+    }
+
+    private final int mId;
+    private final Account mAccount;
+    private final Map<Integer, MailItem> mItems = new TreeMap<Integer, MailItem>();
+    private final Map<Integer, Folder> mFolders = new TreeMap<Integer, Folder>();
+    // Accounts each folder is shared with
+    private final Map<Integer, Set<String>> mGrants = new TreeMap<Integer, Set<String>>();
+    // Contacts of each folder, by id
+    private final Map<Integer, Map<Integer, Contact>> mContacts = new TreeMap<Integer, Map<Integer, Contact>>();
+    private final Map<Integer, Integer> mTombstoneSeqs = new TreeMap<Integer, Integer>();
+    // Folder each moved contact was last moved out of (prev_folders)
+    private final Map<Integer, Integer> mPrevFolders = new TreeMap<Integer, Integer>();
+    private int mNextItemId = FIRST_USER_ID;
+    private int mChangeId = 1;
+
+    Mailbox(int id, Account account) {
+        mId = id;
+        mAccount = account;
+        addFolder(new Folder(this, ID_FOLDER_USER_ROOT, MailItem.Type.FOLDER, ID_FOLDER_USER_ROOT, "USER_ROOT", MailItem.Type.UNKNOWN));
+        addFolder(new Folder(this, ID_FOLDER_CONTACTS, MailItem.Type.FOLDER, ID_FOLDER_USER_ROOT, "Contacts", MailItem.Type.CONTACT));
+        addFolder(new Folder(this, ID_FOLDER_AUTO_CONTACTS, MailItem.Type.FOLDER, ID_FOLDER_USER_ROOT, "Emailed Contacts", MailItem.Type.CONTACT));
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public Account getAccount() throws ServiceException {
+        return mAccount;
+    }
+
+    public String getAccountId() {
+        return mAccount.getId();
+    }
+
+    public synchronized int getLastChangeID() {
+        return mChangeId;
+    }
+
+    // Changes
+
+    public synchronized Folder createFolder(OperationContext octxt, String name, int parentId, MailItem.Type defaultView) throws ServiceException {
+        getFolderById(octxt, parentId);
+        Folder folder = new Folder(this, mNextItemId++, MailItem.Type.FOLDER, parentId, name, defaultView);
+        touch(folder);
+        addFolder(folder);
+        return folder;
+    }
+
+    public synchronized Mountpoint createMountpoint(OperationContext octxt, int parentId, String name, String ownerId, int remoteId, MailItem.Type defaultView) throws ServiceException {
+        getFolderById(octxt, parentId);
+        Mountpoint mp = new Mountpoint(this, mNextItemId++, parentId, name, defaultView, ownerId, remoteId);
+        touch(mp);
+        addFolder(mp);
+        return mp;
+    }
+
+    public synchronized Tag createTag(OperationContext octxt, String name, long color) throws ServiceException {
+        Tag tag = new Tag(this, mNextItemId++, name, color);
+        touch(tag);
+        mItems.put(tag.getId(), tag);
+        return tag;
+    }
+
+    /**
+     * Fields are stored as given, a "type" field set to "group" makes a contact group
+     * (see ContactGroup.encode() for the members)
+     */
+    public synchronized Contact createContact(OperationContext octxt, Map<String, String> fields, int folderId, String[] tags) throws ServiceException {
+        Folder folder = getFolderById(octxt, folderId);
+        Contact contact = new Contact(this, mNextItemId++, folderId, fields, tags);
+        touch(contact);
+        mItems.put(contact.getId(), contact);
+        folderContacts(folderId).put(contact.getId(), contact);
+        folder.mItemCount++;
+        touch(folder);
+        return contact;
+    }
+
+    public synchronized void modifyContact(OperationContext octxt, int id, Map<String, String> fields) throws ServiceException {
+        Contact contact = getContactById(octxt, id);
+        contact.setFields(fields);
+        touch(contact);
+        touch(getFolder(contact.getFolderId()));
+    }
+
+    public synchronized void move(OperationContext octxt, int id, MailItem.Type type, int targetId) throws ServiceException {
+        Contact contact = getContactById(octxt, id);
+        Folder from = getFolder(contact.getFolderId());
+        Folder to = getFolderById(octxt, targetId);
+        folderContacts(from.getId()).remove(id);
+        folderContacts(targetId).put(id, contact);
+        contact.mFolderId = targetId;
+        mPrevFolders.put(id, from.getId());
+        from.mItemCount--;
+        to.mItemCount++;
+        touch(contact);
+        touch(from);
+        touch(to);
+    }
+
+    public synchronized void delete(OperationContext octxt, int id, MailItem.Type type) throws ServiceException {
+        MailItem item = mItems.remove(id);
+        mFolders.remove(id);
+        if (item == null) {
+            throw MailServiceException.NO_SUCH_CONTACT(id);
+        }
+        mChangeId++;
+        mTombstoneSeqs.put(id, mChangeId);
+        Folder folder = getFolder(item.getFolderId());
+        if (folder != null && item instanceof Contact) {
+            folderContacts(folder.getId()).remove(id);
+            folder.mItemCount--;
+            touch(folder);
+        }
+    }
+
+    /**
+     * Let another account read a folder and its subfolders
+     */
+    public synchronized void grantAccess(OperationContext octxt, int folderId, String granteeId) throws ServiceException {
+        getFolderById(octxt, folderId);
+        Set<String> grantees = mGrants.get(folderId);
+        if (grantees == null) {
+            grantees = new HashSet<String>();
+            mGrants.put(folderId, grantees);
+        }
+        grantees.add(granteeId);
+        mChangeId++;
+    }
+
+    private void addFolder(Folder folder) {
+        mItems.put(folder.getId(), folder);
+        mFolders.put(folder.getId(), folder);
+    }
+
+    private Map<Integer, Contact> folderContacts(int folderId) {
+        Map<Integer, Contact> contacts = mContacts.get(folderId);
+        if (contacts == null) {
+            contacts = new TreeMap<Integer, Contact>();
+            mContacts.put(folderId, contacts);
+        }
+        return contacts;
+    }
+
+    private void touch(MailItem item) {
+        mChangeId++;
+        item.mModSeq = mChangeId;
+        if (item.mSavedSeq == 0) item.mSavedSeq = mChangeId;
+        if (item instanceof Folder) ((Folder) item).mImapModSeq = mChangeId;
+    }
+
+    // Reads
+
+    Folder getFolder(int id) {
+        return mFolders.get(id);
+    }
+
+    private void checkAccess(OperationContext octxt, Folder folder) throws ServiceException {
+        if (octxt == null || octxt.getAuthenticatedUser() == null) return;
+        String requester = octxt.getAuthenticatedUser().getId();
+        if (requester.equals(getAccountId())) return;
+
+        // grants are inherited by subfolders
+        Folder current = folder;
+        while (true) {
+            Set<String> grantees = mGrants.get(current.getId());
+            if (grantees != null && grantees.contains(requester)) return;
+            if (current.getId() == ID_FOLDER_USER_ROOT) break;
+            current = getFolder(current.getFolderId());
+        }
+        throw ServiceException.PERM_DENIED("you do not have sufficient permissions on folder " + folder.getPath());
+    }
+
+    public synchronized Folder getFolderById(OperationContext octxt, int id) throws ServiceException {
+        Folder folder = getFolder(id);
+        if (folder == null) {
+            throw MailServiceException.NO_SUCH_FOLDER(id);
+        }
+        checkAccess(octxt, folder);
+        return folder;
+    }
+
+    public synchronized Mountpoint getMountpointById(OperationContext octxt, int id) throws ServiceException {
+        Folder folder = getFolderById(octxt, id);
+        if (!(folder instanceof Mountpoint)) {
+            throw MailServiceException.NO_SUCH_FOLDER(id);
+        }
+        return (Mountpoint) folder;
+    }
+
+    public synchronized Contact getContactById(OperationContext octxt, int id) throws ServiceException {
+        MailItem item = mItems.get(id);
+        if (!(item instanceof Contact)) {
+            throw MailServiceException.NO_SUCH_CONTACT(id);
+        }
+        checkAccess(octxt, getFolder(item.getFolderId()));
+        return (Contact) item;
+    }
+
+    public synchronized List<Contact> getContactList(OperationContext octxt, int folderId, SortBy sort) throws ServiceException {
+        getFolderById(octxt, folderId);
+        List<Contact> contacts = new ArrayList<Contact>(folderContacts(folderId).values());
+        if (sort == SortBy.NAME_ASC) {
+            Collections.sort(contacts, new Comparator<Contact>() {
+                @Override
+                public int compare(Contact a, Contact b) {
+                    try {
+                        return a.getFileAsString().compareToIgnoreCase(b.getFileAsString());
+                    } catch (ServiceException e) {
+                        return 0;
+                    }
+                }
+            });
+        }
+        return contacts;
+    }
+
+    public synchronized List<Folder> getFolderList(OperationContext octxt, SortBy sort) throws ServiceException {
+        return new ArrayList<Folder>(mFolders.values());
+    }
+
+    public synchronized List<Tag> getTagList(OperationContext octxt) throws ServiceException {
+        List<Tag> tags = new ArrayList<Tag>();
+        for (MailItem item : mItems.values()) {
+            if (item instanceof Tag) tags.add((Tag) item);
+        }
+        return tags;
+    }
+
+    /**
+     * Folder subtree, built anew for each call like the real one.
+     * The requester must have access to the root of the subtree.
+     */
+    public synchronized FolderNode getFolderTree(OperationContext octxt, ItemId iid, boolean returnAllVisibleFolders) throws ServiceException {
+        int rootId = iid == null ? ID_FOLDER_USER_ROOT : iid.getId();
+        Folder root = getFolderById(octxt, rootId);
+
+        Map<Integer, List<Folder>> children = new TreeMap<Integer, List<Folder>>();
+        for (Folder folder : mFolders.values()) {
+            if (folder.getId() == ID_FOLDER_USER_ROOT) continue;
+            List<Folder> siblings = children.get(folder.getFolderId());
+            if (siblings == null) {
+                siblings = new ArrayList<Folder>();
+                children.put(folder.getFolderId(), siblings);
+            }
+            siblings.add(folder);
+        }
+        return makeNode(root, children);
+    }
+
+    private FolderNode makeNode(Folder folder, Map<Integer, List<Folder>> children) {
+        FolderNode node = new FolderNode();
+        node.mId = folder.getId();
+        node.mName = folder.getName();
+        node.mFolder = folder;
+        List<Folder> subfolders = children.get(folder.getId());
+        if (subfolders != null) {
+            for (Folder subfolder : subfolders) {
+                node.mSubfolders.add(makeNode(subfolder, children));
+            }
+        }
+        return node;
+    }
+
+    public synchronized TypedIdList getTombstones(int lastSync) throws ServiceException {
+        TypedIdList tombstones = new TypedIdList();
+        for (Map.Entry<Integer, Integer> entry : mTombstoneSeqs.entrySet()) {
+            if (entry.getValue() > lastSync) {
+                tombstones.add(MailItem.Type.CONTACT, entry.getKey());
+            }
+        }
+        return tombstones;
+    }
+
+    public synchronized Pair<List<Integer>, TypedIdList> getModifiedItems(OperationContext octxt, int lastSync, MailItem.Type type) throws ServiceException {
+        List<Integer> modified = new ArrayList<Integer>();
+        for (MailItem item : mItems.values()) {
+            if (item.getType() == type && item.getModifiedSequence() > lastSync) {
+                modified.add(item.getId());
+            }
+        }
+        return new Pair<List<Integer>, TypedIdList>(modified, new TypedIdList());
+    }
+
+    /**
+     * Items modified in the folders, then the ones moved out of them
+     */
+    public synchronized Pair<List<Integer>, TypedIdList> getModifiedItems(OperationContext octxt, int lastSync, MailItem.Type type, Set<Integer> folderIds) throws ServiceException {
+        List<Integer> modified = new ArrayList<Integer>();
+        TypedIdList missed = new TypedIdList();
+        for (MailItem item : mItems.values()) {
+            if (item.getType() != type || item.getModifiedSequence() <= lastSync) continue;
+            if (folderIds.contains(item.getFolderId())) {
+                modified.add(item.getId());
+            } else if (folderIds.contains(mPrevFolders.get(item.getId()))) {
+                missed.add(type, item.getId());
+            }
+        }
+        return new Pair<List<Integer>, TypedIdList>(modified, missed);
+    }
+}
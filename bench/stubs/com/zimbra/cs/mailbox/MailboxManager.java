@@ -0,0 +1,57 @@
+package com.zimbra.cs.mailbox;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+
+/**
+ * Mailboxes are created in memory on first access
+ */
+public class MailboxManager {
+
+    private static volatile MailboxManager sInstance = new MailboxManager();
+
+    private final Map<String, Mailbox> mMailboxes = new ConcurrentHashMap<String, Mailbox>();
+    private final AtomicInteger mNextId = new AtomicInteger(1);
+
+    public static MailboxManager getInstance() throws ServiceException {
+        return sInstance;
+    }
+
+    /**
+     * Drop all the mailboxes, for a new benchmark fixture
+     */
+    public static void reset() {
+        sInstance = new MailboxManager();
+    }
+
+    public Mailbox getMailboxByAccount(Account account) throws ServiceException {
+        return getMailboxByAccountId(account.getId(), true);
+    }
+
+    public Mailbox getMailboxByAccountId(String accountId) throws ServiceException {
+        return getMailboxByAccountId(accountId, true);
+    }
+
+    public Mailbox getMailboxByAccountId(String accountId, boolean autoCreate) throws ServiceException {
+        Mailbox mbox = mMailboxes.get(accountId);
+        if (mbox != null || !autoCreate) return mbox;
+
+        Account account = Provisioning.getInstance().getAccount(accountId);
+        if (account == null) {
+            throw ServiceException.FAILURE("no such account: " + accountId, null);
+        }
+        synchronized (this) {
+            mbox = mMailboxes.get(accountId);
+            if (mbox == null) {
+                mbox = new Mailbox(mNextId.getAndIncrement(), account);
+                mMailboxes.put(accountId, mbox);
+            }
+        }
+        return mbox;
+    }
+}
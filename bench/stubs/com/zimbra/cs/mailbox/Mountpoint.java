@@ -0,0 +1,27 @@
+package com.zimbra.cs.mailbox;
+
+import com.zimbra.cs.service.util.ItemId;
+
+public class Mountpoint extends Folder {
+
+    private final String mOwnerId;
+    private final int mRemoteId;
+
+    Mountpoint(Mailbox mbox, int id, int parentId, String name, Type defaultView, String ownerId, int remoteId) {
+        super(mbox, id, Type.MOUNTPOINT, parentId, name, defaultView);
+        mOwnerId = ownerId;
+        mRemoteId = remoteId;
+    }
+
+    public String getOwnerId() {
+        return mOwnerId;
+    }
+
+    public int getRemoteId() {
+        return mRemoteId;
+    }
+
+    public ItemId getTarget() {
+        return new ItemId(mOwnerId, mRemoteId);
+    }
+}
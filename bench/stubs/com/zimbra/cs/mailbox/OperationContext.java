@@ -0,0 +1,33 @@
+package com.zimbra.cs.mailbox;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.AuthToken;
+
+public class OperationContext {
+
+    private final Account mAuthUser;
+    private final AuthToken mAuthToken;
+
+    public OperationContext(Mailbox mbox) throws ServiceException {
+        this(mbox.getAccount());
+    }
+
+    public OperationContext(Account account) {
+        mAuthUser = account;
+        mAuthToken = new AuthToken(account.getId(), false);
+    }
+
+    public OperationContext(AuthToken authToken) throws ServiceException {
+        mAuthUser = authToken.getAccount();
+        mAuthToken = authToken;
+    }
+
+    public Account getAuthenticatedUser() {
+        return mAuthUser;
+    }
+
+    public AuthToken getAuthToken() throws ServiceException {
+        return mAuthToken;
+    }
+}
@@ -0,0 +1,11 @@
+package com.zimbra.cs.mailbox;
+
+import com.zimbra.common.mailbox.Color;
+
+public class Tag extends MailItem {
+
+    Tag(Mailbox mbox, int id, String name, long color) {
+        super(mbox, id, Type.TAG, Mailbox.ID_FOLDER_TAGS, name);
+        mColor = new Color(color);
+    }
+}
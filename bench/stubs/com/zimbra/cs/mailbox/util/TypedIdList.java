@@ -0,0 +1,30 @@
+package com.zimbra.cs.mailbox.util;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import com.zimbra.cs.mailbox.MailItem;
+
+public class TypedIdList {
+
+    private final Map<MailItem.Type, List<Integer>> mIds = new EnumMap<MailItem.Type, List<Integer>>(MailItem.Type.class);
+
+    public void add(MailItem.Type type, int id) {
+        List<Integer> ids = mIds.get(type);
+        if (ids == null) {
+            ids = new ArrayList<Integer>();
+            mIds.put(type, ids);
+        }
+        ids.add(id);
+    }
+
+    public List<Integer> getIds(MailItem.Type type) {
+        return mIds.get(type);
+    }
+
+    public boolean isEmpty() {
+        return mIds.isEmpty();
+    }
+}
@@ -0,0 +1,49 @@
+package com.zimbra.cs.service.util;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.mailbox.Mailbox;
+
+/**
+ * Item id qualified with its account, encoded as "account-id:item-id"
+ */
+public class ItemId {
+
+    private final String mAccountId;
+    private final int mId;
+
+    public ItemId(String accountId, int id) {
+        mAccountId = accountId;
+        mId = id;
+    }
+
+    public ItemId(String encoded, String defaultAccountId) throws ServiceException {
+        int colon = encoded.lastIndexOf(':');
+        try {
+            mAccountId = colon < 0 ? defaultAccountId : encoded.substring(0, colon);
+            mId = Integer.parseInt(encoded.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw ServiceException.INVALID_REQUEST("malformed item id: " + encoded, e);
+        }
+    }
+
+    public String getAccountId() {
+        return mAccountId;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public boolean belongsTo(Mailbox mbox) {
+        return mAccountId == null || mAccountId.equals(mbox.getAccountId());
+    }
+
+    public boolean isLocal() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return mAccountId == null ? Integer.toString(mId) : mAccountId + ":" + mId;
+    }
+}
@@ -0,0 +1,13 @@
+package com.zimbra.cs.util;
+
+public class BuildInfo {
+
+    public static final String MAJORVERSION = "8";
+    public static final String MINORVERSION = "6";
+    public static final String MICROVERSION = "0";
+    public static final String BUILDNUM = "bench";
+    public static final String FULL_VERSION = "8.6.0_GA_bench";
+    public static final String DATE = "";
+    public static final String HOST = "";
+    public static final String PLATFORM = "";
+}
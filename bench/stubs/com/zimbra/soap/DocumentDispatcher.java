@@ -0,0 +1,22 @@
+package com.zimbra.soap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dom4j.QName;
+
+/**
+ * Handlers are looked up by request name only
+ */
+public class DocumentDispatcher {
+
+    private final Map<String, DocumentHandler> mHandlers = new ConcurrentHashMap<String, DocumentHandler>();
+
+    public void registerHandler(QName qname, DocumentHandler handler) {
+        mHandlers.put(qname.getName(), handler);
+    }
+
+    public DocumentHandler getHandler(String requestName) {
+        return mHandlers.get(requestName);
+    }
+}
@@ -0,0 +1,37 @@
+package com.zimbra.soap;
+
+import java.util.Map;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.soap.Element;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+
+public abstract class DocumentHandler {
+
+    public static final String ZIMBRA_CONTEXT = "zimbra.context";
+
+    public abstract Element handle(Element request, Map<String, Object> context) throws ServiceException;
+
+    public static ZimbraSoapContext getZimbraSoapContext(Map<String, Object> context) {
+        return (ZimbraSoapContext) context.get(ZIMBRA_CONTEXT);
+    }
+
+    protected Account getRequestedAccount(ZimbraSoapContext zsc) throws ServiceException {
+        Account account = Provisioning.getInstance().getAccount(zsc.getRequestedAccountId());
+        if (account == null) {
+            throw ServiceException.PERM_DENIED("no such account: " + zsc.getRequestedAccountId());
+        }
+        return account;
+    }
+
+    protected Mailbox getRequestedMailbox(ZimbraSoapContext zsc) throws ServiceException {
+        return MailboxManager.getInstance().getMailboxByAccountId(zsc.getRequestedAccountId());
+    }
+
+    public boolean needsAdminAuth(Map<String, Object> context) {
+        return false;
+    }
+}
@@ -0,0 +1,6 @@
+package com.zimbra.soap;
+
+public interface DocumentService {
+
+    void registerHandlers(DocumentDispatcher dispatcher);
+}
@@ -0,0 +1,23 @@
+package com.zimbra.soap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class SoapServlet {
+
+    private static final Map<String, DocumentDispatcher> sDispatchers = new ConcurrentHashMap<String, DocumentDispatcher>();
+
+    public static void addService(String servletName, DocumentService service) {
+        DocumentDispatcher dispatcher = getDispatcher(servletName);
+        service.registerHandlers(dispatcher);
+    }
+
+    public static synchronized DocumentDispatcher getDispatcher(String servletName) {
+        DocumentDispatcher dispatcher = sDispatchers.get(servletName);
+        if (dispatcher == null) {
+            dispatcher = new DocumentDispatcher();
+            sDispatchers.put(servletName, dispatcher);
+        }
+        return dispatcher;
+    }
+}
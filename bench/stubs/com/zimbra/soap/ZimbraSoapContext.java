@@ -0,0 +1,39 @@
+package com.zimbra.soap;
+
+import org.dom4j.QName;
+
+import com.zimbra.common.soap.Element;
+import com.zimbra.cs.account.AuthToken;
+
+public class ZimbraSoapContext {
+
+    private final AuthToken mAuthToken;
+    private final String mRequestedAccountId;
+    private final boolean mJson;
+
+    public ZimbraSoapContext(AuthToken authToken, String requestedAccountId, boolean json) {
+        mAuthToken = authToken;
+        mRequestedAccountId = requestedAccountId;
+        mJson = json;
+    }
+
+    public AuthToken getAuthToken() {
+        return mAuthToken;
+    }
+
+    public String getAuthtokenAccountId() {
+        return mAuthToken.getAccountId();
+    }
+
+    public String getRequestedAccountId() {
+        return mRequestedAccountId;
+    }
+
+    public Element createElement(String name) {
+        return mJson ? new Element.JSONElement(name) : new Element.XMLElement(name);
+    }
+
+    public Element createElement(QName qname) {
+        return createElement(qname.getName());
+    }
+}
@@ -0,0 +1,172 @@
+package com.crunchmail.extension;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.common.base.Joiner;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.index.SortBy;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+
+import com.crunchmail.extension.ContactsCrawler.FolderContent;
+
+/**
+ * Server-wide cache of crawled folder content (contacts and groups).
+ *
+ * Entries are keyed by requesting account, folder and included fields, and
+ * are only used while the folder content is unchanged: same IMAP modified
+ * sequence and item count. Groups are built from contacts found anywhere in
+ * the mailbox, so folders holding groups are also checked against a stamp of
+ * all the mailbox's contact folders. GAL members and tag renames are only
+ * picked up when entries expire.
+ *
+ * The cache is bounded by the estimated heap size of its entries.
+ */
+public class ContactsCache {
+
+    private static class Entry {
+        final FolderContent mContent;
+        final int mModSeq;
+        final long mItemCount;
+        final long mContactsStamp;
+        final int mWeight;
+
+        Entry(FolderContent content, int modSeq, long itemCount, long contactsStamp) {
+            mContent = content;
+            mModSeq = modSeq;
+            mItemCount = itemCount;
+            mContactsStamp = contactsStamp;
+            mWeight = content.estimateSize();
+        }
+
+        boolean isValid(int modSeq, long itemCount, long contactsStamp) {
+            if (modSeq != mModSeq || itemCount != mItemCount) {
+                return false;
+            }
+            return !mContent.hasGroups() || contactsStamp == mContactsStamp;
+        }
+    }
+
+    private Cache<String, Entry> mCache;
+    private long mMaxSize;
+
+    private AtomicLong mHits = new AtomicLong();
+    private AtomicLong mMisses = new AtomicLong();
+    private AtomicLong mStale = new AtomicLong();
+    private AtomicLong mEvictions = new AtomicLong();
+    private AtomicLong mSize = new AtomicLong();
+
+    private Logger mLogger = new Logger();
+
+    /**
+     * @param maxSize estimated heap size the entries can use, in bytes
+     * @param ttl     seconds after which an entry is dropped even if still valid
+     */
+    public ContactsCache(long maxSize, long ttl) {
+        mMaxSize = maxSize;
+        mCache = CacheBuilder.newBuilder()
+            .maximumWeight(maxSize)
+            .weigher(new Weigher<String, Entry>() {
+                @Override
+                public int weigh(String key, Entry entry) {
+                    return entry.mWeight;
+                }
+            })
+            .expireAfterWrite(ttl, TimeUnit.SECONDS)
+            .removalListener(new RemovalListener<String, Entry>() {
+                @Override
+                public void onRemoval(RemovalNotification<String, Entry> notification) {
+                    mSize.addAndGet(-notification.getValue().mWeight);
+                    if (notification.getCause() == RemovalCause.SIZE) {
+                        mEvictions.incrementAndGet();
+                    }
+                }
+            })
+            .build();
+
+        mLogger.info("Contacts cache created (max size: " + (maxSize / 1024 / 1024) + "MB, ttl: " + ttl + "s)");
+    }
+
+    /**
+     * @return key of a folder content, as seen by the requesting account
+     */
+    public static String key(String accountId, String ownerId, int folderId, String[] includeFields) {
+        return accountId + "|" + ownerId + ":" + folderId + "|" + Joiner.on(",").join(includeFields);
+    }
+
+    /**
+     * Stamp of all the contact folders of a mailbox, changes with any of their content
+     */
+    public static long contactsStamp(Mailbox mbox) throws ServiceException {
+        long stamp = 0;
+        // No operation context: group members can be in folders the requester doesn't see
+        for (Folder folder : mbox.getFolderList(null, SortBy.NONE)) {
+            if (folder.getDefaultView() == MailItem.Type.CONTACT) {
+                stamp = 31 * stamp + folder.getId();
+                stamp = 31 * stamp + folder.getImapMODSEQ();
+                stamp = 31 * stamp + folder.getItemCount();
+            }
+        }
+        return stamp;
+    }
+
+    /**
+     * @return the cached content if the folder didn't change since, null otherwise
+     */
+    public FolderContent get(String key, int modSeq, long itemCount, long contactsStamp) {
+        Entry entry = mCache.getIfPresent(key);
+        if (entry == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        if (!entry.isValid(modSeq, itemCount, contactsStamp)) {
+            mStale.incrementAndGet();
+            mCache.invalidate(key);
+            return null;
+        }
+        mHits.incrementAndGet();
+        return entry.mContent;
+    }
+
+    /**
+     * Store a folder content, with the stamps read before it was crawled.
+     * The content must not be modified afterwards.
+     */
+    public void put(String key, FolderContent content, int modSeq, long itemCount, long contactsStamp) {
+        Entry entry = new Entry(content, modSeq, itemCount, contactsStamp);
+        mSize.addAndGet(entry.mWeight);
+        mCache.put(key, entry);
+    }
+
+    public void clear() {
+        mCache.invalidateAll();
+    }
+
+    /**
+     * @return hits, misses (absent or stale entries), evictions and usage
+     */
+    public Map<String, Long> getStats() {
+        // let the cache run its pending expirations first
+        mCache.cleanUp();
+
+        Map<String, Long> stats = new LinkedHashMap<String, Long>();
+        stats.put("hits", mHits.get());
+        stats.put("misses", mMisses.get() + mStale.get());
+        stats.put("stale", mStale.get());
+        stats.put("evictions", mEvictions.get());
+        stats.put("entries", mCache.size());
+        stats.put("size", mSize.get());
+        stats.put("maxSize", mMaxSize);
+        return stats;
+    }
+}
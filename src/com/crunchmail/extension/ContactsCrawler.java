@@ -2,22 +2,60 @@ package com.crunchmail.extension;
 
 import java.util.Set;
 import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.lang.reflect.Type;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.zip.GZIPInputStream;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.util.EntityUtils;
+import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.base.Joiner;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CountingInputStream;
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import com.google.gson.reflect.TypeToken;
 import com.google.gson.JsonParseException;
 import javax.mail.internet.InternetAddress;
@@ -25,9 +63,9 @@ import javax.mail.internet.AddressException;
 
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.mailbox.ContactConstants;
-import com.zimbra.common.account.ZAttrProvisioning;
 import com.zimbra.common.soap.Element;
 import com.zimbra.common.soap.MailConstants;
+import com.zimbra.common.util.Pair;
 import com.zimbra.cs.index.SortBy;
 import com.zimbra.cs.service.util.ItemId;
 import com.zimbra.cs.account.AuthToken;
@@ -35,19 +73,23 @@ import com.zimbra.cs.account.AuthTokenException;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.GalContact;
-import com.zimbra.cs.account.Server;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.Mailbox.FolderNode;
 import com.zimbra.cs.mailbox.MailboxManager;
 import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailServiceException;
 import com.zimbra.cs.mailbox.Folder;
 import com.zimbra.cs.mailbox.Mountpoint;
 import com.zimbra.cs.mailbox.Contact;
 import com.zimbra.cs.mailbox.ContactGroup;
 import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.mailbox.util.TypedIdList;
 
 import com.crunchmail.extension.Logger;
 import com.crunchmail.extension.UserSettings;
+import com.crunchmail.extension.http.HttpClientPool;
+import com.crunchmail.extension.http.JsonEntity;
+import com.crunchmail.extension.lib.AddressScanner;
 
 /**
  *
@@ -57,9 +99,28 @@ public abstract class ContactsCrawler {
     private static class NoMailException extends Exception {}
     private static class InvalidMailException extends Exception {}
     private static class FolderNodeIgnoredException extends Exception {}
+    // the circuit breaker of the server is open, it wasn't requested
+    private static class RemoteUnavailableException extends FolderNodeIgnoredException {}
     private static class EmptyGroupException extends Exception {}
 
-    private final Map<String, String> mGalAttrMap = new HashMap<String, String>() {
+    private static class RemoteErrorException extends Exception {
+        final int mStatus;
+
+        RemoteErrorException(int status) {
+            mStatus = status;
+        }
+    }
+
+    /**
+     * Carries a ServiceException out of a fork/join task
+     */
+    private static class CrawlTaskException extends RuntimeException {
+        CrawlTaskException(ServiceException cause) {
+            super(cause);
+        }
+    }
+
+    private static final Map<String, String> sGalAttrMap = new HashMap<String, String>() {
         {
             put("firstName", "givenName");
             put("lastName", "sn");
@@ -70,16 +131,21 @@ public abstract class ContactsCrawler {
     /**
      *
      */
-    public class Collection {
+    public static class Collection {
         private ContactsCollection mContacts = new ContactsCollection();
         private GroupsCollection mGroups = new GroupsCollection();
+        // Names of the shared folders not received in time
+        private List<String> mPending = new ArrayList<String>();
 
         public void merge(Collection other) {
             mContacts.merge(other.mContacts);
             mGroups.merge(other.mGroups);
+            mPending.addAll(other.mPending);
         }
 
         public void toElement(Element el) {
+            pendingToElement(el);
+
             if (mContacts.isEmpty()) {
                 // add empty element so client doesn't have to test
                 el.addNonUniqueElement("contacts");
@@ -100,15 +166,63 @@ public abstract class ContactsCrawler {
                 }
             }
         }
+
+        /**
+         * Write one page of the collection, contacts first then groups
+         * @return offset of the next page, -1 if this was the last one
+         */
+        public int toElement(Element el, int offset, int limit) {
+            if (offset == 0) pendingToElement(el);
+            int contactsCount = mContacts.size();
+            int total = contactsCount + mGroups.size();
+            int end = Math.min(total, offset + limit);
+
+            boolean hasContacts = false;
+            boolean hasGroups = false;
+            for (int i = offset; i < end; i++) {
+                if (i < contactsCount) {
+                    Element c = el.addNonUniqueElement("contacts");
+                    mContacts.get(i).toElement(c);
+                    hasContacts = true;
+                } else {
+                    Element g = el.addNonUniqueElement("groups");
+                    mGroups.get(i - contactsCount).toElement(g);
+                    hasGroups = true;
+                }
+            }
+
+            // add empty elements so client doesn't have to test
+            if (!hasContacts) el.addNonUniqueElement("contacts");
+            if (!hasGroups) el.addNonUniqueElement("groups");
+
+            return end < total ? end : -1;
+        }
+
+        private void pendingToElement(Element el) {
+            for (String name : mPending) {
+                Element p = el.addNonUniqueElement("pending");
+                p.addAttribute("name", name);
+            }
+        }
+
+        /**
+         * @return rough heap size of the collection, in bytes
+         */
+        int estimateSize() {
+            return estimateContentSize(mContacts, mGroups);
+        }
     }
 
     /**
-     *
+     * Doesn't hold a reference to the crawler either, so trees read from
+     * other servers can be cached once the request is over.
      */
-    public class Tree {
+    public static class Tree {
         private String mName;
         private boolean mHide = false;
         private boolean mIsShare;
+        // Shared folder not received in time, without content
+        private boolean mPending = false;
         private String mColor;
         private ContactsCollection mContacts = new ContactsCollection();
         private GroupsCollection mGroups = new GroupsCollection();
@@ -122,6 +236,7 @@ public abstract class ContactsCrawler {
             mName = nodeName;
             mColor = color;
             mIsShare = other.mIsShare;
+            mPending = other.mPending;
             mContacts.merge(other.mContacts);
             mGroups.merge(other.mGroups);
 
@@ -146,6 +261,7 @@ public abstract class ContactsCrawler {
                 Element a = f.addUniqueElement("_attrs");
                 a.addAttribute("isShare", mIsShare);
                 a.addAttribute("color", mColor);
+                if (mPending) a.addAttribute("pending", true);
 
                 if (mContacts.isEmpty()) {
                     // add empty element so client doesn't have to test
@@ -177,12 +293,23 @@ public abstract class ContactsCrawler {
                 subfolder.makeElement(el);
             }
         }
+
+        /**
+         * @return rough heap size of the tree, in bytes
+         */
+        int estimateSize() {
+            int size = 64 + stringSize(mName) + stringSize(mColor) + estimateContentSize(mContacts, mGroups);
+            for (Tree subfolder : mSubfolders) {
+                size += 8 + subfolder.estimateSize();
+            }
+            return size;
+        }
     }
 
     /**
      *
      */
-    class ContactsCollection implements Iterable<ContactObject> {
+    static class ContactsCollection implements Iterable<ContactObject> {
         private List<ContactObject> mCollection = new ArrayList<ContactObject>();
 
         void add(ContactObject contact) {
@@ -197,6 +324,14 @@ public abstract class ContactsCrawler {
             return mCollection.isEmpty();
         }
 
+        int size() {
+            return mCollection.size();
+        }
+
+        ContactObject get(int index) {
+            return mCollection.get(index);
+        }
+
         @Override
         public Iterator<ContactObject> iterator() {
             return mCollection.iterator();
@@ -204,47 +339,68 @@ public abstract class ContactsCrawler {
     }
 
     /**
-     *
+     * Contacts and groups don't hold a reference to the crawler that built them,
+     * so they can be kept in the contacts cache once the request is over.
      */
-    class ContactObject {
+    static class ContactObject {
         private String mId;
         private String mEmail;
         private String mName;
-        private Map<String, String> mProperties = new HashMap<String, String>();
-        private List<String> mTags = new ArrayList<String>();
+        // Properties are stored as values matching a key array shared by
+        // all the contacts of the crawl (see ProjectionPlan)
+        private String[] mPropertyKeys = EMPTY_STRINGS;
+        private String[] mPropertyValues = EMPTY_STRINGS;
+        private List<String> mTags = Collections.emptyList();
         private String mSourceType;
         public String mSourceRef;
         private boolean mGroupMember = false;
+        // Modified sequence of the contact, 0 for group members
+        private int mModSeq = 0;
 
-        private String parseAddress(String headerv) {
-    		String retValue = null;
-
-    		if (headerv.contains("<"))
-    			retValue = headerv.substring(headerv.indexOf("<")+1, headerv.indexOf(">",headerv.indexOf("<")));
-    		else
-    			retValue = headerv;
+        static boolean validateEmail(ContactsCrawler crawler, String email) {
+            long start = System.nanoTime();
+            try {
+                // Most addresses are simple enough to be checked without InternetAddress
+                if (AddressScanner.isSimpleAddress(email)) {
+                    return true;
+                }
 
-    		return retValue.replaceAll(",", "").replaceAll(" ", "").replaceAll("\t", "").replaceAll("\n", "").replaceAll("\r", "");
-	    }
+                boolean valid = false;
+                try {
+                    InternetAddress addr = new InternetAddress(email);
+                    addr.validate();
+                    valid = true;
+                } catch(AddressException e) {}
+                return valid;
+            } finally {
+                crawler.mValidationNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
 
-        private boolean validateEmail(String email) {
-            boolean valid = false;
-            try {
-                InternetAddress addr = new InternetAddress(email);
-                addr.validate();
-                valid = true;
-            } catch(AddressException e) {}
-            return valid;
+        // Used when reading a contact sent by another server
+        private ContactObject() {}
+
+        /**
+         * Group member sharing the projection of a member already resolved for another group
+         */
+        ContactObject(ContactObject resolved, String ref) {
+            mEmail = resolved.mEmail;
+            mPropertyKeys = resolved.mPropertyKeys;
+            mPropertyValues = resolved.mPropertyValues;
+            mGroupMember = true;
+            mSourceRef = ref;
+            mSourceType = "zimbra-group";
         }
 
-        public ContactObject(Contact contact) throws ServiceException, NoMailException, InvalidMailException {
-            this(contact, null);
+        public ContactObject(ContactsCrawler crawler, Contact contact) throws ServiceException, NoMailException, InvalidMailException {
+            this(crawler, contact, null);
         }
 
-        public ContactObject(Object object, String ref) throws ServiceException, NoMailException, InvalidMailException {
-            String[] includeFields = mSettings.getArray(UserSettings.CONTACTS_ATTRS, ",", mIncludeFieldsDefault);
-            // If we're being called by another server, use their defaults instead
-            if (mForceConsiderShared) includeFields = mIncludeFieldsDefault;
+        public ContactObject(ContactsCrawler crawler, Object object, String ref) throws ServiceException, NoMailException, InvalidMailException {
+            ProjectionPlan plan = crawler.mProjection;
+            Logger logger = crawler.mLogger;
+            // Don't build log messages for each contact when they're not logged
+            boolean debug = logger.isDebugEnabled();
 
             String debug_prefix = "";
             if (ref != null) {
@@ -252,18 +408,18 @@ public abstract class ContactsCrawler {
                 mGroupMember = true;
             }
 
+            mPropertyKeys = plan.mKeys;
+
             if (object instanceof String) {
 
                 // Inline group member
-                mLogger.debug(debug_prefix + "Making contact object with String instance: " + object);
-                mEmail = parseAddress((String) object);
+                if (debug) logger.debug(debug_prefix + "Making contact object with String instance: " + object);
+                mEmail = AddressScanner.extract((String) object);
 
-                if (!validateEmail(mEmail)) throw new InvalidMailException();
+                if (!validateEmail(crawler, mEmail)) throw new InvalidMailException();
 
                 // set empty properties since we don't have any
-                for (String field : includeFields) {
-                    mProperties.put(field, "");
-                }
+                mPropertyValues = plan.mEmptyValues;
 
                 mSourceRef = ref;
                 mSourceType = "zimbra-group";
@@ -272,23 +428,16 @@ public abstract class ContactsCrawler {
 
                 // Normal contact (local or shared) or contact group member
                 Contact contact = (Contact) object;
-                Map<String, String> contactFields = contact.getFields();
+                String email = contact.get("email");
 
-                if (contactFields.containsKey("email")) {
-                    mLogger.debug(debug_prefix + "Making contact object with Contact instance: " + contactFields.get("email"));
+                if (email != null) {
+                    if (debug) logger.debug(debug_prefix + "Making contact object with Contact instance: " + email);
 
-                    mEmail = contactFields.get("email");
+                    mEmail = email;
 
-                    if (!validateEmail(mEmail)) throw new InvalidMailException();
+                    if (!validateEmail(crawler, mEmail)) throw new InvalidMailException();
 
-                    for (String field : includeFields) {
-                        String value = contactFields.get(field);
-                        if (value != null) {
-                            mProperties.put(field, value);
-                        } else {
-                            mProperties.put(field, "");
-                        }
-                    }
+                    mPropertyValues = plan.project(contact);
 
                     // if building a normal contact, we need these attributes
                     if (!mGroupMember) {
@@ -297,6 +446,7 @@ public abstract class ContactsCrawler {
                         // Add an ID attribute for use by frontend.
                         // This is only usefull here, all other object types are group members
                         mId = contact.getAccount().getId() + ":" + contact.getId();
+                        mModSeq = contact.getModifiedSequence();
                         // For regular contacts we construct the sourceRef ourselves
                         mSourceRef = "contact:" + mId;
                         mSourceType = "zimbra-contact";
@@ -307,7 +457,7 @@ public abstract class ContactsCrawler {
 
                 } else {
                     // Contacts without an email address are useless to us
-                    mLogger.debug(debug_prefix + "Contact instance has no email, ignoring");
+                    if (debug) logger.debug(debug_prefix + "Contact instance has no email, ignoring");
                     throw new NoMailException();
                 }
 
@@ -324,34 +474,22 @@ public abstract class ContactsCrawler {
 
                 // Contacts without an email address are useless to us
                 if (email instanceof String) {
-                    mLogger.debug(debug_prefix + "Making contact object with GALContact instance: " + email);
+                    if (debug) logger.debug(debug_prefix + "Making contact object with GALContact instance: " + email);
                     mEmail = (String) email;
                 } else if (email instanceof String[]) {
                     // Multiple email addresses (alias), so get the main one
                     email = contactFields.get("zimbraMailDeliveryAddress");
-                    mLogger.debug(debug_prefix + "Making contact object with GALContact instance: " + email);
+                    if (debug) logger.debug(debug_prefix + "Making contact object with GALContact instance: " + email);
                     mEmail = (String) email;
                 } else {
                     // Contacts without an email address are useless to us
-                    mLogger.debug(debug_prefix + "GAL contact instance has no email, ignoring");
+                    if (debug) logger.debug(debug_prefix + "GAL contact instance has no email, ignoring");
                     throw new NoMailException();
                 }
 
-                if (!validateEmail(mEmail)) throw new InvalidMailException();
+                if (!validateEmail(crawler, mEmail)) throw new InvalidMailException();
 
-                for (String field : includeFields) {
-                    if (mGalAttrMap.containsKey(field)) {
-                        String galField = mGalAttrMap.get(field);
-                        String value = (String) contactFields.get(galField);
-                        if (value != null) {
-                            mProperties.put(field, value);
-                        } else {
-                            mProperties.put(field, "");
-                        }
-                    } else {
-                        mProperties.put(field, "");
-                    }
-                }
+                mPropertyValues = plan.projectGal(contactFields);
 
                 mSourceRef = ref;
                 mSourceType = "zimbra-group";
@@ -366,30 +504,45 @@ public abstract class ContactsCrawler {
                     if (field == "email") {
                         String content = eAttr.getText();
                         if (!Strings.isNullOrEmpty(content)) {
-                            mEmail = parseAddress(content);
+                            mEmail = AddressScanner.extract(content);
                         }
                     }
                 }
                 // Test if an email was found
                 if (mEmail == null) {
                     // Contacts without an email address are useless to us
-                    mLogger.debug(debug_prefix + "Element instance has no email, ignoring");
+                    if (debug) logger.debug(debug_prefix + "Element instance has no email, ignoring");
                     throw new NoMailException();
                 }
 
-                if (!validateEmail(mEmail)) throw new InvalidMailException();
+                if (!validateEmail(crawler, mEmail)) throw new InvalidMailException();
 
                 // TODO: figure out how to better handle properties
                 // for now we set empty ones
-                for (String field : includeFields) {
-                    mProperties.put(field, "");
-                }
+                mPropertyValues = plan.mEmptyValues;
 
                 mSourceRef = ref;
                 mSourceType = "zimbra-group";
             }
         }
 
+        /**
+         * @return rough heap size of the object, in bytes
+         */
+        int estimateSize() {
+            int size = 64 + stringSize(mId) + stringSize(mEmail) + stringSize(mName) + stringSize(mSourceType) + stringSize(mSourceRef);
+            // keys are shared, only count the values slots
+            size += 16 + 4 * mPropertyValues.length;
+            for (String value : mPropertyValues) {
+                // empty values are the shared "" literal
+                if (value != null && !value.isEmpty()) size += stringSize(value);
+            }
+            for (String tag : mTags) {
+                size += 8 + stringSize(tag);
+            }
+            return size;
+        }
+
         public void toElement(Element c) {
             c.addAttribute("email", mEmail);
             if (!mGroupMember) {
@@ -398,8 +551,8 @@ public abstract class ContactsCrawler {
             }
 
             Element p = c.addUniqueElement("properties");
-            for (Map.Entry<String, String> property : mProperties.entrySet()) {
-                p.addAttribute(property.getKey(), property.getValue());
+            for (int i = 0; i < mPropertyKeys.length; i++) {
+                p.addAttribute(mPropertyKeys[i], mPropertyValues[i]);
             }
 
             for (String tag : mTags) {
@@ -412,10 +565,53 @@ public abstract class ContactsCrawler {
         }
     }
 
+    private static final String[] EMPTY_STRINGS = new String[0];
+
+    /**
+     * Fields copied to the contacts properties, worked out once per crawl.
+     *
+     * All the contacts share the plan's key array and only own their values.
+     * Value arrays must not be modified once built, the empty one is shared.
+     */
+    static class ProjectionPlan {
+        final String[] mKeys;
+        // GAL attribute of each key, null if there is none
+        final String[] mGalKeys;
+        final String[] mEmptyValues;
+
+        ProjectionPlan(String[] includeFields) {
+            mKeys = includeFields.clone();
+            mGalKeys = new String[mKeys.length];
+            mEmptyValues = new String[mKeys.length];
+            for (int i = 0; i < mKeys.length; i++) {
+                mGalKeys[i] = sGalAttrMap.get(mKeys[i]);
+                mEmptyValues[i] = "";
+            }
+        }
+
+        String[] project(Contact contact) {
+            String[] values = new String[mKeys.length];
+            for (int i = 0; i < mKeys.length; i++) {
+                String value = contact.get(mKeys[i]);
+                values[i] = value != null ? value : "";
+            }
+            return values;
+        }
+
+        String[] projectGal(Map<String, Object> attrs) {
+            String[] values = new String[mKeys.length];
+            for (int i = 0; i < mKeys.length; i++) {
+                Object value = mGalKeys[i] != null ? attrs.get(mGalKeys[i]) : null;
+                values[i] = value instanceof String ? (String) value : "";
+            }
+            return values;
+        }
+    }
+
     /**
      *
      */
-    class GroupsCollection implements Iterable<GroupObject> {
+    static class GroupsCollection implements Iterable<GroupObject> {
         private List<GroupObject> mCollection = new ArrayList<GroupObject>();
 
         void add(GroupObject group) {
@@ -430,6 +626,14 @@ public abstract class ContactsCrawler {
             return mCollection.isEmpty();
         }
 
+        int size() {
+            return mCollection.size();
+        }
+
+        GroupObject get(int index) {
+            return mCollection.get(index);
+        }
+
         @Override
         public Iterator<GroupObject> iterator() {
             return mCollection.iterator();
@@ -439,67 +643,96 @@ public abstract class ContactsCrawler {
     /**
      *
      */
-    class GroupObject {
+    static class GroupObject {
         private String mId;
         private String mName;
         private List<ContactObject> mMembers = new ArrayList<ContactObject>();
         private List<String> mTags = new ArrayList<String>();
         private List<Map<String, String>> mFailedDeref = new ArrayList<Map<String, String>>();
+        private int mModSeq = 0;
         public String mSourceRef;
 
-        public GroupObject(Contact group, Mailbox mbox) throws ServiceException, EmptyGroupException {
+        // Used when reading a group sent by another server
+        private GroupObject() {}
+
+        public GroupObject(ContactsCrawler crawler, Contact group, Mailbox mbox) throws ServiceException, EmptyGroupException {
+            long start = System.nanoTime();
+            try {
+                build(crawler, group, mbox);
+            } finally {
+                Metrics.recordTime("crawl.groupDeref", start);
+            }
+        }
+
+        private void build(ContactsCrawler crawler, Contact group, Mailbox mbox) throws ServiceException, EmptyGroupException {
+            Logger logger = crawler.mLogger;
             String encodedGroupMembers = group.get(ContactConstants.A_groupMember);
 
             try {
                 ContactGroup contactGroup = ContactGroup.init(encodedGroupMembers);
-
-                contactGroup.derefAllMembers(mbox, mOctxt);
-                List<ContactGroup.Member> members = contactGroup.getDerefedMembers();
+                List<ContactGroup.Member> members = contactGroup.getMembers();
 
                 // A group without members is useless
                 if (members.isEmpty()) {
-                    mLogger.debug("Ignoring group "+ group.getFileAsString() +". It has no members.");
+                    logger.debug("Ignoring group "+ group.getFileAsString() +". It has no members.");
                     throw new EmptyGroupException();
                 }
 
-                mLogger.debug("Contact group: " + group.getFileAsString());
+                logger.debug("Contact group: " + group.getFileAsString());
 
                 // Add an ID attribute for use by frontend
                 mId = group.getAccount().getId() + ':' + group.getId();
+                mModSeq = group.getModifiedSequence();
                 mName = group.getFileAsString();
                 mTags = Arrays.asList(group.getTags());
 
-                for (ContactGroup.Member member : members) {
-                    Object memberObj = member.getDerefedObj();
-                    // build contact entry
-                    if (memberObj != null) {
-
-                        String ref = "group:" + mId;
-                        // Store sourceRef for existing check
-                        mSourceRef = ref;
-                        try {
-                            ContactObject contactObj = new ContactObject(memberObj, ref);
-                            mMembers.add(contactObj);
-                        } catch (InvalidMailException e) {
-                            mLogger.debug("Ignoring group member with invalid email");
-                        } catch (NoMailException e) {}
-
-                    } else {
+                String ref = "group:" + mId;
+                Object[] resolved = crawler.resolveMembers(members, mbox);
+                for (int i = 0; i < resolved.length; i++) {
+                    if (resolved[i] == FAILED_MEMBER) {
                         // Record failed member deref
+                        ContactGroup.Member member = members.get(i);
                         Map<String, String> failed = new HashMap<String, String>();
                         failed.put("type", member.getType().toString());
                         failed.put("value", member.getValue());
                         mFailedDeref.add(failed);
+                        continue;
+                    }
+
+                    // Store sourceRef for existing check
+                    mSourceRef = ref;
+                    if (resolved[i] instanceof ContactObject) {
+                        mMembers.add(new ContactObject((ContactObject) resolved[i], ref));
                     }
                 }
 
             } catch (ServiceException e) {
-                mLogger.warn("Unable to decode contact group", e);
+                logger.warn("Unable to decode contact group", e);
             }
         }
 
         // private List<String> mFailedDeref = new ArrayList<String>();
 
+        /**
+         * @return rough heap size of the object, in bytes
+         */
+        int estimateSize() {
+            int size = 96 + stringSize(mId) + stringSize(mName) + stringSize(mSourceRef);
+            for (ContactObject member : mMembers) {
+                size += 8 + member.estimateSize();
+            }
+            for (String tag : mTags) {
+                size += 8 + stringSize(tag);
+            }
+            for (Map<String, String> failed : mFailedDeref) {
+                size += 64;
+                for (Map.Entry<String, String> entry : failed.entrySet()) {
+                    size += 32 + stringSize(entry.getKey()) + stringSize(entry.getValue());
+                }
+            }
+            return size;
+        }
+
         public void toElement(Element g) {
             g.addAttribute("name", mName);
             g.addAttribute("id", mId);
@@ -519,28 +752,83 @@ public abstract class ContactsCrawler {
         }
     }
 
+    /**
+     * Contacts and groups of a single folder, as kept in the contacts cache
+     */
+    static class FolderContent {
+        final ContactsCollection mContacts = new ContactsCollection();
+        final GroupsCollection mGroups = new GroupsCollection();
+
+        boolean hasGroups() {
+            return !mGroups.isEmpty();
+        }
+
+        /**
+         * @return rough heap size of the content, in bytes
+         */
+        int estimateSize() {
+            return estimateContentSize(mContacts, mGroups);
+        }
+    }
+
+    private static int estimateContentSize(ContactsCollection contacts, GroupsCollection groups) {
+        int size = 128;
+        for (ContactObject contact : contacts) {
+            size += 8 + contact.estimateSize();
+        }
+        for (GroupObject group : groups) {
+            size += 8 + group.estimateSize();
+        }
+        return size;
+    }
+
+    private static int stringSize(String s) {
+        return s == null ? 0 : 40 + 2 * s.length();
+    }
+
     public class RemoteResponse {
         public boolean asTree = false;
         public Tree tree;
         public Collection collection;
         public Set<String> existing;
         public Collection existingCollection;
+        // Delta sync state of the remote crawl, missing from older versions
+        public Map<String, Integer> changeIds;
+        public String structure;
+        public List<String> deleted;
+        public boolean resync = false;
+        // Version of the content when answered from a shared crawl, for
+        // conditional requests (see RemoteResponseCache)
+        public String etag;
+        // Tree or collection already written out, when answering from a shared crawl
+        String serialized;
+
+        // Used when reading a response sent by another server
+        private RemoteResponse() {}
+
+        // The response is streamed out as soon as it's built, so it can
+        // point to the crawl results instead of copying them
 
         public RemoteResponse(Collection collection) {
-            this.collection = new Collection();
-            this.collection.merge(collection);
-            existingCollection = new Collection();
-            this.existingCollection.merge(mExistingCollection);
-            this.existing = new HashSet<String>(mExisting);
+            this.collection = collection;
+            this.existingCollection = mExistingCollection;
+            this.existing = mExisting;
+            setSyncState();
         }
 
         public RemoteResponse(Tree tree) {
             asTree = true;
-            this.tree = new Tree();
-            this.tree.merge(tree);
-            existingCollection = new Collection();
-            this.existingCollection.merge(mExistingCollection);
-            this.existing = new HashSet<String>(mExisting);
+            this.tree = tree;
+            this.existingCollection = mExistingCollection;
+            this.existing = mExisting;
+            setSyncState();
+        }
+
+        private void setSyncState() {
+            this.changeIds = mChangeIds;
+            this.structure = getStructure();
+            this.deleted = mDeleted;
+            this.resync = mResync;
         }
 
         public void mergeIn(Collection collection) {
@@ -550,157 +838,1472 @@ public abstract class ContactsCrawler {
         public void mergeIn(Tree tree, String nodeName, String color) {
             tree.merge(this.tree, nodeName, color);
         }
+    }
 
-        public void copyExisting(Collection existingCollection, Set<String> existing) {
-            existingCollection.merge(this.existingCollection);
-            existing.retainAll(this.existing);
+    /**
+     * A shared folder living on another mailbox server.
+     *
+     * Remote folders are discovered and requested before the local crawl starts,
+     * the crawl only reserves their slot. Content is merged once it has arrived.
+     */
+    private class RemoteFolder {
+        final String mServer;
+        final String mOwnerId;
+        final int mItemId;
+        final String mNodeName;
+        final String mColor;
+
+        // set by the crawl when it reaches the mountpoint
+        volatile boolean mReached = false;
+        volatile Tree mTreeNode;
+
+        // set by the collecting thread, from the call that answered first
+        RemoteResponse mResponse;
+        // not received before the request deadline
+        boolean mPending = false;
+
+        RemoteFolder(String server, String ownerId, int itemId, String nodeName, String color) {
+            mServer = server;
+            mOwnerId = ownerId;
+            mItemId = itemId;
+            mNodeName = nodeName;
+            mColor = color;
         }
     }
 
-    boolean mDebug;
-    Logger mLogger;
-    Mailbox mMbox;
-    OperationContext mOctxt;
-    UserSettings mSettings;
-    String[] mIncludeFieldsDefault;
-    boolean mForceConsiderShared;
-    public Set<String> mExisting;
-
-    Collection mCollection;
-    Tree mTree;
-    public Collection mExistingCollection = new Collection();
-
-    private String mAuthToken;
-    private boolean mAsTree = false;
-
     /**
-     * [ContactsCrawler description]
-     * @param   [description]
-     * @param   [description]
-     * @param   [description]
-     * @param   [description]
-     * @param   [description]
-     * @return  ContactsCrawler instance
+     * The remote folders requested from one server.
+     *
+     * A server slower than usual gets a second, hedged call: the first call
+     * to answer wins and the other one is aborted.
      */
-    protected ContactsCrawler(Mailbox mbox, Account account, boolean debug, Set<String> existing, String[] includeFieldsDefault, boolean forceConsiderShared) throws ServiceException {
-        mDebug = debug;
-        mLogger = new Logger(debug);
-        mMbox = mbox;
-        mOctxt = new OperationContext(mbox);
-        mSettings = new UserSettings(account);
-        mExisting = existing;
-        mIncludeFieldsDefault = includeFieldsDefault;
-        mForceConsiderShared = forceConsiderShared;
+    private class RemoteBatch {
+        final String mServer;
+        final List<RemoteFolder> mFolders;
+        final String[] mIncludeFields;
+        final List<RemoteCall> mCalls = new CopyOnWriteArrayList<RemoteCall>();
+        // calls submitted and not collected yet
+        final AtomicInteger mRunning = new AtomicInteger();
+
+        // set by the first call to answer, no need to hedge anymore
+        volatile boolean mAnswered = false;
+        // set by the collecting thread once the results are in, or given up on
+        volatile boolean mSettled = false;
+        ScheduledFuture<?> mHedge;
+
+        RemoteBatch(String server, List<RemoteFolder> folders, String[] includeFields) {
+            mServer = server;
+            mFolders = folders;
+            mIncludeFields = includeFields;
+        }
 
-        mAuthToken = getAuthToken();
+        /**
+         * @param winner call that answered, the others lost the race; null when giving up
+         */
+        void cancelCalls(RemoteCall winner) {
+            if (mHedge != null) mHedge.cancel(false);
+            for (RemoteCall call : mCalls) {
+                if (call != winner) call.cancel(winner != null);
+            }
+        }
     }
 
     /**
-     * [crawl description]
-     * @param  [description]
-     * @param  [description]
+     * One call for a batch of remote folders. Each call keeps its own results,
+     * and its HTTP requests so they can be aborted when not needed anymore.
      */
-    protected void crawl(ItemId root, boolean asTree) throws ServiceException {
-        FolderNode tree = mMbox.getFolderTree(mOctxt, root, true);
-        mAsTree = asTree;
-        if (asTree) {
+    private class RemoteCall implements Callable<RemoteCall> {
+        final RemoteBatch mBatch;
+        final boolean mHedged;
+        // read by the collecting thread once the call is done
+        final Map<RemoteFolder, RemoteResponse> mResponses = new HashMap<RemoteFolder, RemoteResponse>();
+        ServiceException mError;
+        // the requests failed, nothing was received
+        boolean mFailed = false;
+
+        private final Set<HttpPost> mRequests = Collections.newSetFromMap(new ConcurrentHashMap<HttpPost, Boolean>());
+        private volatile boolean mCancelled = false;
+        // cancelled because another call of the batch answered first
+        private volatile boolean mLost = false;
+
+        RemoteCall(RemoteBatch batch, boolean hedged) {
+            mBatch = batch;
+            mHedged = hedged;
+        }
+
+        @Override
+        public RemoteCall call() {
+            // Failed folders are already logged and simply have no response,
+            // they will be marked as pending
             try {
-                mTree = handleFolderNode(tree, mMbox);
-            } catch (FolderNodeIgnoredException e) {
-                // FolderNodeIgnoredException can't really reach here
-                // but we have to catch it. Log a warning if it happens.
-                mLogger.warn("We got a FolderNode ignored exception on ROOT. Something is wrong !", e);
+                fetchRemoteFolders(this);
+                if (!mFailed) mBatch.mAnswered = true;
+            } catch (ServiceException e) {
+                mError = e;
+            } catch (RuntimeException e) {
+                mError = ServiceException.FAILURE("Error while fetching remote folders", e);
             }
-        } else {
-            mCollection = new Collection();
-            try {
-                handleFolderNode(tree, mMbox);
-            } catch (FolderNodeIgnoredException e) {
-                // FolderNodeIgnoredException can't really reach here
-                // but we have to catch it. Log a warning if it happens.
-                mLogger.warn("We got a FolderNode ignored exception on ROOT. Something is wrong !", e);
+            return this;
+        }
+
+        boolean hasFailed() {
+            return mError != null || mFailed;
+        }
+
+        boolean isCancelled() {
+            return mCancelled;
+        }
+
+        boolean isLost() {
+            return mLost;
+        }
+
+        /**
+         * @return false if the call was cancelled, the request must not be sent
+         */
+        boolean register(HttpPost request) {
+            mRequests.add(request);
+            // a request registered while cancelling is aborted here
+            if (mCancelled) {
+                request.abort();
+                return false;
             }
+            return true;
         }
-    }
 
-    private String getAuthToken() {
-        try {
-            AuthToken token = mOctxt.getAuthToken();
-            return token.getEncoded();
-        } catch (ServiceException|AuthTokenException e) {
-            mLogger.warn("Unable to get encoded auth token: " + e);
+        void unregister(HttpPost request) {
+            mRequests.remove(request);
         }
-        return null;
-    }
 
-    private boolean shouldConsider(Folder folder) {
-        if (folder.getId() == Mailbox.ID_FOLDER_AUTO_CONTACTS) {
-            // We ignore "Emailed Contacts"
-            return false;
+        void cancel(boolean lost) {
+            mLost = lost;
+            mCancelled = true;
+            for (HttpPost request : mRequests) {
+                request.abort();
+            }
         }
-        // We consider to types:
-        //
-        //   - Actual contacts folders (local or mountpoints)
-        //   - Folders with Unknown type that are mountpoints (Root of entire accounts shares)
-        return (
-            folder.getDefaultView() == MailItem.Type.CONTACT ||
-            (folder.getDefaultView() == MailItem.Type.UNKNOWN && folder.getType() == MailItem.Type.MOUNTPOINT)
-        );
     }
 
-    private Tree handleFolderNode(FolderNode node, Mailbox mbox) throws ServiceException, FolderNodeIgnoredException {
-        Tree treeNode = null;
-        if (mAsTree) treeNode = new Tree();
+    /**
+     * Response to a batched remote folder request, keyed by remoteItemKey()
+     */
+    public static class RemoteBatchResponse {
+        public Map<String, RemoteResponse> responses = new HashMap<String, RemoteResponse>();
+        public Map<String, String> errors = new HashMap<String, String>();
+        // Items still matching the etag sent by the caller, answered without content
+        public List<String> notModified = new ArrayList<String>();
+    }
 
-        if (node.mFolder.getId() == Mailbox.ID_FOLDER_USER_ROOT) {
+    /**
+     * Hand-written JSON adapters for the objects exchanged between servers.
+     *
+     * They stream objects without any reflection and use the field names
+     * reflective Gson used to generate, so servers running an older version of
+     * the extension can still talk to us. Responses read are created as members
+     * of the crawler given to the adapter, which can be null for write-only use.
+     */
+    static class ContactObjectAdapter extends TypeAdapter<ContactObject> {
+        private final ContactsCrawler mCrawler;
 
-            // Root node has no content or type that we can handle
-            // simply register it as hidden and continue crawling on level-1 folders
-            handleFolderContent(node, node.mName, mbox, treeNode, true);
-            if (mAsTree) treeNode.mHide = true;
+        ContactObjectAdapter(ContactsCrawler crawler) {
+            mCrawler = crawler;
+        }
 
-        } else if (shouldConsider(node.mFolder)) {
-            mLogger.debug("Considering folder: " + node.mName + ". Type: " + node.mFolder.getType());
-            // Only consider mountpoints if we're in our own account.
-            // This means:
-            //
-            //   - current mbox object is the same as the mbox object passed to constructor
-            //   - AND forceConsiderShared is false, meaning we're not being called by another server
-            if (node.mFolder.getType() == MailItem.Type.MOUNTPOINT && (mbox == mMbox && !mForceConsiderShared)) {
+        @Override
+        public void write(JsonWriter out, ContactObject contact) throws IOException {
+            if (contact == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "mId", contact.mId);
+            writeString(out, "mEmail", contact.mEmail);
+            writeString(out, "mName", contact.mName);
+            out.name("mProperties").beginObject();
+            for (int i = 0; i < contact.mPropertyKeys.length; i++) {
+                writeString(out, contact.mPropertyKeys[i], contact.mPropertyValues[i]);
+            }
+            out.endObject();
+            out.name("mTags");
+            writeStringList(out, contact.mTags);
+            writeString(out, "mSourceType", contact.mSourceType);
+            writeString(out, "mSourceRef", contact.mSourceRef);
+            out.name("mGroupMember").value(contact.mGroupMember);
+            if (contact.mModSeq != 0) out.name("mModSeq").value(contact.mModSeq);
+            out.endObject();
+        }
 
-                handleMountpoint(node, mbox, treeNode);
+        @Override
+        public ContactObject read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            ContactObject contact = new ContactObject();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("mId")) {
+                    contact.mId = readString(in);
+                } else if (name.equals("mEmail")) {
+                    contact.mEmail = readString(in);
+                } else if (name.equals("mName")) {
+                    contact.mName = readString(in);
+                } else if (name.equals("mProperties")) {
+                    readProperties(in, contact);
+                } else if (name.equals("mTags")) {
+                    contact.mTags = new ArrayList<String>();
+                    readStringList(in, contact.mTags);
+                } else if (name.equals("mSourceType")) {
+                    contact.mSourceType = readString(in);
+                } else if (name.equals("mSourceRef")) {
+                    contact.mSourceRef = readString(in);
+                } else if (name.equals("mGroupMember")) {
+                    contact.mGroupMember = in.nextBoolean();
+                } else if (name.equals("mModSeq")) {
+                    contact.mModSeq = in.nextInt();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return contact;
+        }
 
-            } else if (node.mFolder.getType() != MailItem.Type.MOUNTPOINT) {
+        /**
+         * Read the properties into keys and values arrays. Keys are shared with
+         * the crawler's projection when they match it, which is the usual case.
+         */
+        private void readProperties(JsonReader in, ContactObject contact) throws IOException {
+            List<String> keys = new ArrayList<String>();
+            List<String> values = new ArrayList<String>();
+            in.beginObject();
+            while (in.hasNext()) {
+                keys.add(in.nextName());
+                values.add(readString(in));
+            }
+            in.endObject();
 
-                mLogger.debug("Address book: " + node.mName);
-                handleFolderContent(node, node.mName, mbox, treeNode);
+            String[] planKeys = mCrawler != null ? mCrawler.mProjection.mKeys : null;
+            if (planKeys != null && Arrays.asList(planKeys).equals(keys)) {
+                contact.mPropertyKeys = planKeys;
             } else {
-                mLogger.debug("Ignoring recursive mountpoint " + node.mName);
-                throw new FolderNodeIgnoredException();
+                contact.mPropertyKeys = keys.toArray(EMPTY_STRINGS);
             }
-        } else {
-            throw new FolderNodeIgnoredException();
+            contact.mPropertyValues = values.toArray(EMPTY_STRINGS);
         }
-
-        return treeNode;
     }
 
-    private void handleMountpoint(FolderNode node, Mailbox mbox, Tree treeNode) throws ServiceException, FolderNodeIgnoredException {
-        // Crawl mountpoint
-        mLogger.debug("Shared address book: " + node.mName);
-        if(mSettings.getBool(UserSettings.INCLUDE_SHARED)) {
-            Mountpoint mp = mbox.getMountpointById(mOctxt, node.mFolder.getId());
-            // Get all the elements necessary
-            String ownerId = mp.getOwnerId();
-            ItemId itemId = mp.getTarget();
-
-            // Check if account is on the same server, otherwise we can't do anything else here
-            Account ownerAccount = Provisioning.getInstance().getAccount(ownerId);
+    static class GroupObjectAdapter extends TypeAdapter<GroupObject> {
+        private final ContactsCrawler mCrawler;
+        private final ContactObjectAdapter mContactAdapter;
 
-            if (ownerAccount != null) {
+        GroupObjectAdapter(ContactsCrawler crawler, ContactObjectAdapter contactAdapter) {
+            mCrawler = crawler;
+            mContactAdapter = contactAdapter;
+        }
 
-                String currentServer = mbox.getAccount().getMailHost();
-                String ownerServer = ownerAccount.getMailHost();
+        @Override
+        public void write(JsonWriter out, GroupObject group) throws IOException {
+            if (group == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "mId", group.mId);
+            writeString(out, "mName", group.mName);
+            out.name("mMembers").beginArray();
+            for (ContactObject member : group.mMembers) {
+                mContactAdapter.write(out, member);
+            }
+            out.endArray();
+            out.name("mTags");
+            writeStringList(out, group.mTags);
+            out.name("mFailedDeref").beginArray();
+            for (Map<String, String> failed : group.mFailedDeref) {
+                writeStringMap(out, failed);
+            }
+            out.endArray();
+            writeString(out, "mSourceRef", group.mSourceRef);
+            if (group.mModSeq != 0) out.name("mModSeq").value(group.mModSeq);
+            out.endObject();
+        }
+
+        @Override
+        public GroupObject read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            GroupObject group = new GroupObject();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("mId")) {
+                    group.mId = readString(in);
+                } else if (name.equals("mName")) {
+                    group.mName = readString(in);
+                } else if (name.equals("mMembers")) {
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        ContactObject member = mContactAdapter.read(in);
+                        if (member != null) group.mMembers.add(member);
+                    }
+                    in.endArray();
+                } else if (name.equals("mTags")) {
+                    readStringList(in, group.mTags);
+                } else if (name.equals("mFailedDeref")) {
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        Map<String, String> failed = new HashMap<String, String>();
+                        readStringMap(in, failed);
+                        group.mFailedDeref.add(failed);
+                    }
+                    in.endArray();
+                } else if (name.equals("mSourceRef")) {
+                    group.mSourceRef = readString(in);
+                } else if (name.equals("mModSeq")) {
+                    group.mModSeq = in.nextInt();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return group;
+        }
+    }
+
+    static class CollectionAdapter extends TypeAdapter<Collection> {
+        private final ContactsCrawler mCrawler;
+        private final ContactObjectAdapter mContactAdapter;
+        private final GroupObjectAdapter mGroupAdapter;
+
+        CollectionAdapter(ContactsCrawler crawler, ContactObjectAdapter contactAdapter, GroupObjectAdapter groupAdapter) {
+            mCrawler = crawler;
+            mContactAdapter = contactAdapter;
+            mGroupAdapter = groupAdapter;
+        }
+
+        @Override
+        public void write(JsonWriter out, Collection collection) throws IOException {
+            if (collection == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("mContacts");
+            writeContacts(out, collection.mContacts, mContactAdapter);
+            out.name("mGroups");
+            writeGroups(out, collection.mGroups, mGroupAdapter);
+            out.endObject();
+        }
+
+        @Override
+        public Collection read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            Collection collection = new Collection();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("mContacts")) {
+                    readContacts(in, collection.mContacts, mContactAdapter);
+                } else if (name.equals("mGroups")) {
+                    readGroups(in, collection.mGroups, mGroupAdapter);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return collection;
+        }
+    }
+
+    static class TreeAdapter extends TypeAdapter<Tree> {
+        private final ContactsCrawler mCrawler;
+        private final ContactObjectAdapter mContactAdapter;
+        private final GroupObjectAdapter mGroupAdapter;
+
+        TreeAdapter(ContactsCrawler crawler, ContactObjectAdapter contactAdapter, GroupObjectAdapter groupAdapter) {
+            mCrawler = crawler;
+            mContactAdapter = contactAdapter;
+            mGroupAdapter = groupAdapter;
+        }
+
+        @Override
+        public void write(JsonWriter out, Tree tree) throws IOException {
+            if (tree == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "mName", tree.mName);
+            out.name("mHide").value(tree.mHide);
+            out.name("mIsShare").value(tree.mIsShare);
+            writeString(out, "mColor", tree.mColor);
+            out.name("mContacts");
+            writeContacts(out, tree.mContacts, mContactAdapter);
+            out.name("mGroups");
+            writeGroups(out, tree.mGroups, mGroupAdapter);
+            out.name("mSubfolders").beginArray();
+            for (Tree subfolder : tree.mSubfolders) {
+                write(out, subfolder);
+            }
+            out.endArray();
+            out.endObject();
+        }
+
+        @Override
+        public Tree read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            Tree tree = new Tree();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("mName")) {
+                    tree.mName = readString(in);
+                } else if (name.equals("mHide")) {
+                    tree.mHide = in.nextBoolean();
+                } else if (name.equals("mIsShare")) {
+                    tree.mIsShare = in.nextBoolean();
+                } else if (name.equals("mColor")) {
+                    tree.mColor = readString(in);
+                } else if (name.equals("mContacts")) {
+                    readContacts(in, tree.mContacts, mContactAdapter);
+                } else if (name.equals("mGroups")) {
+                    readGroups(in, tree.mGroups, mGroupAdapter);
+                } else if (name.equals("mSubfolders")) {
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        Tree subfolder = read(in);
+                        if (subfolder != null) tree.mSubfolders.add(subfolder);
+                    }
+                    in.endArray();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return tree;
+        }
+    }
+
+    static class RemoteResponseAdapter extends TypeAdapter<RemoteResponse> {
+        private final ContactsCrawler mCrawler;
+        private final TreeAdapter mTreeAdapter;
+        private final CollectionAdapter mCollectionAdapter;
+
+        RemoteResponseAdapter(ContactsCrawler crawler, TreeAdapter treeAdapter, CollectionAdapter collectionAdapter) {
+            mCrawler = crawler;
+            mTreeAdapter = treeAdapter;
+            mCollectionAdapter = collectionAdapter;
+        }
+
+        @Override
+        public void write(JsonWriter out, RemoteResponse response) throws IOException {
+            if (response == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("asTree").value(response.asTree);
+            if (response.serialized != null) {
+                out.name(response.asTree ? "tree" : "collection").jsonValue(response.serialized);
+            }
+            if (response.tree != null) {
+                out.name("tree");
+                mTreeAdapter.write(out, response.tree);
+            }
+            if (response.collection != null) {
+                out.name("collection");
+                mCollectionAdapter.write(out, response.collection);
+            }
+            if (response.existing != null) {
+                out.name("existing");
+                writeStringList(out, response.existing);
+            }
+            if (response.existingCollection != null) {
+                out.name("existingCollection");
+                mCollectionAdapter.write(out, response.existingCollection);
+            }
+            if (response.changeIds != null) {
+                out.name("changeIds").beginObject();
+                for (Map.Entry<String, Integer> entry : response.changeIds.entrySet()) {
+                    out.name(entry.getKey()).value(entry.getValue());
+                }
+                out.endObject();
+            }
+            writeString(out, "structure", response.structure);
+            if (response.deleted != null) {
+                out.name("deleted");
+                writeStringList(out, response.deleted);
+            }
+            out.name("resync").value(response.resync);
+            writeString(out, "etag", response.etag);
+            out.endObject();
+        }
+
+        @Override
+        public RemoteResponse read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            RemoteResponse response = mCrawler.new RemoteResponse();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("asTree")) {
+                    response.asTree = in.nextBoolean();
+                } else if (name.equals("tree")) {
+                    response.tree = mTreeAdapter.read(in);
+                } else if (name.equals("collection")) {
+                    response.collection = mCollectionAdapter.read(in);
+                } else if (name.equals("existing")) {
+                    response.existing = new HashSet<String>();
+                    readStringList(in, response.existing);
+                } else if (name.equals("existingCollection")) {
+                    response.existingCollection = mCollectionAdapter.read(in);
+                } else if (name.equals("changeIds")) {
+                    response.changeIds = new HashMap<String, Integer>();
+                    in.beginObject();
+                    while (in.hasNext()) {
+                        response.changeIds.put(in.nextName(), in.nextInt());
+                    }
+                    in.endObject();
+                } else if (name.equals("structure")) {
+                    response.structure = readString(in);
+                } else if (name.equals("deleted")) {
+                    response.deleted = new ArrayList<String>();
+                    readStringList(in, response.deleted);
+                } else if (name.equals("resync")) {
+                    response.resync = in.nextBoolean();
+                } else if (name.equals("etag")) {
+                    response.etag = readString(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return response;
+        }
+    }
+
+    static class RemoteBatchResponseAdapter extends TypeAdapter<RemoteBatchResponse> {
+        private final RemoteResponseAdapter mResponseAdapter;
+
+        RemoteBatchResponseAdapter(RemoteResponseAdapter responseAdapter) {
+            mResponseAdapter = responseAdapter;
+        }
+
+        @Override
+        public void write(JsonWriter out, RemoteBatchResponse batch) throws IOException {
+            if (batch == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("responses").beginObject();
+            for (Map.Entry<String, RemoteResponse> entry : batch.responses.entrySet()) {
+                out.name(entry.getKey());
+                mResponseAdapter.write(out, entry.getValue());
+            }
+            out.endObject();
+            out.name("errors");
+            writeStringMap(out, batch.errors);
+            if (!batch.notModified.isEmpty()) {
+                out.name("notModified");
+                writeStringList(out, batch.notModified);
+            }
+            out.endObject();
+        }
+
+        @Override
+        public RemoteBatchResponse read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            RemoteBatchResponse batch = new RemoteBatchResponse();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("responses")) {
+                    in.beginObject();
+                    while (in.hasNext()) {
+                        String key = in.nextName();
+                        RemoteResponse response = mResponseAdapter.read(in);
+                        if (response != null) batch.responses.put(key, response);
+                    }
+                    in.endObject();
+                } else if (name.equals("errors")) {
+                    readStringMap(in, batch.errors);
+                } else if (name.equals("notModified")) {
+                    readStringList(in, batch.notModified);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return batch;
+        }
+    }
+
+    /**
+     * Build a Gson instance using the hand-written adapters
+     * @param  crawler crawler owning the objects read, null if only used for writing
+     * @return Gson instance
+     */
+    public static Gson createGson(ContactsCrawler crawler) {
+        ContactObjectAdapter contactAdapter = new ContactObjectAdapter(crawler);
+        GroupObjectAdapter groupAdapter = new GroupObjectAdapter(crawler, contactAdapter);
+        CollectionAdapter collectionAdapter = new CollectionAdapter(crawler, contactAdapter, groupAdapter);
+        TreeAdapter treeAdapter = new TreeAdapter(crawler, contactAdapter, groupAdapter);
+        RemoteResponseAdapter responseAdapter = new RemoteResponseAdapter(crawler, treeAdapter, collectionAdapter);
+
+        return new GsonBuilder()
+            .registerTypeAdapter(ContactObject.class, contactAdapter)
+            .registerTypeAdapter(GroupObject.class, groupAdapter)
+            .registerTypeAdapter(Collection.class, collectionAdapter)
+            .registerTypeAdapter(Tree.class, treeAdapter)
+            .registerTypeAdapter(RemoteResponse.class, responseAdapter)
+            .registerTypeAdapter(RemoteBatchResponse.class, new RemoteBatchResponseAdapter(responseAdapter))
+            .create();
+    }
+
+    private static void writeContacts(JsonWriter out, ContactsCollection contacts, ContactObjectAdapter adapter) throws IOException {
+        // Keep the wrapping object of the reflective format
+        out.beginObject();
+        out.name("mCollection").beginArray();
+        for (ContactObject contact : contacts) {
+            adapter.write(out, contact);
+        }
+        out.endArray();
+        out.endObject();
+    }
+
+    private static void readContacts(JsonReader in, ContactsCollection contacts, ContactObjectAdapter adapter) throws IOException {
+        in.beginObject();
+        while (in.hasNext()) {
+            if (in.nextName().equals("mCollection")) {
+                in.beginArray();
+                while (in.hasNext()) {
+                    ContactObject contact = adapter.read(in);
+                    if (contact != null) contacts.add(contact);
+                }
+                in.endArray();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+    }
+
+    private static void writeGroups(JsonWriter out, GroupsCollection groups, GroupObjectAdapter adapter) throws IOException {
+        out.beginObject();
+        out.name("mCollection").beginArray();
+        for (GroupObject group : groups) {
+            adapter.write(out, group);
+        }
+        out.endArray();
+        out.endObject();
+    }
+
+    private static void readGroups(JsonReader in, GroupsCollection groups, GroupObjectAdapter adapter) throws IOException {
+        in.beginObject();
+        while (in.hasNext()) {
+            if (in.nextName().equals("mCollection")) {
+                in.beginArray();
+                while (in.hasNext()) {
+                    GroupObject group = adapter.read(in);
+                    if (group != null) groups.add(group);
+                }
+                in.endArray();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+    }
+
+    private static void writeString(JsonWriter out, String name, String value) throws IOException {
+        // null fields are left out, as reflective Gson does
+        if (value != null) out.name(name).value(value);
+    }
+
+    private static String readString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    private static void writeStringList(JsonWriter out, Iterable<String> values) throws IOException {
+        out.beginArray();
+        for (String value : values) {
+            out.value(value);
+        }
+        out.endArray();
+    }
+
+    private static void readStringList(JsonReader in, java.util.Collection<String> values) throws IOException {
+        in.beginArray();
+        while (in.hasNext()) {
+            values.add(readString(in));
+        }
+        in.endArray();
+    }
+
+    private static void writeStringMap(JsonWriter out, Map<String, String> values) throws IOException {
+        out.beginObject();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            writeString(out, entry.getKey(), entry.getValue());
+        }
+        out.endObject();
+    }
+
+    private static void readStringMap(JsonReader in, Map<String, String> values) throws IOException {
+        in.beginObject();
+        while (in.hasNext()) {
+            values.put(in.nextName(), readString(in));
+        }
+        in.endObject();
+    }
+
+    boolean mDebug;
+    Logger mLogger;
+    Mailbox mMbox;
+    OperationContext mOctxt;
+    UserSettings mSettings;
+    String[] mIncludeFieldsDefault;
+    // Fields included in contact properties
+    String[] mIncludeFields;
+    ProjectionPlan mProjection;
+    boolean mForceConsiderShared;
+    public Set<String> mExisting;
+
+    Collection mCollection;
+    Tree mTree;
+    public Collection mExistingCollection = new Collection();
+
+    private String mAuthToken;
+    private Gson mGson;
+    private boolean mAsTree = false;
+    private boolean mParallel = false;
+
+    // Remote folders by local mountpoint id, in discovery order
+    private Map<Integer, RemoteFolder> mRemoteFolders = new LinkedHashMap<Integer, RemoteFolder>();
+    private List<RemoteBatch> mRemoteBatches = new ArrayList<RemoteBatch>();
+    private CompletionService<RemoteCall> mRemoteCompletion;
+
+    // Time budget: System.nanoTime() after which remote folders are given up
+    // on and returned as pending, 0 if none
+    private long mDeadline = 0;
+    // Remote calls slower than this percentile of the server's latencies (0 disables hedging),
+    // but never sooner than the min delay, get a hedged call
+    private int mHedgePercentile;
+    private long mHedgeMinDelay;
+    private boolean mPartial = false;
+    // Latencies needed before a server's percentile is trusted for hedging
+    private static final int HEDGE_MIN_SAMPLES = 20;
+
+    // Delta sync: change sequence of each mailbox read (taken before reading it),
+    // folders crawled and structure of the remote ones
+    private ConcurrentMap<String, Integer> mChangeIds = new ConcurrentHashMap<String, Integer>();
+    private Map<String, Mailbox> mMailboxes = new ConcurrentHashMap<String, Mailbox>();
+    private Set<String> mFolderKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private List<String> mRemoteStructures = new ArrayList<String>();
+    private boolean mRemoteSyncSupported = true;
+    // Client's sync state, null for a full response
+    private Map<String, Integer> mSince;
+    private String mSinceStructure;
+    private List<String> mDeleted = new ArrayList<String>();
+    private boolean mDelta = false;
+    private boolean mResync = false;
+
+    // Contact folders stamp of each mailbox met during the crawl, see getContactsStamp()
+    private Map<String, Long> mContactsStamps = new ConcurrentHashMap<String, Long>();
+    private AtomicInteger mCacheHits = new AtomicInteger();
+    // Results written out once for RemoteFolderCache, see shareResults()
+    private String mSharedResults;
+    private String mSharedStructure;
+    private Set<String> mSharedIds;
+    private String mSharedVersion;
+    private AtomicInteger mCacheMisses = new AtomicInteger();
+
+    // Group members resolved during the crawl, see resolveMembers()
+    private ConcurrentMap<String, Object> mResolvedMembers = new ConcurrentHashMap<String, Object>();
+    private AtomicInteger mMemberLookups = new AtomicInteger();
+    private AtomicInteger mMemberReuses = new AtomicInteger();
+    // Number of GAL members asked per directory search
+    private int mGalBatchSize;
+
+    // Per crawl metrics
+    private AtomicLong mValidationNanos = new AtomicLong();
+    private AtomicInteger mContactsCount = new AtomicInteger();
+    private AtomicInteger mGroupsCount = new AtomicInteger();
+
+    /**
+     * [ContactsCrawler description]
+     * @param   [description]
+     * @param   [description]
+     * @param   [description]
+     * @param   [description]
+     * @param   [description]
+     * @return  ContactsCrawler instance
+     */
+    protected ContactsCrawler(Mailbox mbox, Account account, boolean debug, Set<String> existing, String[] includeFieldsDefault, boolean forceConsiderShared) throws ServiceException {
+        mDebug = debug;
+        mLogger = new Logger(debug);
+        mMbox = mbox;
+        mOctxt = new OperationContext(mbox);
+        mSettings = UserSettings.forAccount(account);
+        mExisting = existing;
+        mIncludeFieldsDefault = includeFieldsDefault;
+        mForceConsiderShared = forceConsiderShared;
+
+        // If we're being called by another server, use their defaults instead
+        if (mForceConsiderShared) {
+            mIncludeFields = mIncludeFieldsDefault;
+        } else {
+            mIncludeFields = mSettings.getArray(UserSettings.CONTACTS_ATTRS, ",", mIncludeFieldsDefault);
+        }
+        mProjection = new ProjectionPlan(mIncludeFields);
+        mGalBatchSize = ServerSettings.getInt(ServerSettings.GAL_BATCH_SIZE, 100);
+        mHedgePercentile = ServerSettings.getInt(ServerSettings.REMOTE_HEDGE_PERCENTILE, 95);
+        mHedgeMinDelay = ServerSettings.getLong(ServerSettings.REMOTE_HEDGE_MIN_DELAY, 100);
+
+        mAuthToken = getAuthToken();
+        mGson = createGson(this);
+    }
+
+    /**
+     * [crawl description]
+     * @param  [description]
+     * @param  [description]
+     */
+    protected void crawl(ItemId root, boolean asTree) throws ServiceException {
+        long start = System.nanoTime();
+        FolderNode tree = mMbox.getFolderTree(mOctxt, root, true);
+        Metrics.recordTime("crawl.folderTree", start);
+        mAsTree = asTree;
+        if (!asTree) mCollection = new Collection();
+
+        // Get the remote requests going before crawling local folders
+        dispatchRemoteFolders(tree);
+
+        ForkJoinPool pool = CrunchmailExtension.getCrawlPool();
+        if (pool != null) {
+            mLogger.debug("Crawling folder tree in parallel (parallelism: " + pool.getParallelism() + ")");
+            mParallel = true;
+            FolderTask task = new FolderTask(tree, mMbox, mCollection);
+            try {
+                pool.invoke(task);
+            } catch (CrawlTaskException e) {
+                throw (ServiceException) e.getCause();
+            }
+            if (task.mIgnored) {
+                mLogger.warn("We got a FolderNode ignored exception on ROOT. Something is wrong !");
+            } else if (asTree) {
+                mTree = task.getRawResult();
+            }
+        } else {
+            try {
+                Tree treeNode = handleFolderNode(tree, mMbox, mCollection);
+                if (asTree) mTree = treeNode;
+            } catch (FolderNodeIgnoredException e) {
+                // FolderNodeIgnoredException can't really reach here
+                // but we have to catch it. Log a warning if it happens.
+                mLogger.warn("We got a FolderNode ignored exception on ROOT. Something is wrong !", e);
+            }
+        }
+
+        collectRemoteFolders();
+        reconcileExisting();
+
+        if (mSince != null) {
+            if (mForceConsiderShared) {
+                // Called by another server: it filters the results itself, we just tell what was deleted
+                try {
+                    mDeleted = getDeletedIds(collectIds(), mSince);
+                } catch (ServiceException e) {
+                    if (!e.getCode().equals(MailServiceException.MUST_RESYNC)) throw e;
+                    mResync = true;
+                }
+            } else {
+                applyDelta();
+            }
+        }
+
+        if (CrunchmailExtension.getContactsCache() != null) {
+            mLogger.debug("Contacts cache: " + mCacheHits + " folder(s) reused, " + mCacheMisses + " crawled");
+        }
+        Metrics.recordNanos("crawl.emailValidation", mValidationNanos.get());
+        Metrics.recordCount("crawl.contacts", mContactsCount.get());
+        Metrics.recordCount("crawl.groups", mGroupsCount.get());
+        Metrics.recordTime("crawl.total", start);
+
+        if (mMemberLookups.get() > 0 || mMemberReuses.get() > 0) {
+            mLogger.debug("Group members: " + mMemberLookups + " resolved, " + mMemberReuses + " reused");
+        }
+    }
+
+    /**
+     * Find the mountpoints targeting other mailbox servers and request their
+     * content concurrently, so it is fetched while we crawl local folders.
+     */
+    private void dispatchRemoteFolders(FolderNode root) throws ServiceException {
+        ExecutorService executor = CrunchmailExtension.getRemoteExecutor();
+        if (executor == null || mForceConsiderShared || !mSettings.getBool(UserSettings.INCLUDE_SHARED)) {
+            return;
+        }
+
+        discoverRemoteFolders(root);
+        if (mRemoteFolders.isEmpty()) return;
+
+        // One request per target server
+        Map<String, List<RemoteFolder>> byServer = new LinkedHashMap<String, List<RemoteFolder>>();
+        for (RemoteFolder remote : mRemoteFolders.values()) {
+            List<RemoteFolder> folders = byServer.get(remote.mServer);
+            if (folders == null) {
+                folders = new ArrayList<RemoteFolder>();
+                byServer.put(remote.mServer, folders);
+            }
+            folders.add(remote);
+        }
+
+        mLogger.debug("Requesting " + mRemoteFolders.size() + " remote folder(s) from " + byServer.size() + " server(s)");
+        String[] includeFields = mSettings.getArray(UserSettings.CONTACTS_ATTRS, ",", mIncludeFieldsDefault);
+
+        mRemoteCompletion = new ExecutorCompletionService<RemoteCall>(executor);
+        ScheduledExecutorService scheduler = CrunchmailExtension.getMaintenanceExecutor();
+        for (Map.Entry<String, List<RemoteFolder>> entry : byServer.entrySet()) {
+            final RemoteBatch batch = new RemoteBatch(entry.getKey(), entry.getValue(), includeFields);
+            if (!submitRemoteCall(batch, false)) {
+                // the other servers are slow enough already, don't wait behind them
+                mLogger.warn("Too many remote requests running, returning server " + batch.mServer + " shared folders as pending");
+                for (RemoteFolder remote : batch.mFolders) {
+                    remote.mPending = true;
+                }
+                continue;
+            }
+            mRemoteBatches.add(batch);
+
+            long hedgeDelay = getHedgeDelay(batch.mServer);
+            if (hedgeDelay > 0 && scheduler != null) {
+                batch.mHedge = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (batch.mAnswered || batch.mSettled || getRemainingNanos() <= 0) return;
+                        mLogger.debug("Server " + batch.mServer + " is slow to answer, sending a hedged request");
+                        Metrics.increment("remote.hedged." + batch.mServer);
+                        submitRemoteCall(batch, true);
+                    }
+                }, hedgeDelay, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * @return false if the call was rejected, the remote executor being full
+     */
+    private boolean submitRemoteCall(RemoteBatch batch, boolean hedged) {
+        RemoteCall call = new RemoteCall(batch, hedged);
+        batch.mCalls.add(call);
+        batch.mRunning.incrementAndGet();
+        try {
+            mRemoteCompletion.submit(call);
+            return true;
+        } catch (RejectedExecutionException e) {
+            batch.mCalls.remove(call);
+            batch.mRunning.decrementAndGet();
+            Metrics.increment("remote.rejected." + batch.mServer);
+            return false;
+        }
+    }
+
+    /**
+     * @return time after which a call to the server is hedged, in nanoseconds,
+     *         0 if it shouldn't be (disabled, or not enough samples yet)
+     */
+    private long getHedgeDelay(String serverName) {
+        if (mHedgePercentile <= 0 || mHedgePercentile >= 100) return 0;
+        Metrics.Histogram latencies = Metrics.histogram("remote.fetch." + serverName, Metrics.UNIT_MICROS);
+        if (latencies.getCount() < HEDGE_MIN_SAMPLES) return 0;
+        long delay = TimeUnit.MICROSECONDS.toNanos(latencies.getPercentile(mHedgePercentile / 100.0));
+        return Math.max(delay, TimeUnit.MILLISECONDS.toNanos(mHedgeMinDelay));
+    }
+
+    /**
+     * @return time left before the request deadline, Long.MAX_VALUE if there is none
+     */
+    private long getRemainingNanos() {
+        return mDeadline == 0 ? Long.MAX_VALUE : mDeadline - System.nanoTime();
+    }
+
+    private void discoverRemoteFolders(FolderNode node) throws ServiceException {
+        // Follow the same path as the crawl: only contact folders are descended into
+        for (FolderNode subnode : node.mSubfolders) {
+            Folder folder = subnode.mFolder;
+            if (!shouldConsider(folder)) continue;
+
+            if (folder.getType() == MailItem.Type.MOUNTPOINT) {
+                Mountpoint mp = mMbox.getMountpointById(mOctxt, folder.getId());
+                Account ownerAccount = Provisioning.getInstance().getAccount(mp.getOwnerId());
+                if (ownerAccount == null) continue;
+
+                String ownerServer = ownerAccount.getMailHost();
+                if (!mMbox.getAccount().getMailHost().equals(ownerServer)) {
+                    RemoteFolder remote = new RemoteFolder(ownerServer, mp.getOwnerId(), mp.getTarget().getId(), subnode.mName, folder.getRgbColor().toString());
+                    mRemoteFolders.put(folder.getId(), remote);
+                }
+            } else {
+                discoverRemoteFolders(subnode);
+            }
+        }
+    }
+
+    /**
+     * Wait for the remote folders and merge them in their slot as they arrive.
+     * Folders still missing at the request deadline, or whose server failed
+     * to answer, are marked as pending.
+     */
+    private void collectRemoteFolders() throws ServiceException {
+        if (mRemoteCompletion == null) return;
+
+        int unsettled = mRemoteBatches.size();
+        try {
+            while (unsettled > 0) {
+                Future<RemoteCall> done;
+                if (mDeadline == 0) {
+                    done = mRemoteCompletion.take();
+                } else {
+                    long remaining = getRemainingNanos();
+                    // past the deadline, only take the calls already done
+                    done = remaining > 0 ? mRemoteCompletion.poll(remaining, TimeUnit.NANOSECONDS) : mRemoteCompletion.poll();
+                    if (done == null) break;
+                }
+
+                RemoteCall call = done.get();
+                RemoteBatch batch = call.mBatch;
+                int running = batch.mRunning.decrementAndGet();
+                // A failed call still leaves a chance to the other one, and
+                // failing past the deadline (timed out) leaves the folders pending
+                if (batch.mSettled || (call.hasFailed() && (running > 0 || getRemainingNanos() <= 0))) continue;
+
+                batch.mSettled = true;
+                unsettled--;
+                batch.cancelCalls(call);
+                if (call.mError != null) {
+                    // what the other servers sent is still returned
+                    mLogger.warn("Error while fetching remote folders from server " + batch.mServer + ", returning its shared folders as pending: " + call.mError);
+                    for (RemoteFolder remote : batch.mFolders) {
+                        remote.mPending = true;
+                    }
+                    continue;
+                }
+                if (call.mHedged) Metrics.increment("remote.hedgeWins." + batch.mServer);
+
+                for (RemoteFolder remote : batch.mFolders) {
+                    remote.mResponse = call.mResponses.get(remote);
+                    // server failing, or this folder failing on it
+                    if (remote.mResponse == null) remote.mPending = true;
+                    if (remote.mReached && remote.mResponse != null) {
+                        mergeRemoteSyncState(remote.mResponse);
+                        if (mAsTree) remote.mResponse.mergeIn(remote.mTreeNode, remote.mNodeName, remote.mColor);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw ServiceException.FAILURE("Interrupted while waiting for remote folders", e);
+        } catch (ExecutionException e) {
+            throw ServiceException.FAILURE("Error while fetching remote folders", e.getCause());
+        } finally {
+            // Out of time (or failing): abort what is still running, no more hedging
+            for (RemoteBatch batch : mRemoteBatches) {
+                if (batch.mSettled) continue;
+                batch.mSettled = true;
+                batch.cancelCalls(null);
+                for (RemoteFolder remote : batch.mFolders) {
+                    remote.mPending = true;
+                }
+            }
+        }
+
+        if (unsettled > 0) {
+            mLogger.warn("Request deadline reached, returning " + unsettled + " server(s) shared folders as pending");
+        }
+
+        for (RemoteFolder remote : mRemoteFolders.values()) {
+            if (remote.mReached && remote.mPending) {
+                markPending(remote.mServer, remote.mOwnerId, remote.mItemId, remote.mNodeName, remote.mColor, remote.mTreeNode, mCollection);
+            }
+        }
+
+        if (!mAsTree) {
+            // Collection content is appended in discovery order to stay deterministic
+            for (RemoteFolder remote : mRemoteFolders.values()) {
+                if (remote.mReached && remote.mResponse != null) remote.mResponse.mergeIn(mCollection);
+            }
+        }
+    }
+
+    /**
+     * Keep the slot of a remote folder we had no time to get, or whose server
+     * is failing: the client is told it is pending, and the next sync token
+     * can't give a delta for it.
+     */
+    private void markPending(String serverName, String ownerId, int itemId, String nodeName, String color, Tree treeNode, Collection collection) {
+        Metrics.increment("remote.pending." + serverName);
+        synchronized (this) {
+            mPartial = true;
+            mRemoteStructures.add("pending:" + remoteItemKey(ownerId, itemId));
+        }
+        if (mAsTree) {
+            treeNode.mName = nodeName;
+            treeNode.mColor = color;
+            treeNode.mIsShare = true;
+            treeNode.mPending = true;
+        } else {
+            collection.mPending.add(nodeName);
+        }
+    }
+
+    /**
+     * Move the objects the client already knows about to the existing collection.
+     *
+     * This runs once the whole crawl is done, walking the results in crawl order,
+     * so the crawl itself never has to touch mExisting and subtrees can be
+     * handled concurrently.
+     */
+    private void reconcileExisting() {
+        reconcileExisting(mExisting, mExistingCollection);
+    }
+
+    /**
+     * Only reads the results, so it can run for several requesters on shared ones
+     */
+    private void reconcileExisting(Set<String> existing, Collection existingCollection) {
+        if (existing.isEmpty()) return;
+
+        if (mAsTree) {
+            if (mTree != null) reconcileExisting(mTree, existing, existingCollection);
+        } else {
+            reconcileExisting(mCollection.mContacts, mCollection.mGroups, existing, existingCollection);
+        }
+    }
+
+    private void reconcileExisting(Tree tree, Set<String> existing, Collection existingCollection) {
+        reconcileExisting(tree.mContacts, tree.mGroups, existing, existingCollection);
+        for (Tree subfolder : tree.mSubfolders) {
+            reconcileExisting(subfolder, existing, existingCollection);
+        }
+    }
+
+    private void reconcileExisting(ContactsCollection contacts, GroupsCollection groups, Set<String> existing, Collection existingCollection) {
+        for (ContactObject contact : contacts) {
+            if (contact.mSourceRef != null && existing.remove(contact.mSourceRef)) {
+                existingCollection.mContacts.add(contact);
+            }
+        }
+        for (GroupObject group : groups) {
+            if (group.mSourceRef != null && existing.remove(group.mSourceRef)) {
+                existingCollection.mGroups.add(group);
+            }
+        }
+    }
+
+    /**
+     * Crawls a folder subtree on the crawl pool.
+     *
+     * In collection mode the task fills the collection it is given, which must
+     * not be shared with any other running task.
+     */
+    private class FolderTask extends RecursiveTask<Tree> {
+        private final FolderNode mNode;
+        private final Mailbox mTaskMbox;
+        private final Collection mTaskCollection;
+        boolean mIgnored = false;
+
+        FolderTask(FolderNode node, Mailbox mbox, Collection collection) {
+            mNode = node;
+            mTaskMbox = mbox;
+            mTaskCollection = collection;
+        }
+
+        @Override
+        protected Tree compute() {
+            try {
+                return handleFolderNode(mNode, mTaskMbox, mTaskCollection);
+            } catch (FolderNodeIgnoredException e) {
+                mIgnored = true;
+                return null;
+            } catch (ServiceException e) {
+                throw new CrawlTaskException(e);
+            }
+        }
+    }
+
+    /**
+     * Dereferences a contact group on the crawl pool
+     */
+    private class GroupTask extends RecursiveTask<GroupObject> {
+        private final Contact mGroup;
+        private final Mailbox mTaskMbox;
+
+        GroupTask(Contact group, Mailbox mbox) {
+            mGroup = group;
+            mTaskMbox = mbox;
+        }
+
+        @Override
+        protected GroupObject compute() {
+            try {
+                return new GroupObject(ContactsCrawler.this, mGroup, mTaskMbox);
+            } catch (EmptyGroupException e) {
+                return null;
+            } catch (ServiceException e) {
+                throw new CrawlTaskException(e);
+            }
+        }
+    }
+
+    // Markers of group members without a contact object, see resolveMembers()
+    static final Object FAILED_MEMBER = new Object();
+    static final Object NO_MAIL_MEMBER = new Object();
+
+    /**
+     * Key of a group member: contact references are relative to the group's mailbox
+     */
+    private static String memberKey(ContactGroup.Member member, Mailbox mbox) {
+        if (member.getType() == ContactGroup.Member.Type.CONTACT_REF) {
+            return member.getType() + ":" + mbox.getAccountId() + ":" + member.getValue();
+        }
+        return member.getType() + ":" + member.getValue();
+    }
+
+    /**
+     * Resolve the GAL members of a folder's groups with batched directory
+     * searches, before the groups are built. Members not found are left to
+     * the regular dereference.
+     */
+    private void prefetchGalMembers(List<Contact> groups, Mailbox mbox) {
+        Set<String> dns = new LinkedHashSet<String>();
+        for (Contact group : groups) {
+            try {
+                ContactGroup contactGroup = ContactGroup.init(group.get(ContactConstants.A_groupMember));
+                for (ContactGroup.Member member : contactGroup.getMembers()) {
+                    if (member.getType() == ContactGroup.Member.Type.GAL_REF
+                            && !mResolvedMembers.containsKey(memberKey(member, mbox))) {
+                        dns.add(member.getValue());
+                    }
+                }
+            } catch (ServiceException e) {
+                // reported when the group is built
+            }
+        }
+        if (dns.isEmpty()) {
+            return;
+        }
+
+        Map<String, GalContact> found;
+        try {
+            GalMemberResolver resolver = new GalMemberResolver(mProjection.mGalKeys, mGalBatchSize, mLogger);
+            found = resolver.resolve(dns);
+        } catch (ServiceException e) {
+            mLogger.warn("Unable to resolve GAL members in batch, falling back to per-member lookups", e);
+            return;
+        }
+
+        for (String dn : dns) {
+            GalContact contact = found.get(dn.toLowerCase());
+            if (contact == null) continue;
+            try {
+                mResolvedMembers.putIfAbsent(ContactGroup.Member.Type.GAL_REF + ":" + dn, resolveMember(contact));
+                mMemberLookups.incrementAndGet();
+            } catch (ServiceException e) {
+                // left to the regular dereference
+            }
+        }
+    }
+
+    /**
+     * Resolve the members of a group. Members already resolved for another
+     * group of the crawl are reused, the others are dereferenced together.
+     *
+     * @return for each member, its contact object (to be copied with the group's
+     *         ref), NO_MAIL_MEMBER if it has no usable email or FAILED_MEMBER if
+     *         it couldn't be dereferenced
+     */
+    Object[] resolveMembers(List<ContactGroup.Member> members, Mailbox mbox) throws ServiceException {
+        Object[] resolved = new Object[members.size()];
+        // members to dereference, with their positions in the group
+        Map<String, List<Integer>> pending = new LinkedHashMap<String, List<Integer>>();
+        ContactGroup toDeref = null;
+
+        for (int i = 0; i < resolved.length; i++) {
+            ContactGroup.Member member = members.get(i);
+            String key = memberKey(member, mbox);
+            Object cached = mResolvedMembers.get(key);
+            if (cached != null) {
+                resolved[i] = cached;
+                mMemberReuses.incrementAndGet();
+                continue;
+            }
+
+            List<Integer> positions = pending.get(key);
+            if (positions == null) {
+                positions = new ArrayList<Integer>(1);
+                pending.put(key, positions);
+                if (toDeref == null) toDeref = ContactGroup.init();
+                toDeref.addMember(member.getType(), member.getValue());
+            }
+            positions.add(i);
+        }
+
+        if (toDeref != null) {
+            toDeref.derefAllMembers(mbox, mOctxt);
+            for (ContactGroup.Member member : toDeref.getMembers()) {
+                String key = memberKey(member, mbox);
+                List<Integer> positions = pending.remove(key);
+                if (positions == null) continue;
+
+                mMemberLookups.incrementAndGet();
+                Object value = resolveMember(member.getDerefedObj());
+                // another group may have resolved it meanwhile, keep a single one
+                Object previous = mResolvedMembers.putIfAbsent(key, value);
+                if (previous != null) value = previous;
+                for (int i : positions) {
+                    resolved[i] = value;
+                }
+            }
+        }
+
+        // members Zimbra didn't give back
+        for (List<Integer> positions : pending.values()) {
+            for (int i : positions) {
+                resolved[i] = FAILED_MEMBER;
+            }
+        }
+
+        return resolved;
+    }
+
+    private Object resolveMember(Object derefed) throws ServiceException {
+        if (derefed == null) {
+            return FAILED_MEMBER;
+        }
+        try {
+            // the ref is set on the copies made for each group
+            return new ContactObject(this, derefed, "");
+        } catch (InvalidMailException e) {
+            mLogger.debug("Ignoring group member with invalid email");
+        } catch (NoMailException e) {}
+        return NO_MAIL_MEMBER;
+    }
+
+    private <T> T joinTask(ForkJoinTask<T> task) throws ServiceException {
+        try {
+            return task.join();
+        } catch (CrawlTaskException e) {
+            throw (ServiceException) e.getCause();
+        }
+    }
+
+    private String getAuthToken() {
+        try {
+            AuthToken token = mOctxt.getAuthToken();
+            return token.getEncoded();
+        } catch (ServiceException|AuthTokenException e) {
+            mLogger.warn("Unable to get encoded auth token: " + e);
+        }
+        return null;
+    }
+
+    private boolean shouldConsider(Folder folder) {
+        if (folder.getId() == Mailbox.ID_FOLDER_AUTO_CONTACTS) {
+            // We ignore "Emailed Contacts"
+            return false;
+        }
+        // We consider to types:
+        //
+        //   - Actual contacts folders (local or mountpoints)
+        //   - Folders with Unknown type that are mountpoints (Root of entire accounts shares)
+        return (
+            folder.getDefaultView() == MailItem.Type.CONTACT ||
+            (folder.getDefaultView() == MailItem.Type.UNKNOWN && folder.getType() == MailItem.Type.MOUNTPOINT)
+        );
+    }
+
+    private Tree handleFolderNode(FolderNode node, Mailbox mbox, Collection collection) throws ServiceException, FolderNodeIgnoredException {
+        Tree treeNode = null;
+        if (mAsTree) treeNode = new Tree();
+
+        if (node.mFolder.getId() == Mailbox.ID_FOLDER_USER_ROOT) {
+
+            // Root node has no content or type that we can handle
+            // simply register it as hidden and continue crawling on level-1 folders
+            handleFolderContent(node, node.mName, mbox, treeNode, collection, true);
+            if (mAsTree) treeNode.mHide = true;
+
+        } else if (shouldConsider(node.mFolder)) {
+            mLogger.debug("Considering folder: " + node.mName + ". Type: " + node.mFolder.getType());
+            // Only consider mountpoints if we're in our own account.
+            // This means:
+            //
+            //   - current mbox object is the same as the mbox object passed to constructor
+            //   - AND forceConsiderShared is false, meaning we're not being called by another server
+            if (node.mFolder.getType() == MailItem.Type.MOUNTPOINT && (mbox == mMbox && !mForceConsiderShared)) {
+
+                handleMountpoint(node, mbox, treeNode, collection);
+
+            } else if (node.mFolder.getType() != MailItem.Type.MOUNTPOINT) {
+
+                mLogger.debug("Address book: " + node.mName);
+                handleFolderContent(node, node.mName, mbox, treeNode, collection);
+            } else {
+                mLogger.debug("Ignoring recursive mountpoint " + node.mName);
+                throw new FolderNodeIgnoredException();
+            }
+        } else {
+            throw new FolderNodeIgnoredException();
+        }
+
+        return treeNode;
+    }
+
+    private void handleMountpoint(FolderNode node, Mailbox mbox, Tree treeNode, Collection collection) throws ServiceException, FolderNodeIgnoredException {
+        // Crawl mountpoint
+        mLogger.debug("Shared address book: " + node.mName);
+        if(mSettings.getBool(UserSettings.INCLUDE_SHARED)) {
+            RemoteFolder remote = mRemoteFolders.get(node.mFolder.getId());
+            if (remote != null) {
+                // Already requested from the other server, just reserve the slot
+                mLogger.debug("Content already requested from remote server " + remote.mServer);
+                remote.mTreeNode = treeNode;
+                remote.mReached = true;
+                return;
+            }
+
+            Mountpoint mp = mbox.getMountpointById(mOctxt, node.mFolder.getId());
+            // Get all the elements necessary
+            String ownerId = mp.getOwnerId();
+            ItemId itemId = mp.getTarget();
+
+            // Check if account is on the same server, otherwise we can't do anything else here
+            Account ownerAccount = Provisioning.getInstance().getAccount(ownerId);
+
+            if (ownerAccount != null) {
+
+                String currentServer = mbox.getAccount().getMailHost();
+                String ownerServer = ownerAccount.getMailHost();
 
                 if (currentServer.equals(ownerServer)) {
                     mLogger.debug("Target account is on same server, crawling mountpoint");
@@ -710,186 +2313,848 @@ public abstract class ContactsCrawler {
 
                         // will throw an exception if current user does not have sufficient permissions on owner's object
                         // IMPORTANT: needs false as last argument for exception to be thrown
+                        long start = System.nanoTime();
                         FolderNode sharedFolder = rmbox.getFolderTree(mOctxt, itemId, false);
+                        Metrics.recordTime("crawl.folderTree", start);
+
+                        // Two options here :
+                        //
+                        //   - Mountpoint is a classic share: treat it normally
+                        //   - Mountpoint is the Root of a full-account share: register the node with the local name but ignore its content
+                        boolean skipContent = false;
+                        if (sharedFolder.mFolder.getId() == Mailbox.ID_FOLDER_USER_ROOT) {
+                            skipContent = true;
+                        }
+                        handleFolderContent(sharedFolder, node.mName, rmbox, treeNode, collection, skipContent);
+
+                    } catch (ServiceException e) {
+
+                        if (e.getCode().equals(ServiceException.PERM_DENIED)) {
+                            // if it is a permission denied, fail gracefully
+                            mLogger.debug("Ignoring shared address book: " + mp.getPath() + ". Permission denied.");
+                            throw new FolderNodeIgnoredException();
+                        } else {
+                            // re-raise
+                            throw e;
+                        }
+
+                    }
+                } else {
+                    // Request the folder content from the other server
+                    mLogger.debug("Fetching content from remote server");
+                    String[] includeFields = mSettings.getArray(UserSettings.CONTACTS_ATTRS, ",", mIncludeFieldsDefault);
+                    String color = node.mFolder.getRgbColor().toString();
+
+                    handleRemoteFolderContent(ownerServer, ownerId, itemId.getId(), node.mName, includeFields, color, treeNode, collection);
+                }
+            } else {
+                // In some odd cases, the owner can be null.
+                // In this case, ignore the mountpoint
+                mLogger.debug("Ignoring shared address book: " + mp.getPath() + ". Owner is null.");
+                throw new FolderNodeIgnoredException();
+            }
+        }
+    }
+
+    private void handleFolderContent(FolderNode node, String nodeName, Mailbox mbox, Tree treeNode, Collection collection) throws ServiceException {
+        // This is the mose commonly used version.
+        // skipContent is only passed when folder is the local root node or full-account root mountpoint
+        handleFolderContent(node, nodeName, mbox, treeNode, collection, false);
+    }
+
+    private void handleFolderContent(FolderNode node, String nodeName, Mailbox mbox, Tree treeNode, Collection collection, boolean skipContent) throws ServiceException {
+
+        Folder f = node.mFolder;
+
+        if (mAsTree) {
+            treeNode.mName = nodeName;
+            treeNode.mIsShare = mForceConsiderShared || mbox != mMbox;
+            treeNode.mColor = f.getRgbColor().toString();
+        }
+
+        ContactsCollection contactsTarget = mAsTree ? treeNode.mContacts : collection.mContacts;
+        GroupsCollection groupsTarget = mAsTree ? treeNode.mGroups : collection.mGroups;
+
+        if (!skipContent) {
+            FolderContent content = getFolderContent(f, mbox);
+            contactsTarget.merge(content.mContacts);
+            groupsTarget.merge(content.mGroups);
+        }
+
+        // Recurse subtree
+        if (mParallel && node.mSubfolders.size() > 1) {
+            // Each sibling gets its own collection, merged back in folder order
+            List<FolderTask> tasks = new ArrayList<FolderTask>();
+            for (FolderNode subnode : node.mSubfolders) {
+                FolderTask task = new FolderTask(subnode, mbox, mAsTree ? null : new Collection());
+                task.fork();
+                tasks.add(task);
+            }
+            for (FolderTask task : tasks) {
+                Tree child = joinTask(task);
+                if (task.mIgnored) continue;
+                if (mAsTree) {
+                    treeNode.mSubfolders.add(child);
+                } else {
+                    collection.merge(task.mTaskCollection);
+                }
+            }
+        } else {
+            for (FolderNode subnode : node.mSubfolders) {
+                try {
+                    Tree child = handleFolderNode(subnode, mbox, collection);
+                    if (mAsTree) {
+                        treeNode.mSubfolders.add(child);
+                    }
+                } catch (FolderNodeIgnoredException e) {}
+            }
+        }
+    }
+
+    /**
+     * Get the contacts and groups of a folder, from the cache if it didn't change since
+     */
+    private FolderContent getFolderContent(Folder folder, Mailbox mbox) throws ServiceException {
+        // The change sequence must be read before the content for delta sync
+        String ownerId = mbox.getAccountId();
+        if (!mChangeIds.containsKey(ownerId)) {
+            mChangeIds.putIfAbsent(ownerId, mbox.getLastChangeID());
+            mMailboxes.put(ownerId, mbox);
+        }
+        mFolderKeys.add(ownerId + ":" + folder.getId());
+
+        ContactsCache cache = CrunchmailExtension.getContactsCache();
+        if (cache == null) {
+            return counted(crawlFolderContent(folder, mbox));
+        }
+
+        // Stamps are read before crawling: anything changed meanwhile invalidates the entry
+        String key = ContactsCache.key(mMbox.getAccountId(), mbox.getAccountId(), folder.getId(), mIncludeFields);
+        int modSeq = folder.getImapMODSEQ();
+        long itemCount = folder.getItemCount();
+        long contactsStamp = getContactsStamp(mbox);
+
+        FolderContent content = cache.get(key, modSeq, itemCount, contactsStamp);
+        if (content != null) {
+            mCacheHits.incrementAndGet();
+            return counted(content);
+        }
+
+        mCacheMisses.incrementAndGet();
+        content = crawlFolderContent(folder, mbox);
+        cache.put(key, content, modSeq, itemCount, contactsStamp);
+        return counted(content);
+    }
+
+    private FolderContent counted(FolderContent content) {
+        mContactsCount.addAndGet(content.mContacts.size());
+        mGroupsCount.addAndGet(content.mGroups.size());
+        return content;
+    }
+
+    /**
+     * Stamp of all the contact folders of a mailbox, changes with any of their content.
+     * Computed once per mailbox and crawl.
+     */
+    private long getContactsStamp(Mailbox mbox) throws ServiceException {
+        Long stamp = mContactsStamps.get(mbox.getAccountId());
+        if (stamp == null) {
+            stamp = ContactsCache.contactsStamp(mbox);
+            mContactsStamps.put(mbox.getAccountId(), stamp);
+        }
+        return stamp;
+    }
+
+    private FolderContent crawlFolderContent(Folder folder, Mailbox mbox) throws ServiceException {
+        FolderContent content = new FolderContent();
+
+        // This will return contacts and contact groups
+        long start = System.nanoTime();
+        List<Contact> contacts = mbox.getContactList(mOctxt, folder.getId(), SortBy.NAME_ASC);
+        Metrics.recordTime("crawl.contactList", start);
+
+        // GAL members of all the groups are resolved together first
+        List<Contact> groups = new ArrayList<Contact>();
+        for (Contact contact : contacts) {
+            if (contact.isContactGroup()) groups.add(contact);
+        }
+        if (!groups.isEmpty()) {
+            prefetchGalMembers(groups, mbox);
+        }
+
+        // In parallel mode groups are dereferenced on the pool while
+        // we go through the plain contacts, then joined in list order
+        List<GroupTask> groupTasks = new ArrayList<GroupTask>();
+
+        for (Contact contact : contacts) {
+            if (contact.isContactGroup()) {
+                if (mParallel) {
+                    GroupTask task = new GroupTask(contact, mbox);
+                    task.fork();
+                    groupTasks.add(task);
+                } else {
+                    try {
+                        content.mGroups.add(new GroupObject(this, contact, mbox));
+                    } catch (EmptyGroupException e) {}
+                }
+            } else {
+                try {
+                    content.mContacts.add(new ContactObject(this, contact));
+                } catch (InvalidMailException e) {
+                    mLogger.debug("Ignoring contact instance with invalid email");
+                } catch (NoMailException e) {}
+            }
+        }
+
+        for (GroupTask task : groupTasks) {
+            GroupObject groupObj = joinTask(task);
+            if (groupObj != null) content.mGroups.add(groupObj);
+        }
+
+        return content;
+    }
+
+    /**
+     * Keep what the remote crawl needs for delta sync. Responses from servers
+     * running an older version have no sync state and force a full response.
+     */
+    private void mergeRemoteSyncState(RemoteResponse response) {
+        if (response.changeIds == null || response.structure == null) {
+            mRemoteSyncSupported = false;
+            return;
+        }
+        mRemoteStructures.add(response.structure);
+        for (Map.Entry<String, Integer> entry : response.changeIds.entrySet()) {
+            mChangeIds.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+        if (response.resync) {
+            mResync = true;
+        } else if (response.deleted != null) {
+            mDeleted.addAll(response.deleted);
+        }
+    }
+
+    /**
+     * Hash of everything that, when changed, can't be described as a list of
+     * changed contacts: crawled folders, tree shape, included fields.
+     */
+    private String getStructure() {
+        List<String> parts = new ArrayList<String>(mFolderKeys);
+        parts.addAll(mRemoteStructures);
+        Collections.sort(parts);
+
+        StringBuilder sb = new StringBuilder(mAsTree ? "tree" : "collection");
+        sb.append('|').append(Joiner.on(",").join(mIncludeFields));
+        for (String part : parts) {
+            sb.append('|').append(part);
+        }
+        if (mAsTree && mTree != null) {
+            appendTreeShape(sb, mTree);
+        }
+        return Hashing.md5().hashBytes(sb.toString().getBytes(Charsets.UTF_8)).toString();
+    }
 
-                        // Two options here :
-                        //
-                        //   - Mountpoint is a classic share: treat it normally
-                        //   - Mountpoint is the Root of a full-account share: register the node with the local name but ignore its content
-                        boolean skipContent = false;
-                        if (sharedFolder.mFolder.getId() == Mailbox.ID_FOLDER_USER_ROOT) {
-                            skipContent = true;
-                        }
-                        handleFolderContent(sharedFolder, node.mName, rmbox, treeNode, skipContent);
+    private void appendTreeShape(StringBuilder sb, Tree tree) {
+        sb.append('(').append(tree.mName).append(',').append(tree.mColor).append(',').append(tree.mIsShare).append(',').append(tree.mHide);
+        for (Tree subfolder : tree.mSubfolders) {
+            appendTreeShape(sb, subfolder);
+        }
+        sb.append(')');
+    }
 
-                    } catch (ServiceException e) {
+    /**
+     * @return ids of all the contacts and groups of the results
+     */
+    private Set<String> collectIds() {
+        Set<String> ids = new HashSet<String>();
+        if (mAsTree) {
+            if (mTree != null) collectIds(mTree, ids);
+        } else {
+            collectIds(mCollection.mContacts, mCollection.mGroups, ids);
+        }
+        return ids;
+    }
 
-                        if (e.getCode().equals(ServiceException.PERM_DENIED)) {
-                            // if it is a permission denied, fail gracefully
-                            mLogger.debug("Ignoring shared address book: " + mp.getPath() + ". Permission denied.");
-                            throw new FolderNodeIgnoredException();
-                        } else {
-                            // re-raise
-                            throw e;
-                        }
+    private void collectIds(Tree tree, Set<String> ids) {
+        collectIds(tree.mContacts, tree.mGroups, ids);
+        for (Tree subfolder : tree.mSubfolders) {
+            collectIds(subfolder, ids);
+        }
+    }
+
+    private void collectIds(ContactsCollection contacts, GroupsCollection groups, Set<String> ids) {
+        for (ContactObject contact : contacts) {
+            if (contact.mId != null) ids.add(contact.mId);
+        }
+        for (GroupObject group : groups) {
+            if (group.mId != null) ids.add(group.mId);
+        }
+    }
 
+    /**
+     * Ids of the contacts and groups of the local mailboxes the client must drop:
+     * deleted since its token, or modified and not part of the results anymore
+     * (moved out of the crawled folders, email removed...).
+     *
+     * Only the crawled folders are looked at: the ids of the contacts of other
+     * folders would be of no use, and aren't the requester's to see in shared
+     * mailboxes. Deletions aren't tied to a folder there, so when a crawled
+     * folder of a shared mailbox changed along with deletions, the client is
+     * asked to resync instead.
+     *
+     * @throws ServiceException MUST_RESYNC if the mailbox doesn't track deletions that far back
+     */
+    private List<String> getDeletedIds(Set<String> present, Map<String, Integer> sinceIds) throws ServiceException {
+        List<String> deleted = new ArrayList<String>();
+        for (Map.Entry<String, Mailbox> entry : mMailboxes.entrySet()) {
+            String ownerId = entry.getKey();
+            Mailbox mbox = entry.getValue();
+            Integer since = sinceIds.get(ownerId);
+            if (since == null) continue;
+            Set<Integer> folderIds = getCrawledFolderIds(ownerId);
+
+            TypedIdList tombstones = mbox.getTombstones(since);
+            List<Integer> tombstoneIds = tombstones == null ? null : tombstones.getIds(MailItem.Type.CONTACT);
+            if (tombstoneIds != null && !tombstoneIds.isEmpty()) {
+                if (!mForceConsiderShared && ownerId.equals(mMbox.getAccountId())) {
+                    for (Integer id : tombstoneIds) {
+                        deleted.add(ownerId + ":" + id);
                     }
-                } else {
-                    // Request the folder content from the other server
-                    mLogger.debug("Fetching content from remote server");
-                    String[] includeFields = mSettings.getArray(UserSettings.CONTACTS_ATTRS, ",", mIncludeFieldsDefault);
-                    String color = node.mFolder.getRgbColor().toString();
+                } else if (hasFolderChanged(mbox, folderIds, since)) {
+                    throw MailServiceException.MUST_RESYNC();
+                }
+            }
 
-                    handleRemoteFolderContent(ownerServer, ownerId, itemId.getId(), node.mName, includeFields, color, treeNode);
+            // No operation context: only ids are returned, and shared mailboxes would refuse the requester.
+            // Contacts moved out of the crawled folders since come second.
+            Pair<List<Integer>, TypedIdList> modified = mbox.getModifiedItems(null, since, MailItem.Type.CONTACT, folderIds);
+            for (Integer id : modified.getFirst()) {
+                String itemId = ownerId + ":" + id;
+                if (!present.contains(itemId)) deleted.add(itemId);
+            }
+            List<Integer> movedIds = modified.getSecond() == null ? null : modified.getSecond().getIds(MailItem.Type.CONTACT);
+            if (movedIds != null) {
+                for (Integer id : movedIds) {
+                    deleted.add(ownerId + ":" + id);
                 }
-            } else {
-                // In some odd cases, the owner can be null.
-                // In this case, ignore the mountpoint
-                mLogger.debug("Ignoring shared address book: " + mp.getPath() + ". Owner is null.");
-                throw new FolderNodeIgnoredException();
             }
         }
+        return deleted;
     }
 
-    private void handleFolderContent(FolderNode node, String nodeName, Mailbox mbox, Tree treeNode) throws ServiceException {
-        // This is the mose commonly used version.
-        // skipContent is only passed when folder is the local root node or full-account root mountpoint
-        handleFolderContent(node, nodeName, mbox, treeNode, false);
+    /**
+     * @return ids of the folders of a mailbox crawled
+     */
+    private Set<Integer> getCrawledFolderIds(String ownerId) {
+        Set<Integer> folderIds = new HashSet<Integer>();
+        String prefix = ownerId + ":";
+        for (String key : mFolderKeys) {
+            if (key.startsWith(prefix)) {
+                folderIds.add(Integer.parseInt(key.substring(prefix.length())));
+            }
+        }
+        return folderIds;
     }
 
-    private void handleFolderContent(FolderNode node, String nodeName, Mailbox mbox, Tree treeNode, boolean skipContent) throws ServiceException {
+    /**
+     * @return whether one of the folders changed since the change sequence,
+     *         its content included
+     */
+    private static boolean hasFolderChanged(Mailbox mbox, Set<Integer> folderIds, int since) throws ServiceException {
+        for (Integer folderId : folderIds) {
+            try {
+                if (mbox.getFolderById(null, folderId).getModifiedSequence() > since) return true;
+            } catch (ServiceException e) {
+                if (!e.getCode().equals(MailServiceException.NO_SUCH_FOLDER)) throw e;
+                return true;
+            }
+        }
+        return false;
+    }
 
-        Folder f = node.mFolder;
+    /**
+     * Only keep the contacts changed since the client's token, and list what it must delete.
+     *
+     * Groups are always sent, as their members are resolved at crawl time.
+     * Falls back to a full response when the token can't be used.
+     */
+    private void applyDelta() throws ServiceException {
+        if (!getStructure().equals(mSinceStructure)) {
+            mLogger.debug("Sync token structure changed, sending full response");
+            return;
+        }
+        if (mResync || !mRemoteSyncSupported) {
+            mLogger.debug("A remote server can't send changes since sync token, sending full response");
+            return;
+        }
+        for (String ownerId : mChangeIds.keySet()) {
+            if (!mSince.containsKey(ownerId)) {
+                mLogger.debug("Mailbox " + ownerId + " is not in sync token, sending full response");
+                return;
+            }
+        }
+
+        List<String> deleted;
+        try {
+            deleted = getDeletedIds(collectIds(), mSince);
+        } catch (ServiceException e) {
+            if (!e.getCode().equals(MailServiceException.MUST_RESYNC)) throw e;
+            mLogger.debug("Sync token is too old, sending full response");
+            return;
+        }
+        // remote deletions are already there
+        mDeleted.addAll(deleted);
 
         if (mAsTree) {
-            treeNode.mName = nodeName;
-            treeNode.mIsShare = mForceConsiderShared || mbox != mMbox;
-            treeNode.mColor = f.getRgbColor().toString();
+            if (mTree != null) filterChanged(mTree);
+        } else {
+            filterChanged(mCollection.mContacts);
         }
+        mDelta = true;
+    }
 
-        if (!skipContent) {
-            // This will return contacts and contact groups
-            List<Contact> contacts = mbox.getContactList(mOctxt, f.getId(), SortBy.NAME_ASC);
+    private void filterChanged(Tree tree) {
+        filterChanged(tree.mContacts);
+        for (Tree subfolder : tree.mSubfolders) {
+            filterChanged(subfolder);
+        }
+    }
 
-            for (Contact contact : contacts) {
-                if (contact.isContactGroup()) {
-                    try {
-                        GroupObject groupObj = new GroupObject(contact, mbox);
-                        if (mAsTree) {
-                            treeNode.mGroups.add(groupObj);
-                        } else {
-                            mCollection.mGroups.add(groupObj);
-                        }
+    private void filterChanged(ContactsCollection contacts) {
+        Iterator<ContactObject> it = contacts.iterator();
+        while (it.hasNext()) {
+            ContactObject contact = it.next();
+            if (!isChangedSince(contact.mId, contact.mModSeq)) it.remove();
+        }
+    }
 
-                        if (mExisting.contains(groupObj.mSourceRef)) {
-                            mExistingCollection.mGroups.add(groupObj);
-                            mExisting.remove(groupObj.mSourceRef);
-                        }
+    private boolean isChangedSince(String id, int modSeq) {
+        // No sequence: can't tell, so send it
+        if (id == null || modSeq == 0) return true;
+        Integer since = mSince.get(id.substring(0, id.indexOf(':')));
+        return since == null || modSeq > since;
+    }
 
-                    } catch (EmptyGroupException e) {}
-                } else {
-                    try {
-                        ContactObject contactObj = new ContactObject(contact);
-                        if (mAsTree) {
-                            treeNode.mContacts.add(contactObj);
-                        } else {
-                            mCollection.mContacts.add(contactObj);
-                        }
+    /**
+     * Ask for the changes since the given token only. Must be called before fetching.
+     * A null or unusable token gives a full response.
+     */
+    public void setSyncToken(SyncToken token) {
+        if (token != null) {
+            mSince = token.getChangeIds();
+            mSinceStructure = token.getStructure();
+        }
+    }
 
-                        if (mExisting.contains(contactObj.mSourceRef)) {
-                            mExistingCollection.mContacts.add(contactObj);
-                            mExisting.remove(contactObj.mSourceRef);
-                        }
+    /**
+     * Give up on the remote folders not received by then, they are returned
+     * as pending. Must be called before fetching.
+     * @param deadline System.nanoTime() value, 0 for no deadline
+     */
+    public void setDeadline(long deadline) {
+        mDeadline = deadline;
+    }
+
+    /**
+     * @return whether some shared folders are pending, missing from the results
+     */
+    public boolean isPartial() {
+        return mPartial;
+    }
+
+    /**
+     * Used by another server asking for changes since its client's token
+     */
+    public void setSince(Map<String, Integer> since) {
+        mSince = since;
+    }
+
+    /**
+     * @return token to send back with the response, for the client's next request
+     */
+    public SyncToken getSyncToken() {
+        return new SyncToken(getStructure(), mChangeIds);
+    }
+
+    /**
+     * @return whether the results only hold the changes since the client's token
+     */
+    public boolean isDelta() {
+        return mDelta;
+    }
+
+    /**
+     * @return ids of the contacts and groups the client must drop, for delta responses
+     */
+    public List<String> getDeleted() {
+        return mDeleted;
+    }
+
+    /**
+     * Add the sync token and, for delta responses, the deleted objects to the response
+     */
+    public void syncToElement(Element el) {
+        el.addAttribute("token", getSyncToken().encode());
+        el.addAttribute("delta", mDelta);
+        if (mPartial) el.addAttribute("partial", true);
+        if (mDelta) {
+            for (String id : new HashSet<String>(mDeleted)) {
+                Element d = el.addNonUniqueElement("deleted");
+                d.addAttribute("id", id);
+            }
+        }
+    }
+
+    private void handleRemoteFolderContent(String serverName, String ownerId, int itemId, String nodeName, String[] includeFields, String color, Tree treeNode, Collection collection) throws ServiceException, FolderNodeIgnoredException {
+        // Existing refs found in the remote content are picked up
+        // by reconcileExisting() once the crawl is over
+        RemoteResponse r;
+        try {
+            r = fetchRemoteFolder(serverName, ownerId, itemId, includeFields, null);
+        } catch (FolderNodeIgnoredException e) {
+            if (getRemainingNanos() > 0 && !(e instanceof RemoteUnavailableException)) throw e;
+            markPending(serverName, ownerId, itemId, nodeName, color, treeNode, collection);
+            return;
+        }
+        synchronized (this) {
+            mergeRemoteSyncState(r);
+        }
+        if (mAsTree) {
+            r.mergeIn(treeNode, nodeName, color);
+        } else {
+            r.mergeIn(collection);
+        }
+    }
+
+    /**
+     * @param call call the request is made for, null if not part of a batch
+     */
+    private RemoteResponse fetchRemoteFolder(String serverName, String ownerId, int itemId, String[] includeFields, RemoteCall call) throws ServiceException, FolderNodeIgnoredException {
+        HashMap<String, Object> data = new HashMap<String, Object>();
+        data.put("account", ownerId);
+        data.put("item", itemId);
+        data.put("includeFields", includeFields);
+        data.put("tree", mAsTree);
+        data.put("debug", mDebug);
+        // existing refs are reconciled here, once the crawl is over
+        data.put("noReconcile", true);
+        if (mSince != null) data.put("since", mSince);
+
+        // Ask for the content only if it changed since the copy we have
+        RemoteResponseCache cache = CrunchmailExtension.getRemoteResponseCache();
+        String cacheKey = RemoteResponseCache.key(serverName, ownerId, itemId, includeFields, mAsTree);
+        RemoteResponseCache.Entry cached = cache == null ? null : cache.get(cacheKey);
+
+        mLogger.debug("Getting remote folder " + itemId + " from account " + ownerId + " on server " + serverName);
+        RemoteResponse response;
+        try {
+            response = postRemoteRequest(serverName, data, RemoteResponse.class, cached == null ? null : cached.getEtag(), call);
+        } catch (RemoteErrorException e) {
+            throw new FolderNodeIgnoredException();
+        }
+
+        if (response == null) {
+            return makeNotModifiedResponse(serverName, cache, cached);
+        }
+        if (cache != null) {
+            if (cached != null) cache.recordRevalidation(false);
+            cache.put(cacheKey, response);
+        }
+        return response;
+    }
+
+    /**
+     * Stand-in for a remote folder the owner server didn't send again: our
+     * copy of the content and sync state, with nothing deleted since.
+     */
+    private RemoteResponse makeNotModifiedResponse(String serverName, RemoteResponseCache cache, RemoteResponseCache.Entry cached) {
+        cache.recordRevalidation(true);
+        Metrics.increment("remote.notModified." + serverName);
+
+        RemoteResponse response = new RemoteResponse();
+        response.asTree = cached.mAsTree;
+        response.tree = cached.mTree;
+        response.collection = cached.mCollection;
+        response.changeIds = cached.mChangeIds;
+        response.structure = cached.mStructure;
+        response.etag = cached.mEtag;
+        response.deleted = new ArrayList<String>();
+        return response;
+    }
+
+    /**
+     * Get all the folders shared from the same server in a single request.
+     * Results are stored on the call, folders in error have none. Folders we
+     * have a copy of are sent with its etag, and only come back if they changed.
+     */
+    private void fetchRemoteFolders(RemoteCall call) throws ServiceException {
+        String serverName = call.mBatch.mServer;
+        List<RemoteFolder> folders = call.mBatch.mFolders;
+        String[] includeFields = call.mBatch.mIncludeFields;
+        if (folders.size() == 1) {
+            fetchRemoteFoldersOneByOne(call);
+            return;
+        }
+
+        RemoteResponseCache cache = CrunchmailExtension.getRemoteResponseCache();
+        Map<String, RemoteResponseCache.Entry> cached = new HashMap<String, RemoteResponseCache.Entry>();
+
+        List<Map<String, Object>> items = new ArrayList<Map<String, Object>>();
+        for (RemoteFolder remote : folders) {
+            Map<String, Object> item = new HashMap<String, Object>();
+            item.put("account", remote.mOwnerId);
+            item.put("item", remote.mItemId);
+            RemoteResponseCache.Entry entry = cache == null ? null : cache.get(RemoteResponseCache.key(serverName, remote.mOwnerId, remote.mItemId, includeFields, mAsTree));
+            if (entry != null) {
+                item.put("etag", entry.getEtag());
+                cached.put(remoteItemKey(remote.mOwnerId, remote.mItemId), entry);
+            }
+            items.add(item);
+        }
+
+        HashMap<String, Object> data = new HashMap<String, Object>();
+        data.put("items", items);
+        data.put("includeFields", includeFields);
+        data.put("tree", mAsTree);
+        data.put("debug", mDebug);
+        data.put("noReconcile", true);
+        if (mSince != null) data.put("since", mSince);
+
+        mLogger.debug("Getting " + folders.size() + " remote folders from server " + serverName);
+        RemoteBatchResponse batch;
+        try {
+            batch = postRemoteRequest(serverName, data, RemoteBatchResponse.class, null, call);
+        } catch (RemoteErrorException e) {
+            if (e.mStatus == HttpStatus.SC_BAD_REQUEST) {
+                // Server runs a version without batch support
+                mLogger.debug("Server " + serverName + " doesn't support batched requests, requesting folders one by one");
+                fetchRemoteFoldersOneByOne(call);
+            } else {
+                call.mFailed = true;
+            }
+            return;
+        } catch (FolderNodeIgnoredException e) {
+            call.mFailed = true;
+            return;
+        }
 
-                    } catch (InvalidMailException e) {
-                        mLogger.debug("Ignoring contact instance with invalid email");
-                    } catch (NoMailException e) {}
+        Set<String> notModified = new HashSet<String>(batch.notModified);
+        for (RemoteFolder remote : folders) {
+            String key = remoteItemKey(remote.mOwnerId, remote.mItemId);
+            RemoteResponse resp = batch.responses.get(key);
+            if (notModified.contains(key) && cached.containsKey(key)) {
+                call.mResponses.put(remote, makeNotModifiedResponse(serverName, cache, cached.get(key)));
+            } else if (resp != null) {
+                call.mResponses.put(remote, resp);
+                if (cache != null) {
+                    if (cached.containsKey(key)) cache.recordRevalidation(false);
+                    cache.put(RemoteResponseCache.key(serverName, remote.mOwnerId, remote.mItemId, includeFields, mAsTree), resp);
                 }
+            } else {
+                mLogger.warn("Request for remote folder " + key + " returned an error: " + batch.errors.get(key));
             }
         }
+    }
 
-        // Recurse subtree
-        for (FolderNode subnode : node.mSubfolders) {
+    private void fetchRemoteFoldersOneByOne(RemoteCall call) throws ServiceException {
+        RemoteBatch batch = call.mBatch;
+        for (RemoteFolder remote : batch.mFolders) {
             try {
-                Tree child = handleFolderNode(subnode, mbox);
-                if (mAsTree) {
-                    treeNode.mSubfolders.add(child);
-                }
+                call.mResponses.put(remote, fetchRemoteFolder(batch.mServer, remote.mOwnerId, remote.mItemId, batch.mIncludeFields, call));
             } catch (FolderNodeIgnoredException e) {}
         }
+        call.mFailed = call.mResponses.isEmpty();
+    }
+
+    /**
+     * @param  etag sent as If-None-Match, null for an unconditional request
+     * @param  call call the request is made for, to be aborted with it, can be null
+     * @return the response read, null if the server answered not modified
+     * @throws RemoteUnavailableException if the server's circuit breaker is open
+     */
+    private <T> T postRemoteRequest(String serverName, Map<String, Object> data, Class<T> responseType, String etag, RemoteCall call) throws ServiceException, FolderNodeIgnoredException, RemoteErrorException {
+        // Leave a failing server alone instead of piling up requests on it
+        RemoteCircuitBreaker breaker = CrunchmailExtension.getRemoteCircuitBreaker();
+        RemoteCircuitBreaker.Permit permit = null;
+        if (breaker != null) {
+            permit = breaker.acquire(serverName);
+            if (permit == null) {
+                mLogger.debug("Server " + serverName + " is failing, not requesting remote folder");
+                throw new RemoteUnavailableException();
+            }
+        }
+
+        long start = System.nanoTime();
+        try {
+            return doPostRemoteRequest(serverName, data, responseType, etag, call, permit);
+        } catch (FolderNodeIgnoredException|RemoteErrorException e) {
+            // calls aborted because they weren't needed anymore are not errors
+            if (call == null || !call.isCancelled()) Metrics.increment("remote.errors." + serverName);
+            throw e;
+        } finally {
+            Metrics.recordTime("remote.fetch." + serverName, start);
+            // not settled if the request wasn't sent
+            if (permit != null) permit.release();
+        }
     }
 
-    private void handleRemoteFolderContent(String serverName, String ownerId, int itemId, String nodeName, String[] includeFields, String color, Tree treeNode) throws ServiceException, FolderNodeIgnoredException {
+    /**
+     * @param permit settled with the outcome of the request, can be null
+     */
+    private <T> T doPostRemoteRequest(String serverName, Map<String, Object> data, Class<T> responseType, String etag, RemoteCall call, RemoteCircuitBreaker.Permit permit) throws ServiceException, FolderNodeIgnoredException, RemoteErrorException {
         if (mAuthToken != null) {
             try {
-                DefaultHttpClient httpClient = new DefaultHttpClient();
+                HttpClientPool pool = CrunchmailExtension.getHttpClientPool();
+                if (pool == null) {
+                    mLogger.warn("Can't get remote folder, HTTP client pool is not initialized (server: " + serverName + ")");
+                    throw new FolderNodeIgnoredException();
+                }
+                HttpClient httpClient = pool.getClient();
 
-                Server server = Provisioning.getInstance().getServerByName(serverName);
-                ZAttrProvisioning.MailMode mode = server.getMailMode();
-                String url = "";
-                if (mode.isHttp()) {
-                    url += "http://"+serverName+":"+server.getMailPortAsString();
-                } else {
-                    url += "https://"+serverName+":"+server.getMailSSLPortAsString();
+                // Never wait past the request deadline
+                long remaining = TimeUnit.NANOSECONDS.toMillis(getRemainingNanos());
+                if (remaining <= 0) {
+                    mLogger.debug("Request deadline reached, not requesting remote folder (server: " + serverName + ")");
+                    throw new FolderNodeIgnoredException();
                 }
-                url += "/service/extension/crunchmail/getremotefolder";
 
+                String url = HttpClientPool.getRemoteFolderUrl(serverName);
                 HttpPost req = new HttpPost(url);
+                if (remaining < pool.getConnectTimeout()) {
+                    HttpConnectionParams.setConnectionTimeout(req.getParams(), (int) remaining);
+                }
+                if (remaining < pool.getReadTimeout()) {
+                    HttpConnectionParams.setSoTimeout(req.getParams(), (int) remaining);
+                }
 
                 req.addHeader("Authorization", "TOKEN "+mAuthToken);
-                req.addHeader("Content-Type", "application/json");
+                if (etag != null) req.addHeader("If-None-Match", etag);
+
+                // Both the request and the response are streamed, and gzipped when big enough
+                HttpEntity requestEntity = new JsonEntity(mGson, data);
+                Metrics.recordSize("remote.requestSize", estimateRequestSize(data));
+                if (pool.isCompressionEnabled()) {
+                    req.addHeader("Accept-Encoding", "gzip");
+                    if (pool.acceptsGzipRequests(serverName) && estimateRequestSize(data) > pool.getCompressionThreshold()) {
+                        requestEntity = new GzipCompressingEntity(requestEntity);
+                    }
+                }
+                req.setEntity(requestEntity);
+
+                // registered so the request can be aborted when its call is cancelled
+                if (call != null && !call.register(req)) {
+                    throw new FolderNodeIgnoredException();
+                }
 
-                HashMap<String, Object> data = new HashMap<String, Object>();
-                data.put("account", ownerId);
-                data.put("item", itemId);
-                data.put("includeFields", includeFields);
-                data.put("tree", mAsTree);
-                data.put("debug", mDebug);
-                data.put("existing", mExisting);
+                HttpResponse resp = null;
+                CountingInputStream responseBytes = null;
+                int status = 0;
+                try {
+                    resp = httpClient.execute(req);
+                    HttpEntity entity = resp.getEntity();
 
-                Gson gson = new Gson();
+                    Header acceptEncoding = resp.getFirstHeader("Accept-Encoding");
+                    pool.setAcceptsGzipRequests(serverName, acceptEncoding != null && acceptEncoding.getValue().toLowerCase().contains("gzip"));
 
-                StringEntity params = new StringEntity(gson.toJson(data));
-                req.setEntity(params);
+                    status = resp.getStatusLine().getStatusCode();
+                    if (status == HttpStatus.SC_NOT_MODIFIED && etag != null) {
+                        // no body: our copy is still good
+                        return null;
+                    }
 
-                mLogger.debug("Getting remote folder " + itemId + " from account " + ownerId + " on server " + serverName);
-                HttpResponse resp = httpClient.execute(req);
-                String json = EntityUtils.toString(resp.getEntity(), "UTF-8");
+                    // bytes read on the wire, compressed or not
+                    CountingInputStream counted = new CountingInputStream(entity.getContent());
+                    responseBytes = counted;
+                    InputStream content = counted;
+                    Header contentEncoding = entity.getContentEncoding();
+                    if (contentEncoding != null && contentEncoding.getValue().equalsIgnoreCase("gzip")) {
+                        content = new GZIPInputStream(content, 8192);
+                    }
+                    Reader reader = new InputStreamReader(content, "UTF-8");
 
-                if (resp.getStatusLine().getStatusCode() == 200) {
+                    if (status == HttpStatus.SC_OK) {
+
+                        try {
+                            return mGson.fromJson(reader, responseType);
+                        } catch (JsonParseException e) {
+                            mLogger.warn("Request for remote folder failed, JSON parse error: "+e.getMessage());
+                            throw new FolderNodeIgnoredException();
+                        }
 
-                    RemoteResponse r = gson.fromJson(json, RemoteResponse.class);
-                    if (mAsTree) {
-                        r.mergeIn(treeNode, nodeName, color);
                     } else {
-                        r.mergeIn(mCollection);
-                    }
-                    r.copyExisting(mExistingCollection, mExisting);
+                        try {
+                            Type type = new TypeToken<HashMap<String, String>>(){}.getType();
+                            Map<String, String> ret = mGson.fromJson(reader, type);
 
-                } else {
-                    try {
-                        Type type = new TypeToken<HashMap<String, String>>(){}.getType();
-                        Map<String, String> ret = gson.fromJson(json, type);
-
-        			    mLogger.warn("Request for remote folder returned an error: " + ret.get("error"));
-                        throw new FolderNodeIgnoredException();
-                    } catch (JsonParseException e) {
-                        mLogger.warn("Request for remote folder failed, JSON parse error: "+e.getMessage());
-                        throw new FolderNodeIgnoredException();
+            			    mLogger.warn("Request for remote folder returned an error: " + (ret == null ? status : ret.get("error")));
+                        } catch (JsonParseException e) {
+                            mLogger.warn("Request for remote folder failed, JSON parse error: "+e.getMessage());
+                        }
+                        throw new RemoteErrorException(status);
+        		    }
+                } catch (IOException e) {
+                    req.abort();
+                    if (permit != null) {
+                        if (call != null && call.isLost()) {
+                            // a hedged duplicate answered first, this tells nothing about the server
+                            permit.release();
+                        } else if ((call != null && call.isCancelled()) || getRemainingNanos() <= 0) {
+                            // given up on, or timed out on our deadline: the server may never answer
+                            permit.abandon();
+                        } else {
+                            permit.failure();
+                        }
                     }
-    		    }
+                    throw e;
+                } finally {
+                    // a server answering, even with an error of ours, is up
+                    if (permit != null && status >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                        permit.failure();
+                    } else if (permit != null && status > 0) {
+                        permit.success();
+                    }
+                    // reading the rest of the entity gives the connection back to the pool
+                    if (call != null) call.unregister(req);
+                    if (resp != null) EntityUtils.consumeQuietly(resp.getEntity());
+                    if (responseBytes != null) Metrics.recordSize("remote.responseSize", responseBytes.getCount());
+                    mLogger.debug("HTTP client pool usage: " + pool.getStats());
+                }
 
             } catch (IOException e) {
-                mLogger.warn("Error while making HTTP request for remote folder: " + e);
+                if (call != null && call.isCancelled()) {
+                    mLogger.debug("Remote folder request aborted (server: " + serverName + ")");
+                } else {
+                    mLogger.warn("Error while making HTTP request for remote folder: " + e);
+                }
                 throw new FolderNodeIgnoredException();
             }
 
         } else {
-            mLogger.warn("Can't get remote folder, auth token is null (id: " + itemId + ", account: " + ownerId + ", server: " + serverName + ")");
+            mLogger.warn("Can't get remote folder, auth token is null (server: " + serverName + ")");
             throw new FolderNodeIgnoredException();
         }
     }
 
+    /**
+     * Rough size of a remote request body, the batched items make most of it
+     */
+    private static int estimateRequestSize(Map<String, Object> data) {
+        int size = 256;
+        Object items = data.get("items");
+        if (items instanceof java.util.Collection) {
+            // account id, item id and etag
+            size += 128 * ((java.util.Collection<?>) items).size();
+        }
+        return size;
+    }
+
+    /**
+     * Key of a remote item in batched requests and responses
+     */
+    public static String remoteItemKey(String account, int item) {
+        return account + ":" + item;
+    }
+
     public RemoteResponse makeResponse(Collection collection) {
         return new RemoteResponse(collection);
     }
@@ -897,4 +3162,105 @@ public abstract class ContactsCrawler {
     public RemoteResponse makeResponse(Tree tree) {
         return new RemoteResponse(tree);
     }
+
+    /**
+     * Keep the results of a remote crawl to answer other requests as well
+     * (see RemoteFolderCache): they are written out once here, and must not
+     * be modified afterwards. The crawl must have had no existing refs.
+     */
+    public void shareResults() {
+        mSharedResults = mAsTree ? mGson.toJson(mTree, Tree.class) : mGson.toJson(mCollection, Collection.class);
+        mSharedStructure = getStructure();
+        mSharedIds = collectIds();
+
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putString(mSharedResults, Charsets.UTF_8);
+        hasher.putString(mSharedStructure, Charsets.UTF_8);
+        // not the change ids: they move with any activity of the mailbox
+        mSharedVersion = hasher.hash().toString();
+    }
+
+    /**
+     * @return hash of the shared results, null if not shared
+     */
+    public String getSharedVersion() {
+        return mSharedVersion;
+    }
+
+    /**
+     * Etag of the shared results, the same for all the crawls of an
+     * unchanged subtree
+     *
+     * @param subtreeStamp stamp of the crawled subtree read before crawling
+     */
+    public String getSharedEtag(long subtreeStamp) {
+        return "\"" + Long.toHexString(subtreeStamp) + "-" + mSharedVersion + "\"";
+    }
+
+    /**
+     * @param etag  etag of the copy the requester holds, null if none
+     * @param since requester's sync state, null for a full response
+     * @return whether the requester's copy can be used as is, with nothing deleted since
+     */
+    public boolean isSharedNotModified(String sharedEtag, String etag, Map<String, Integer> since) throws ServiceException {
+        return sharedEtag.equals(etag) && !hasSharedDeletions(since);
+    }
+
+    /**
+     * @return length of the shared results once written out, 0 if not shared
+     */
+    public int getSharedResultsLength() {
+        return mSharedResults == null ? 0 : mSharedResults.length();
+    }
+
+    /**
+     * @return whether the results hold contact groups, whose members can be anywhere in the mailbox
+     */
+    public boolean hasGroups() {
+        return mGroupsCount.get() > 0;
+    }
+
+    /**
+     * @return whether a requester with the given sync state must be told of
+     *         deletions, or to resync, on top of the shared results
+     */
+    public boolean hasSharedDeletions(Map<String, Integer> since) throws ServiceException {
+        if (since == null) return false;
+        try {
+            return !getDeletedIds(mSharedIds, since).isEmpty();
+        } catch (ServiceException e) {
+            if (!e.getCode().equals(MailServiceException.MUST_RESYNC)) throw e;
+            return true;
+        }
+    }
+
+    /**
+     * Response to one requester from the shared results: only the deletions
+     * since its sync state, and the existing refs found for older requesters,
+     * are its own.
+     */
+    public RemoteResponse makeSharedResponse(Set<String> existing, Map<String, Integer> since) throws ServiceException {
+        RemoteResponse response = new RemoteResponse();
+        response.asTree = mAsTree;
+        response.serialized = mSharedResults;
+        // only for older requesters, newer ones reconcile the content themselves
+        if (existing != null) {
+            response.existing = existing;
+            response.existingCollection = new Collection();
+            reconcileExisting(existing, response.existingCollection);
+        }
+
+        response.changeIds = mChangeIds;
+        response.structure = mSharedStructure;
+        response.deleted = new ArrayList<String>();
+        if (since != null) {
+            try {
+                response.deleted = getDeletedIds(mSharedIds, since);
+            } catch (ServiceException e) {
+                if (!e.getCode().equals(MailServiceException.MUST_RESYNC)) throw e;
+                response.resync = true;
+            }
+        }
+        return response;
+    }
 }
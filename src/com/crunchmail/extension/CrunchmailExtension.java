@@ -1,7 +1,24 @@
 package com.crunchmail.extension;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.Server;
 import com.zimbra.cs.extension.ExtensionException;
 import com.zimbra.cs.extension.ZimbraExtension;
 import com.zimbra.cs.extension.ExtensionDispatcherServlet;
@@ -9,6 +26,7 @@ import com.zimbra.soap.SoapServlet;
 
 import com.crunchmail.extension.lib.ZimbraVersion;
 import com.crunchmail.extension.soap.CrunchmailDocumentService;
+import com.crunchmail.extension.http.HttpClientPool;
 import com.crunchmail.extension.http.handlers.RemoteFolderHandler;
 
 /**
@@ -19,6 +37,119 @@ import com.crunchmail.extension.http.handlers.RemoteFolderHandler;
 
 public class CrunchmailExtension implements ZimbraExtension{
 
+    private static ForkJoinPool sCrawlPool;
+    private static ExecutorService sRemoteExecutor;
+    private static ExecutorService sRequestExecutor;
+    private static HttpClientPool sHttpClientPool;
+    private static ScheduledExecutorService sMaintenanceExecutor;
+    private static ContactsCache sContactsCache;
+    private static PageSnapshots sPageSnapshots;
+    private static ListsCache sListsCache;
+    private static RemoteFolderCache sRemoteFolderCache;
+    private static RemoteResponseCache sRemoteResponseCache;
+    private static RemoteCircuitBreaker sRemoteCircuitBreaker;
+
+    private Logger mLogger = new Logger();
+
+    /**
+    * Returns the pool used for parallel address book crawling
+    *
+    * @return ForkJoinPool, or null if parallel crawling is disabled
+    */
+    public static ForkJoinPool getCrawlPool() {
+        return sCrawlPool;
+    }
+
+    /**
+    * Returns the executor used to fetch folders from other mailbox servers
+    *
+    * @return ExecutorService, or null if the extension is not initialized
+    */
+    public static ExecutorService getRemoteExecutor() {
+        return sRemoteExecutor;
+    }
+
+    /**
+    * Returns the executor running the phases of contacts requests concurrently
+    *
+    * @return ExecutorService, or null if the extension is not initialized
+    */
+    public static ExecutorService getRequestExecutor() {
+        return sRequestExecutor;
+    }
+
+    /**
+    * Returns the pooled HTTP client used for server-to-server requests
+    *
+    * @return HttpClientPool, or null if the extension is not initialized
+    */
+    public static HttpClientPool getHttpClientPool() {
+        return sHttpClientPool;
+    }
+
+    /**
+    * Returns the executor used for periodic housekeeping tasks
+    *
+    * @return ScheduledExecutorService, or null if the extension is not initialized
+    */
+    public static ScheduledExecutorService getMaintenanceExecutor() {
+        return sMaintenanceExecutor;
+    }
+
+    /**
+    * Returns the cache of crawled folder content
+    *
+    * @return ContactsCache, or null if the cache is disabled
+    */
+    public static ContactsCache getContactsCache() {
+        return sContactsCache;
+    }
+
+    /**
+    * Returns the snapshots of paginated GetContacts results
+    *
+    * @return PageSnapshots, or null if the extension is not initialized
+    */
+    public static PageSnapshots getPageSnapshots() {
+        return sPageSnapshots;
+    }
+
+    /**
+    * Returns the cache of expanded distribution lists
+    *
+    * @return ListsCache, or null if the cache is disabled
+    */
+    public static ListsCache getListsCache() {
+        return sListsCache;
+    }
+
+    /**
+    * Returns the cache of the folders crawled for other servers
+    *
+    * @return RemoteFolderCache, or null if the cache is disabled
+    */
+    public static RemoteFolderCache getRemoteFolderCache() {
+        return sRemoteFolderCache;
+    }
+
+    /**
+    * Returns the cache of the folders received from other servers
+    *
+    * @return RemoteResponseCache, or null if the cache is disabled
+    */
+    public static RemoteResponseCache getRemoteResponseCache() {
+        return sRemoteResponseCache;
+    }
+
+    /**
+    * Returns the circuit breakers of the requests to other servers
+    *
+    * @return RemoteCircuitBreaker, or null if disabled
+    */
+    public static RemoteCircuitBreaker getRemoteCircuitBreaker() {
+        return sRemoteCircuitBreaker;
+    }
+
     /**
     * Returns the name of this extension
     *
@@ -59,10 +190,286 @@ public class CrunchmailExtension implements ZimbraExtension{
             this, new RemoteFolderHandler()
         );
 
+        int parallelism = ServerSettings.getInt(ServerSettings.CRAWL_PARALLELISM, 0);
+        if (parallelism > 1) {
+            mLogger.info("Parallel crawling enabled with " + parallelism + " threads");
+            sCrawlPool = new ForkJoinPool(parallelism);
+        }
+
+        // Bounded: when all threads are busy and the queue is full, calls are
+        // rejected and their folders returned as pending instead of waiting
+        int remoteThreads = Math.max(ServerSettings.getInt(ServerSettings.REMOTE_FETCH_THREADS, 8), 1);
+        sRemoteExecutor = new ThreadPoolExecutor(
+            remoteThreads, remoteThreads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(remoteThreads * 4),
+            new ThreadFactoryBuilder().setNameFormat("crunchmail-remote-%d").setDaemon(true).build(),
+            new ThreadPoolExecutor.AbortPolicy()
+        );
+
+        // Bounded: when all threads are busy and the queue is full, phases run on the request thread
+        int requestThreads = Math.max(ServerSettings.getInt(ServerSettings.REQUEST_THREADS, 16), 1);
+        sRequestExecutor = new ThreadPoolExecutor(
+            requestThreads, requestThreads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(requestThreads * 4),
+            new ThreadFactoryBuilder().setNameFormat("crunchmail-request-%d").setDaemon(true).build(),
+            new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+
+        sMaintenanceExecutor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("crunchmail-maintenance-%d").setDaemon(true).build()
+        );
+
+        sHttpClientPool = new HttpClientPool();
+        final HttpClientPool pool = sHttpClientPool;
+        sMaintenanceExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                pool.closeIdleConnections();
+            }
+        }, 30, 30, TimeUnit.SECONDS);
+
+        long cacheSize = ServerSettings.getLong(ServerSettings.CONTACTS_CACHE_SIZE, 64);
+        if (cacheSize > 0) {
+            long cacheTtl = ServerSettings.getLong(ServerSettings.CONTACTS_CACHE_TTL, 600);
+            sContactsCache = new ContactsCache(cacheSize * 1024 * 1024, cacheTtl);
+            final ContactsCache cache = sContactsCache;
+            sMaintenanceExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    mLogger.info("Contacts cache stats: " + cache.getStats());
+                }
+            }, 10, 10, TimeUnit.MINUTES);
+        }
+
+        long listsCacheSize = ServerSettings.getLong(ServerSettings.LISTS_CACHE_SIZE, 1000);
+        if (listsCacheSize > 0) {
+            long listsCacheTtl = ServerSettings.getLong(ServerSettings.LISTS_CACHE_TTL, 300);
+            sListsCache = new ListsCache(listsCacheSize, listsCacheTtl);
+            final ListsCache listsCache = sListsCache;
+            sMaintenanceExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    mLogger.info("Lists cache stats: " + listsCache.getStats());
+                }
+            }, 10, 10, TimeUnit.MINUTES);
+        }
+
+        long remoteCacheSize = ServerSettings.getLong(ServerSettings.REMOTE_CACHE_SIZE, 64);
+        if (remoteCacheSize > 0) {
+            long remoteCacheTtl = ServerSettings.getLong(ServerSettings.REMOTE_CACHE_TTL, 600);
+            sRemoteFolderCache = new RemoteFolderCache(remoteCacheSize * 1024 * 1024, remoteCacheTtl);
+            final RemoteFolderCache remoteCache = sRemoteFolderCache;
+            sMaintenanceExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    mLogger.info("Remote folder cache stats: " + remoteCache.getStats());
+                }
+            }, 10, 10, TimeUnit.MINUTES);
+        }
+
+        long responseCacheSize = ServerSettings.getLong(ServerSettings.REMOTE_RESPONSE_CACHE_SIZE, 64);
+        if (responseCacheSize > 0) {
+            long responseCacheTtl = ServerSettings.getLong(ServerSettings.REMOTE_RESPONSE_CACHE_TTL, 3600);
+            sRemoteResponseCache = new RemoteResponseCache(responseCacheSize * 1024 * 1024, responseCacheTtl);
+            final RemoteResponseCache responseCache = sRemoteResponseCache;
+            sMaintenanceExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    mLogger.info("Remote response cache stats: " + responseCache.getStats());
+                }
+            }, 10, 10, TimeUnit.MINUTES);
+        }
+
+        int breakerWindow = ServerSettings.getInt(ServerSettings.REMOTE_BREAKER_WINDOW, 20);
+        if (breakerWindow > 0) {
+            sRemoteCircuitBreaker = new RemoteCircuitBreaker(
+                breakerWindow,
+                ServerSettings.getInt(ServerSettings.REMOTE_BREAKER_ERROR_RATE, 50),
+                ServerSettings.getLong(ServerSettings.REMOTE_BREAKER_SLOW_CALL, 10000),
+                ServerSettings.getInt(ServerSettings.REMOTE_BREAKER_SLOW_RATE, 80),
+                ServerSettings.getLong(ServerSettings.REMOTE_BREAKER_BACKOFF, 1000),
+                ServerSettings.getLong(ServerSettings.REMOTE_BREAKER_MAX_BACKOFF, 60000)
+            );
+        }
+
+        sPageSnapshots = new PageSnapshots(
+            ServerSettings.getLong(ServerSettings.PAGE_SNAPSHOTS_SIZE, 64) * 1024 * 1024,
+            ServerSettings.getLong(ServerSettings.PAGE_SNAPSHOTS_TTL, 120)
+        );
+
+        registerGauges();
+        registerMBean();
+
+        // Open connections to the other mailbox servers without delaying startup
+        sRemoteExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pool.warmUp(getPeerServers());
+                } catch (ServiceException e) {
+                    mLogger.warn("Unable to list mailbox servers for connection warm-up: " + e);
+                }
+            }
+        });
+
+    }
+
+    private void registerGauges() {
+        final ThreadPoolExecutor requestExecutor = (ThreadPoolExecutor) sRequestExecutor;
+        Metrics.registerGauge("executor.request.queued", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return requestExecutor.getQueue().size();
+            }
+        });
+        final ThreadPoolExecutor remoteExecutor = (ThreadPoolExecutor) sRemoteExecutor;
+        Metrics.registerGauge("executor.remote.queued", new Metrics.Gauge() {
+            @Override
+            public long getValue() {
+                return remoteExecutor.getQueue().size();
+            }
+        });
+
+        if (sContactsCache != null) {
+            final ContactsCache cache = sContactsCache;
+            Metrics.registerGauge("cache.contacts.size", new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return cache.getStats().get("size");
+                }
+            });
+        }
+        if (sRemoteFolderCache != null) {
+            final RemoteFolderCache remoteCache = sRemoteFolderCache;
+            Metrics.registerGauge("cache.remote.size", new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return remoteCache.getStats().get("size");
+                }
+            });
+        }
+        if (sRemoteResponseCache != null) {
+            final RemoteResponseCache responseCache = sRemoteResponseCache;
+            Metrics.registerGauge("cache.remoteResponse.size", new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return responseCache.getStats().get("size");
+                }
+            });
+        }
+        if (sListsCache != null) {
+            final ListsCache listsCache = sListsCache;
+            Metrics.registerGauge("cache.lists.entries", new Metrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return listsCache.getStats().get("entries");
+                }
+            });
+        }
+    }
+
+    private void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MetricsMBean.OBJECT_NAME);
+            // left over by a previous load of the extension
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new MetricsMBean(), name);
+        } catch (JMException e) {
+            mLogger.warn("Unable to register metrics MBean: " + e);
+        }
+    }
+
+    /**
+    * Returns the other mailbox servers of the platform
+    *
+    * @return list of servers, without the local one
+    * @throws ServiceException
+    */
+    private List<Server> getPeerServers() throws ServiceException {
+        Provisioning prov = Provisioning.getInstance();
+        String localServer = prov.getLocalServer().getName();
+        List<Server> peers = new ArrayList<Server>();
+        for (Server server : prov.getAllServers(Provisioning.SERVICE_MAILBOX)) {
+            if (!server.getName().equals(localServer)) {
+                peers.add(server);
+            }
+        }
+        return peers;
     }
 
     @Override
     public void destroy() {
 
+        if (sCrawlPool != null) {
+            sCrawlPool.shutdown();
+            sCrawlPool = null;
+        }
+
+        if (sRemoteExecutor != null) {
+            sRemoteExecutor.shutdownNow();
+            sRemoteExecutor = null;
+        }
+
+        if (sRequestExecutor != null) {
+            sRequestExecutor.shutdownNow();
+            sRequestExecutor = null;
+        }
+
+        if (sMaintenanceExecutor != null) {
+            sMaintenanceExecutor.shutdownNow();
+            sMaintenanceExecutor = null;
+        }
+
+        if (sHttpClientPool != null) {
+            sHttpClientPool.shutdown();
+            sHttpClientPool = null;
+        }
+
+        if (sContactsCache != null) {
+            sContactsCache.clear();
+            sContactsCache = null;
+        }
+
+        if (sPageSnapshots != null) {
+            sPageSnapshots.clear();
+            sPageSnapshots = null;
+        }
+
+        if (sListsCache != null) {
+            sListsCache.clear();
+            sListsCache = null;
+        }
+
+        if (sRemoteFolderCache != null) {
+            sRemoteFolderCache.clear();
+            sRemoteFolderCache = null;
+        }
+
+        if (sRemoteResponseCache != null) {
+            sRemoteResponseCache.clear();
+            sRemoteResponseCache = null;
+        }
+
+        if (sRemoteCircuitBreaker != null) {
+            sRemoteCircuitBreaker.clear();
+            sRemoteCircuitBreaker = null;
+        }
+
+        UserSettings.clearCache();
+
+        try {
+            ObjectName name = new ObjectName(MetricsMBean.OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            mLogger.warn("Unable to unregister metrics MBean: " + e);
+        }
+        Metrics.reset();
+
     }
 }
@@ -0,0 +1,133 @@
+package com.crunchmail.extension;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.GalContact;
+import com.zimbra.cs.account.NamedEntry;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.SearchDirectoryOptions;
+import com.zimbra.cs.account.ldap.entry.LdapEntry;
+import com.zimbra.cs.ldap.ZLdapFilterFactory.FilterId;
+
+/**
+ * Resolves the GAL members of contact groups with a few directory searches,
+ * instead of the GAL search Zimbra runs for each member.
+ *
+ * GAL members are referenced by their directory DN. Only entries of the
+ * Zimbra directory (accounts and lists) are found here, members of an
+ * external GAL are left to the regular dereference.
+ */
+class GalMemberResolver {
+
+    private String[] mReturnAttrs;
+    private String[] mGalKeys;
+    private int mBatchSize;
+    private Logger mLogger;
+
+    /**
+     * @param galKeys   directory attributes to read, nulls are ignored
+     * @param batchSize number of entries asked per search
+     */
+    GalMemberResolver(String[] galKeys, int batchSize, Logger logger) {
+        Set<String> attrs = new LinkedHashSet<String>();
+        // needed to build the entries and their email
+        attrs.add("objectClass");
+        attrs.add("zimbraId");
+        attrs.add("uid");
+        attrs.add("mail");
+        attrs.add("zimbraMailDeliveryAddress");
+        List<String> keys = new ArrayList<String>();
+        for (String key : galKeys) {
+            if (key != null) {
+                attrs.add(key);
+                keys.add(key);
+            }
+        }
+        mReturnAttrs = attrs.toArray(new String[attrs.size()]);
+        mGalKeys = keys.toArray(new String[keys.size()]);
+        mBatchSize = Math.max(1, batchSize);
+        mLogger = logger;
+    }
+
+    /**
+     * @return the entries found, as GAL contacts keyed by lower-cased DN
+     */
+    Map<String, GalContact> resolve(Set<String> dns) throws ServiceException {
+        long start = System.nanoTime();
+        Map<String, GalContact> found = new HashMap<String, GalContact>();
+        List<String> batch = new ArrayList<String>(mBatchSize);
+        int searches = 0;
+
+        for (String dn : dns) {
+            batch.add(dn);
+            if (batch.size() == mBatchSize) {
+                search(batch, found);
+                searches++;
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            search(batch, found);
+            searches++;
+        }
+
+        Metrics.recordTime("crawl.galResolve", start);
+        mLogger.debug("GAL members: " + found.size() + "/" + dns.size() + " resolved with " + searches + " directory search(es)");
+        return found;
+    }
+
+    private void search(List<String> dns, Map<String, GalContact> found) throws ServiceException {
+        StringBuilder filter = new StringBuilder("(|");
+        for (String dn : dns) {
+            filter.append("(entryDN=").append(escapeFilterValue(dn)).append(')');
+        }
+        filter.append(')');
+
+        SearchDirectoryOptions options = new SearchDirectoryOptions();
+        options.setTypes(SearchDirectoryOptions.ObjectType.accounts, SearchDirectoryOptions.ObjectType.distributionlists);
+        options.setFilterString(FilterId.ADMIN_SEARCH, filter.toString());
+        options.setReturnAttrs(mReturnAttrs);
+        options.setMaxResults(dns.size());
+
+        for (NamedEntry entry : Provisioning.getInstance().searchDirectory(options)) {
+            if (!(entry instanceof LdapEntry)) continue;
+
+            // same attributes as a GAL contact, for the projection
+            Map<String, Object> attrs = new HashMap<String, Object>();
+            attrs.put("email", entry.getName());
+            for (String key : mGalKeys) {
+                String value = entry.getAttr(key);
+                if (value != null) attrs.put(key, value);
+            }
+
+            String dn = ((LdapEntry) entry).getDN();
+            // DNs are compared ignoring case
+            found.put(dn.toLowerCase(), new GalContact(dn, attrs));
+        }
+    }
+
+    /**
+     * Escape a value for an LDAP search filter (RFC 4515)
+     */
+    static String escapeFilterValue(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': sb.append("\\5c"); break;
+                case '*': sb.append("\\2a"); break;
+                case '(': sb.append("\\28"); break;
+                case ')': sb.append("\\29"); break;
+                case '\0': sb.append("\\00"); break;
+                default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,188 @@
+package com.crunchmail.extension;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import com.zimbra.common.account.Key;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.Group;
+import com.zimbra.cs.account.Provisioning;
+
+import com.crunchmail.extension.ListsFetcher.Expansion;
+import com.crunchmail.extension.ListsFetcher.Member;
+
+/**
+ * Server-wide cache of expanded distribution lists, keyed by group id.
+ *
+ * An expansion is the same for every user, per-user filtering is applied by
+ * ListsFetcher on top of it. Entries are checked against a stamp of the list
+ * and of its nested lists (read from Zimbra's own group cache), so changes
+ * to the lists membership are picked up at once. Changes to the members
+ * accounts (names) are only picked up when entries expire.
+ *
+ * A reverse index gives the cached lists an address or a nested list
+ * belongs to, so invalidating a list also drops the lists including it.
+ */
+public class ListsCache {
+
+    private Cache<String, Expansion> mCache;
+    // address or group id -> ids of the cached lists containing it
+    private ConcurrentMap<String, Set<String>> mListsOf = new ConcurrentHashMap<String, Set<String>>();
+
+    private AtomicLong mHits = new AtomicLong();
+    private AtomicLong mMisses = new AtomicLong();
+    private AtomicLong mStale = new AtomicLong();
+
+    private Logger mLogger = new Logger();
+
+    /**
+     * @param maxLists number of lists kept at most
+     * @param ttl      seconds after which an entry is dropped even if still valid
+     */
+    public ListsCache(long maxLists, long ttl) {
+        mCache = CacheBuilder.newBuilder()
+            .maximumSize(maxLists)
+            .expireAfterWrite(ttl, TimeUnit.SECONDS)
+            .removalListener(new RemovalListener<String, Expansion>() {
+                @Override
+                public void onRemoval(RemovalNotification<String, Expansion> notification) {
+                    unindex(notification.getValue());
+                }
+            })
+            .build();
+
+        mLogger.info("Lists cache created (max lists: " + maxLists + ", ttl: " + ttl + "s)");
+    }
+
+    /**
+     * @return stamp of a list, changing when its name, address or members change
+     */
+    static int stamp(Group group) throws ServiceException {
+        if (group.isDynamic()) {
+            // members of dynamic groups come from a search, leave them to the ttl
+            return Objects.hashCode(group.getMail(), group.getDisplayName());
+        }
+        return Objects.hashCode(group.getMail(), group.getDisplayName(), Arrays.hashCode(group.getAllMembers()));
+    }
+
+    /**
+     * @return the cached expansion of a list, null if absent or outdated
+     */
+    public Expansion get(Group group) throws ServiceException {
+        Expansion expansion = mCache.getIfPresent(group.getId());
+        if (expansion == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+
+        Provisioning prov = Provisioning.getInstance();
+        for (Map.Entry<String, Integer> entry : expansion.mStamps.entrySet()) {
+            String groupId = entry.getKey();
+            Group current = groupId.equals(group.getId()) ? group : prov.getGroup(Key.DistributionListBy.id, groupId);
+            if (current == null || stamp(current) != entry.getValue()) {
+                mLogger.debug("Lists cache: list " + groupId + " changed, invalidating");
+                mStale.incrementAndGet();
+                // also drops this list when the changed one is nested
+                invalidate(groupId);
+                return null;
+            }
+        }
+
+        mHits.incrementAndGet();
+        return expansion;
+    }
+
+    /**
+     * Store an expansion. It must not be modified afterwards.
+     */
+    public void put(Expansion expansion) {
+        mCache.put(expansion.mId, expansion);
+        for (String key : indexKeys(expansion)) {
+            Set<String> lists = mListsOf.get(key);
+            if (lists == null) {
+                Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                lists = mListsOf.putIfAbsent(key, created);
+                if (lists == null) lists = created;
+            }
+            lists.add(expansion.mId);
+        }
+    }
+
+    /**
+     * @return ids of the cached lists an address or a list belongs to, nested lists included
+     */
+    public Set<String> getListsOf(String addressOrGroupId) {
+        Set<String> lists = mListsOf.get(addressOrGroupId.toLowerCase());
+        if (lists == null) {
+            return Collections.emptySet();
+        }
+        return new HashSet<String>(lists);
+    }
+
+    /**
+     * Drop a list and the cached lists including it
+     */
+    public void invalidate(String groupId) {
+        mCache.invalidate(groupId);
+        for (String listId : getListsOf(groupId)) {
+            mCache.invalidate(listId);
+        }
+    }
+
+    public void clear() {
+        mCache.invalidateAll();
+        mListsOf.clear();
+    }
+
+    /**
+     * @return hits, misses (absent or stale entries) and usage
+     */
+    public Map<String, Long> getStats() {
+        mCache.cleanUp();
+
+        Map<String, Long> stats = new LinkedHashMap<String, Long>();
+        stats.put("hits", mHits.get());
+        stats.put("misses", mMisses.get() + mStale.get());
+        stats.put("stale", mStale.get());
+        stats.put("entries", mCache.size());
+        stats.put("indexed", (long) mListsOf.size());
+        return stats;
+    }
+
+    private void unindex(Expansion expansion) {
+        for (String key : indexKeys(expansion)) {
+            Set<String> lists = mListsOf.get(key);
+            if (lists != null) {
+                lists.remove(expansion.mId);
+                if (lists.isEmpty()) mListsOf.remove(key, lists);
+            }
+        }
+    }
+
+    /**
+     * @return lower-cased member addresses and ids of the nested lists
+     */
+    private static Set<String> indexKeys(Expansion expansion) {
+        Set<String> keys = new HashSet<String>();
+        for (Member member : expansion.mMembers) {
+            keys.add(member.getEmail().toLowerCase());
+        }
+        for (String groupId : expansion.mStamps.keySet()) {
+            if (!groupId.equals(expansion.mId)) keys.add(groupId.toLowerCase());
+        }
+        return keys;
+    }
+}
@@ -15,6 +15,9 @@ import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Entry;
 import com.zimbra.cs.account.Group;
+import com.zimbra.cs.account.NamedEntry;
+import com.zimbra.cs.account.SearchDirectoryOptions;
+import com.zimbra.cs.ldap.ZLdapFilterFactory.FilterId;
 
 import com.crunchmail.extension.Logger;
 import com.crunchmail.extension.UserSettings;
@@ -31,6 +34,10 @@ public class ListsFetcher {
             mCollection.add(list);
         }
 
+        public int size() {
+            return mCollection.size();
+        }
+
         public void toElement(Element el) {
             if (mCollection.isEmpty()) {
                 // add empty element so client doesn't have to test
@@ -48,64 +55,21 @@ public class ListsFetcher {
         private String mId;
         private String mName;
         private String mEmail;
-        private Set<Member> mMembers = Sets.newHashSet();
+        private Set<Member> mMembers;
         public boolean mAddToExisting = false;
 
         DistributionList(Group group) throws ServiceException {
-            mId = group.getId();
-            mName = group.getDisplayName();
-            mEmail = group.getMail();
-
-            // Use a set to keep track of nested groups and avoid loops
-            // and add ourselves
-            Set<String> nestedGroups = Sets.newHashSet();
-            nestedGroups.add(group.getMail());
-
-            String ref = "dl:" + mId + ":" + mId;
-
-            if (mExisting.contains(ref)) {
-                mAddToExisting = true;
-                mExisting.remove(ref);
-            }
-
-            handleMembers(group, nestedGroups, ref);
-        }
-
-        private void handleMembers(Group group, Set<String> nestedGroups, String ref) throws ServiceException {
-            mLogger.debug("LIST: " + group.getMail());
-
-            Provisioning prov = Provisioning.getInstance();
-            String[] members = group.getAllMembers();
-
-            for (String groupMember : members) {
-
-                mLogger.debug("MEMBER: " + groupMember);
-
-                Account acct = prov.getAccount(groupMember);
-                if (acct != null) {
-                    Member member = new Member(groupMember, acct.getGivenName(), acct.getSn(), ref);
-                    mMembers.add(member);
-                } else {
-                    // not an account, either a static member or another list
-                    // first test for another list
-                    Group nested = prov.getGroup(Key.DistributionListBy.name, groupMember);
-                    if (nested != null && !nestedGroups.contains(groupMember)) {
-                        nestedGroups.add(groupMember);
-                        String nestedRef = "dl:" + mId + ":" + nested.getId();
-                        if (mExisting.contains(nestedRef)) {
-                            mAddToExisting = true;
-                            mExisting.remove(nestedRef);
-                        }
-                        handleMembers(nested, nestedGroups, nestedRef);
-                    } else if (nested != null) {
-                        // already handled, ignore
-                        mLogger.debug("Ignoring member in list " + group.getMail() + ". Nested group already handled: " + groupMember);
-                    } else {
-                        // static member
-                        mLogger.debug("STATIC MEMBER: " + groupMember);
-                        Member member = new Member(groupMember, null, null, ref);
-                        mMembers.add(member);
-                    }
+            Expansion expansion = getExpansion(group);
+            mId = expansion.mId;
+            mName = expansion.mName;
+            mEmail = expansion.mEmail;
+            mMembers = expansion.mMembers;
+
+            // The expansion is shared, what the user already added is checked here
+            for (String ref : expansion.mRefs) {
+                if (mExisting.contains(ref)) {
+                    mAddToExisting = true;
+                    mExisting.remove(ref);
                 }
             }
         }
@@ -123,19 +87,87 @@ public class ListsFetcher {
         }
     }
 
-    class Member {
+    /**
+     * Members of a list and of its nested lists. The same for all users, so
+     * it can be shared through the lists cache: it must not be modified once built.
+     */
+    static class Expansion {
+        final String mId;
+        final String mName;
+        final String mEmail;
+        // Members are unique by address, the first ref met is kept
+        final Set<Member> mMembers = Sets.newLinkedHashSet();
+        // Refs of the list and of its nested lists
+        final List<String> mRefs = new ArrayList<String>();
+        // Stamps of the list and of its nested lists, by group id
+        final Map<String, Integer> mStamps = new HashMap<String, Integer>();
+
+        Expansion(Group group) {
+            mId = group.getId();
+            mName = group.getDisplayName();
+            mEmail = group.getMail();
+        }
+    }
+
+    /**
+     * Direct members of a list, resolved once per request however many lists include it
+     */
+    static class ListNode {
+        final String mId;
+        final String mMail;
+        final int mStamp;
+        // Accounts and static members, without ref
+        final List<Member> mMembers = new ArrayList<Member>();
+        // Ids of the nested lists
+        final List<String> mNested = new ArrayList<String>();
+
+        ListNode(Group group) throws ServiceException {
+            mId = group.getId();
+            mMail = group.getMail();
+            mStamp = ListsCache.stamp(group);
+        }
+    }
+
+    static class Member {
         private String mEmail;
+        // normalized address, members are compared on it
+        private String mKey;
         private Map<String, String> mProperties = new HashMap<String, String>();
         private String mSourceType = "zimbra-dl";
         private String mSourceRef;
 
         Member(String member, String firstName, String lastName, String ref) {
             mEmail = member;
+            mKey = member.toLowerCase();
             mProperties.put("firstName", firstName != null ? firstName : "");
             mProperties.put("lastName", lastName != null ? lastName : "");
             mSourceRef = ref;
         }
 
+        /**
+         * Same member in another list, properties are shared
+         */
+        Member(Member member, String ref) {
+            mEmail = member.mEmail;
+            mKey = member.mKey;
+            mProperties = member.mProperties;
+            mSourceRef = ref;
+        }
+
+        String getEmail() {
+            return mEmail;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Member && ((Member) other).mKey.equals(mKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return mKey.hashCode();
+        }
+
         void toElement(Element m) {
             m.addAttribute("email", mEmail);
             Element p = m.addUniqueElement("properties");
@@ -147,19 +179,167 @@ public class ListsFetcher {
         }
     }
 
+    // Number of addresses looked up per directory search
+    private static final int LOOKUP_BATCH_SIZE = 200;
+    private static final String[] LOOKUP_ATTRS = new String[] {
+        "objectClass", "zimbraId", "uid", "mail", "givenName", "sn"
+    };
+
     Logger mLogger;
     UserSettings mSettings;
     Account mAccount;
     Set<String> mExisting;
     public ListsCollection mExistingCollection = new ListsCollection();
+    // Lists resolved during the request, by group id
+    private Map<String, ListNode> mNodes = new HashMap<String, ListNode>();
 
     public ListsFetcher(Account account, boolean debug, Set<String> existing) throws ServiceException {
         mAccount = account;
-        mSettings = new UserSettings(account);
+        mSettings = UserSettings.forAccount(account);
         mLogger = new Logger(debug);
         mExisting = existing;
     }
 
+    /**
+     * @return the expansion of a list, from the lists cache when it is still valid
+     */
+    private Expansion getExpansion(Group group) throws ServiceException {
+        ListsCache cache = CrunchmailExtension.getListsCache();
+        if (cache != null) {
+            Expansion cached = cache.get(group);
+            if (cached != null) {
+                mLogger.debug("LIST: " + group.getMail() + " (cached)");
+                return cached;
+            }
+        }
+
+        Expansion expansion = new Expansion(group);
+        // Keep track of the lists already walked to avoid loops, starting with ourselves
+        Set<String> visited = Sets.newHashSet();
+        visited.add(expansion.mId);
+        walk(expansion, getNode(group), visited);
+
+        if (cache != null) {
+            cache.put(expansion);
+        }
+        return expansion;
+    }
+
+    /**
+     * Add the members of a list and of its nested lists to an expansion
+     */
+    private void walk(Expansion expansion, ListNode node, Set<String> visited) throws ServiceException {
+        String ref = "dl:" + expansion.mId + ":" + node.mId;
+        expansion.mRefs.add(ref);
+        expansion.mStamps.put(node.mId, node.mStamp);
+
+        for (Member member : node.mMembers) {
+            expansion.mMembers.add(new Member(member, ref));
+        }
+
+        for (String nestedId : node.mNested) {
+            if (!visited.add(nestedId)) {
+                // already handled, ignore
+                mLogger.debug("Ignoring member in list " + node.mMail + ". Nested group already handled: " + nestedId);
+                continue;
+            }
+            ListNode nested = getNode(nestedId);
+            if (nested != null) {
+                walk(expansion, nested, visited);
+            }
+        }
+    }
+
+    /**
+     * @return the node of a list, null if it doesn't exist anymore
+     */
+    private ListNode getNode(String groupId) throws ServiceException {
+        ListNode node = mNodes.get(groupId);
+        if (node == null) {
+            Group group = Provisioning.getInstance().getGroup(Key.DistributionListBy.id, groupId);
+            if (group == null) {
+                return null;
+            }
+            node = getNode(group);
+        }
+        return node;
+    }
+
+    private ListNode getNode(Group group) throws ServiceException {
+        ListNode node = mNodes.get(group.getId());
+        if (node != null) {
+            return node;
+        }
+
+        mLogger.debug("LIST: " + group.getMail());
+        node = new ListNode(group);
+
+        String[] members = group.getAllMembers();
+        // accounts and lists among the members, in a few searches
+        Map<String, NamedEntry> entries = lookupMembers(members);
+
+        for (String groupMember : members) {
+
+            mLogger.debug("MEMBER: " + groupMember);
+
+            NamedEntry entry = entries.get(groupMember.toLowerCase());
+            if (entry instanceof Account) {
+                Account acct = (Account) entry;
+                node.mMembers.add(new Member(groupMember, acct.getGivenName(), acct.getSn(), null));
+            } else if (entry instanceof Group) {
+                // another list
+                node.mNested.add(entry.getId());
+            } else {
+                // static member
+                mLogger.debug("STATIC MEMBER: " + groupMember);
+                node.mMembers.add(new Member(groupMember, null, null, null));
+            }
+        }
+
+        mNodes.put(node.mId, node);
+        return node;
+    }
+
+    /**
+     * Find the accounts and lists among list members, with one directory
+     * search per batch of addresses instead of one or two lookups per member.
+     *
+     * @return entries found, keyed by their lower-cased addresses (aliases included)
+     */
+    private Map<String, NamedEntry> lookupMembers(String[] members) throws ServiceException {
+        Map<String, NamedEntry> entries = new HashMap<String, NamedEntry>();
+        Provisioning prov = Provisioning.getInstance();
+
+        for (int start = 0; start < members.length; start += LOOKUP_BATCH_SIZE) {
+            int end = Math.min(members.length, start + LOOKUP_BATCH_SIZE);
+            StringBuilder filter = new StringBuilder("(|");
+            for (int i = start; i < end; i++) {
+                filter.append("(mail=").append(GalMemberResolver.escapeFilterValue(members[i])).append(')');
+            }
+            filter.append(')');
+
+            SearchDirectoryOptions options = new SearchDirectoryOptions();
+            options.setTypes(SearchDirectoryOptions.ObjectType.accounts,
+                SearchDirectoryOptions.ObjectType.distributionlists,
+                SearchDirectoryOptions.ObjectType.dynamicgroups);
+            options.setFilterString(FilterId.ADMIN_SEARCH, filter.toString());
+            options.setReturnAttrs(LOOKUP_ATTRS);
+
+            for (NamedEntry entry : prov.searchDirectory(options)) {
+                entries.put(entry.getName().toLowerCase(), entry);
+                String[] addresses = entry.getMultiAttr("mail");
+                if (addresses != null) {
+                    for (String address : addresses) {
+                        entries.put(address.toLowerCase(), entry);
+                    }
+                }
+            }
+        }
+
+        mLogger.debug("Looked up " + members.length + " list member(s), " + entries.size() + " address(es) found");
+        return entries;
+    }
+
     private boolean shouldInclude(Group group) {
         boolean includeHidden = mSettings.getBool(UserSettings.DLIST_INCLUDE_HIDE_IN_GAL, true);
         if (group.hideInGal() && !includeHidden) {
@@ -173,6 +353,15 @@ public class ListsFetcher {
      * @return [description]
      */
     public ListsCollection fetch() throws ServiceException {
+        long start = System.nanoTime();
+        try {
+            return doFetch();
+        } finally {
+            Metrics.recordTime("lists.expansion", start);
+        }
+    }
+
+    private ListsCollection doFetch() throws ServiceException {
         ListsCollection collection = new ListsCollection();
 
         // Always get the lists the account is owner of
@@ -21,6 +21,13 @@ public class Logger {
         return "Crunchmail - "+s;
     }
 
+    /**
+     * @return true if debug messages are logged, to avoid building them otherwise
+     */
+    public boolean isDebugEnabled() {
+        return mDebug || mLog.isDebugEnabled();
+    }
+
     public void trace(String s) {
         mLog.trace(formatter(s));
     }
@@ -0,0 +1,210 @@
+package com.crunchmail.extension;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Server-wide metrics of the extension: histograms (latencies and sizes),
+ * counters and gauges, exposed by GetStatsRequest and over JMX.
+ *
+ * Metrics are created on first use. Recording is a few atomic operations,
+ * so it can be done on the hot paths.
+ */
+public class Metrics {
+
+    public static final String UNIT_MICROS = "us";
+    public static final String UNIT_BYTES = "bytes";
+    public static final String UNIT_COUNT = "count";
+
+    /**
+     * Value computed when metrics are read
+     */
+    public interface Gauge {
+        long getValue();
+    }
+
+    /**
+     * Histogram with 4 buckets per power of two, percentiles are within 25% of the actual values
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 4 * 62;
+
+        private final String mUnit;
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        Histogram(String unit) {
+            mUnit = unit;
+        }
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            mBuckets.incrementAndGet(bucket(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        public String getUnit() {
+            return mUnit;
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getSum() {
+            return mSum.get();
+        }
+
+        public long getMax() {
+            return mMax.get();
+        }
+
+        public long getMean() {
+            long count = mCount.get();
+            return count == 0 ? 0 : mSum.get() / count;
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         * @return upper bound of the bucket holding the quantile, 0 if empty
+         */
+        public long getPercentile(double quantile) {
+            long count = mCount.get();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        private static int bucket(long value) {
+            if (value < 4) {
+                return (int) value;
+            }
+            int log = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) ((value >>> (log - 2)) & 3);
+            return Math.min(4 * (log - 1) + sub, BUCKETS - 1);
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < 3) {
+                return bucket;
+            }
+            // lower bound of the next bucket, minus one
+            int next = bucket + 1;
+            int log = next / 4 + 1;
+            return ((4L + next % 4) << (log - 2)) - 1;
+        }
+    }
+
+    private static final ConcurrentMap<String, Histogram> sHistograms = new ConcurrentHashMap<String, Histogram>();
+    private static final ConcurrentMap<String, AtomicLong> sCounters = new ConcurrentHashMap<String, AtomicLong>();
+    private static final ConcurrentMap<String, Gauge> sGauges = new ConcurrentHashMap<String, Gauge>();
+
+    public static Histogram histogram(String name, String unit) {
+        Histogram histogram = sHistograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram(unit);
+            histogram = sHistograms.putIfAbsent(name, created);
+            if (histogram == null) histogram = created;
+        }
+        return histogram;
+    }
+
+    /**
+     * Record the time elapsed since start, as returned by System.nanoTime()
+     */
+    public static void recordTime(String name, long start) {
+        recordNanos(name, System.nanoTime() - start);
+    }
+
+    public static void recordNanos(String name, long nanos) {
+        histogram(name, UNIT_MICROS).record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public static void recordSize(String name, long bytes) {
+        histogram(name, UNIT_BYTES).record(bytes);
+    }
+
+    public static void recordCount(String name, long count) {
+        histogram(name, UNIT_COUNT).record(count);
+    }
+
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    public static void add(String name, long delta) {
+        AtomicLong counter = sCounters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = sCounters.putIfAbsent(name, created);
+            if (counter == null) counter = created;
+        }
+        counter.addAndGet(delta);
+    }
+
+    public static void registerGauge(String name, Gauge gauge) {
+        sGauges.put(name, gauge);
+    }
+
+    public static void unregisterGauge(String name) {
+        sGauges.remove(name);
+    }
+
+    /**
+     * @return histograms, sorted by name
+     */
+    public static Map<String, Histogram> getHistograms() {
+        return new TreeMap<String, Histogram>(sHistograms);
+    }
+
+    /**
+     * @return counters values, sorted by name
+     */
+    public static Map<String, Long> getCounters() {
+        Map<String, Long> counters = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : sCounters.entrySet()) {
+            counters.put(entry.getKey(), entry.getValue().get());
+        }
+        return counters;
+    }
+
+    /**
+     * @return gauges values, sorted by name
+     */
+    public static Map<String, Long> getGauges() {
+        Map<String, Long> gauges = new TreeMap<String, Long>();
+        for (Map.Entry<String, Gauge> entry : sGauges.entrySet()) {
+            gauges.put(entry.getKey(), entry.getValue().getValue());
+        }
+        return gauges;
+    }
+
+    /**
+     * Drop histograms and counters, gauges are kept
+     */
+    public static void reset() {
+        sHistograms.clear();
+        sCounters.clear();
+    }
+}
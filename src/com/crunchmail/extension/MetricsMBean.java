@@ -0,0 +1,97 @@
+package com.crunchmail.extension;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Metrics over JMX, as read-only long attributes. Histograms give
+ * name.count, name.mean, name.p50, name.p95, name.p99 and name.max.
+ *
+ * Metrics are created on first use, so the attributes list grows as the
+ * server handles requests.
+ */
+public class MetricsMBean implements DynamicMBean {
+
+    public static final String OBJECT_NAME = "com.crunchmail.extension:type=Metrics";
+
+    private Map<String, Long> values() {
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Metrics.Histogram> entry : Metrics.getHistograms().entrySet()) {
+            String name = entry.getKey();
+            Metrics.Histogram histogram = entry.getValue();
+            values.put(name + ".count", histogram.getCount());
+            values.put(name + ".mean", histogram.getMean());
+            values.put(name + ".p50", histogram.getPercentile(0.5));
+            values.put(name + ".p95", histogram.getPercentile(0.95));
+            values.put(name + ".p99", histogram.getPercentile(0.99));
+            values.put(name + ".max", histogram.getMax());
+        }
+        values.putAll(Metrics.getCounters());
+        values.putAll(Metrics.getGauges());
+        return values;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = values().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Long> values = values();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Long value = values.get(attribute);
+            if (value != null) list.add(new Attribute(attribute, value));
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if (actionName.equals("reset")) {
+            Metrics.reset();
+            return null;
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (String name : values().keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+        }
+        MBeanOperationInfo reset = new MBeanOperationInfo(
+            "reset", "Drop histograms and counters", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+
+        return new MBeanInfo(getClass().getName(), "Crunchmail extension metrics",
+            attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+            null, new MBeanOperationInfo[] { reset }, null);
+    }
+}
@@ -0,0 +1,78 @@
+package com.crunchmail.extension;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+import com.crunchmail.extension.ContactsCrawler.Collection;
+
+/**
+ * Short-lived copies of GetContacts results, so the next pages of a
+ * paginated response are served without crawling the mailbox again and
+ * stay consistent with the first one.
+ *
+ * Snapshots expire when they haven't been read for a while, and the oldest
+ * are dropped first when they use too much memory.
+ */
+public class PageSnapshots {
+
+    private static class Snapshot {
+        final String mAccountId;
+        final Collection mCollection;
+        // the collection never changes, it is weighed once
+        final int mWeight;
+
+        Snapshot(String accountId, Collection collection) {
+            mAccountId = accountId;
+            mCollection = collection;
+            mWeight = collection.estimateSize();
+        }
+    }
+
+    private Cache<String, Snapshot> mSnapshots;
+
+    /**
+     * @param maxSize estimated heap size the snapshots can use, in bytes
+     * @param ttl     seconds after which an unread snapshot is dropped
+     */
+    public PageSnapshots(long maxSize, long ttl) {
+        mSnapshots = CacheBuilder.newBuilder()
+            .maximumWeight(maxSize)
+            .weigher(new Weigher<String, Snapshot>() {
+                @Override
+                public int weigh(String id, Snapshot snapshot) {
+                    return snapshot.mWeight;
+                }
+            })
+            .expireAfterAccess(ttl, TimeUnit.SECONDS)
+            .build();
+    }
+
+    /**
+     * Keep the results of an account. They must not be modified afterwards.
+     *
+     * @return id of the snapshot
+     */
+    public String put(String accountId, Collection collection) {
+        String id = UUID.randomUUID().toString();
+        mSnapshots.put(id, new Snapshot(accountId, collection));
+        return id;
+    }
+
+    /**
+     * @return the results, null if the snapshot expired or belongs to another account
+     */
+    public Collection get(String id, String accountId) {
+        Snapshot snapshot = mSnapshots.getIfPresent(id);
+        if (snapshot == null || !snapshot.mAccountId.equals(accountId)) {
+            return null;
+        }
+        return snapshot.mCollection;
+    }
+
+    public void clear() {
+        mSnapshots.invalidateAll();
+    }
+}
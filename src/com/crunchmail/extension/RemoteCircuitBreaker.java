@@ -0,0 +1,285 @@
+package com.crunchmail.extension;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-server circuit breakers of the remote folder requests.
+ *
+ * A server failing or too slow to answer is not requested anymore for a
+ * while (open), then gets probe requests (half-open) until it is found
+ * healthy again (closed). Each time a probe fails, the server is left alone
+ * twice as long, with some jitter so the servers don't probe it all at once.
+ *
+ * Each breaker looks at the outcome of the last requests made to its server:
+ * it opens when too many of them failed or were slow, or right away after a
+ * few failures in a row.
+ */
+public class RemoteCircuitBreaker {
+
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    // failures in a row opening the breaker without waiting for a full window
+    static final int CONSECUTIVE_FAILURES = 3;
+    // outcomes needed before looking at the error and slow rates
+    static final int MIN_CALLS = 5;
+    // successful probes closing the breaker
+    static final int PROBES = 2;
+
+    /**
+     * Right to send one request to a server, to be settled with its outcome.
+     * Settling more than once has no effect.
+     */
+    public class Permit {
+        private final Breaker mBreaker;
+        private final boolean mProbe;
+        private final long mStart = System.nanoTime();
+        private boolean mSettled = false;
+
+        private Permit(Breaker breaker, boolean probe) {
+            mBreaker = breaker;
+            mProbe = probe;
+        }
+
+        /**
+         * The server answered, slow if it took longer than the slow call threshold
+         */
+        public void success() {
+            if (mSettled) return;
+            mSettled = true;
+            mBreaker.onResult(this, false, System.nanoTime() - mStart > mSlowCallNanos);
+        }
+
+        /**
+         * The server couldn't be reached, or failed to answer
+         */
+        public void failure() {
+            if (mSettled) return;
+            mSettled = true;
+            mBreaker.onResult(this, true, false);
+        }
+
+        /**
+         * The request was given up on before the server answered (request
+         * deadline): a slow call if it waited longer than the slow call
+         * threshold, so a server that never answers still opens its breaker
+         */
+        public void abandon() {
+            if (mSettled) return;
+            if (System.nanoTime() - mStart > mSlowCallNanos) {
+                mSettled = true;
+                mBreaker.onResult(this, false, true);
+            } else {
+                release();
+            }
+        }
+
+        /**
+         * The request wasn't made, or was made useless by another one: it tells nothing about the server
+         */
+        public void release() {
+            if (mSettled) return;
+            mSettled = true;
+            mBreaker.onRelease(this);
+        }
+    }
+
+    private class Breaker {
+        final String mServer;
+
+        // last outcomes, in a ring
+        final boolean[] mFailures;
+        final boolean[] mSlow;
+        int mNext = 0;
+        int mCount = 0;
+        int mConsecutiveFailures = 0;
+
+        State mState = State.CLOSED;
+        long mOpenUntil;
+        // times the breaker opened again since it was last closed
+        int mReopened = 0;
+        boolean mProbing = false;
+        int mProbeSuccesses = 0;
+
+        Breaker(String server) {
+            mServer = server;
+            mFailures = new boolean[mWindow];
+            mSlow = new boolean[mWindow];
+        }
+
+        synchronized Permit acquire() {
+            if (mState == State.OPEN) {
+                if (System.nanoTime() - mOpenUntil < 0) return null;
+                transition(State.HALF_OPEN);
+                mProbeSuccesses = 0;
+            }
+            if (mState == State.HALF_OPEN) {
+                // one probe at a time
+                if (mProbing) return null;
+                mProbing = true;
+                return new Permit(this, true);
+            }
+            return new Permit(this, false);
+        }
+
+        synchronized void onResult(Permit permit, boolean failed, boolean slow) {
+            if (permit.mProbe) {
+                mProbing = false;
+                if (mState != State.HALF_OPEN) return;
+                if (failed || slow) {
+                    open();
+                } else if (++mProbeSuccesses >= PROBES) {
+                    close();
+                }
+                return;
+            }
+
+            // a request sent before the breaker opened
+            if (mState != State.CLOSED) return;
+
+            mFailures[mNext] = failed;
+            mSlow[mNext] = slow;
+            mNext = (mNext + 1) % mWindow;
+            if (mCount < mWindow) mCount++;
+            mConsecutiveFailures = failed ? mConsecutiveFailures + 1 : 0;
+
+            if (mConsecutiveFailures >= CONSECUTIVE_FAILURES) {
+                open();
+            } else if (mCount >= MIN_CALLS) {
+                int failures = 0;
+                int slowCalls = 0;
+                for (int i = 0; i < mCount; i++) {
+                    if (mFailures[i]) failures++;
+                    if (mSlow[i]) slowCalls++;
+                }
+                if (failures * 100 >= mErrorRate * mCount || slowCalls * 100 >= mSlowRate * mCount) {
+                    open();
+                }
+            }
+        }
+
+        synchronized void onRelease(Permit permit) {
+            if (permit.mProbe) mProbing = false;
+        }
+
+        synchronized State getState() {
+            return mState;
+        }
+
+        private void open() {
+            // a failed probe doubles the time the server is left alone
+            if (mState == State.HALF_OPEN) mReopened++;
+            long backoff = Math.min(mBackoffNanos << Math.min(mReopened, 20), mMaxBackoffNanos);
+            // between half and all of the backoff
+            long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+            mOpenUntil = System.nanoTime() + delay;
+            mProbing = false;
+            transition(State.OPEN);
+            mLogger.warn("Server " + mServer + " is failing, not requesting it for " + TimeUnit.NANOSECONDS.toMillis(delay) + "ms");
+        }
+
+        private void close() {
+            mReopened = 0;
+            mCount = 0;
+            mNext = 0;
+            mConsecutiveFailures = 0;
+            transition(State.CLOSED);
+            mLogger.info("Server " + mServer + " is answering again");
+        }
+
+        private void transition(State state) {
+            mState = state;
+            Metrics.increment("remote.breaker." + state.name().toLowerCase() + "." + mServer);
+        }
+    }
+
+    private final ConcurrentMap<String, Breaker> mBreakers = new ConcurrentHashMap<String, Breaker>();
+
+    private final int mWindow;
+    private final int mErrorRate;
+    private final long mSlowCallNanos;
+    private final int mSlowRate;
+    private final long mBackoffNanos;
+    private final long mMaxBackoffNanos;
+
+    private Logger mLogger = new Logger();
+
+    /**
+     * @param window     number of last requests looked at
+     * @param errorRate  percentage of failed requests opening the breaker
+     * @param slowCall   time after which a request is slow, in ms
+     * @param slowRate   percentage of slow requests opening the breaker
+     * @param backoff    time a server is left alone when its breaker opens, in ms
+     * @param maxBackoff max time a server is left alone, in ms
+     */
+    public RemoteCircuitBreaker(int window, int errorRate, long slowCall, int slowRate, long backoff, long maxBackoff) {
+        mWindow = Math.max(window, MIN_CALLS);
+        mErrorRate = errorRate;
+        mSlowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCall);
+        mSlowRate = slowRate;
+        mBackoffNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(backoff, 1));
+        mMaxBackoffNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(maxBackoff), mBackoffNanos);
+
+        mLogger.info("Remote circuit breaker created (window: " + mWindow + ", error rate: " + errorRate + "%, slow call: " + slowCall + "ms, slow rate: " + slowRate + "%, backoff: " + backoff + "-" + maxBackoff + "ms)");
+    }
+
+    /**
+     * @return a permit to request the server, null if its breaker is open
+     */
+    public Permit acquire(String server) {
+        Permit permit = getBreaker(server).acquire();
+        if (permit == null) {
+            Metrics.increment("remote.breaker.rejected." + server);
+        }
+        return permit;
+    }
+
+    public State getState(String server) {
+        Breaker breaker = mBreakers.get(server);
+        return breaker == null ? State.CLOSED : breaker.getState();
+    }
+
+    /**
+     * @return state of the breakers, by server
+     */
+    public Map<String, State> getStates() {
+        Map<String, State> states = new TreeMap<String, State>();
+        for (Breaker breaker : mBreakers.values()) {
+            states.put(breaker.mServer, breaker.getState());
+        }
+        return states;
+    }
+
+    public void clear() {
+        for (String server : mBreakers.keySet()) {
+            Metrics.unregisterGauge("remote.breaker.state." + server);
+        }
+        mBreakers.clear();
+    }
+
+    private Breaker getBreaker(String server) {
+        Breaker breaker = mBreakers.get(server);
+        if (breaker == null) {
+            Breaker created = new Breaker(server);
+            breaker = mBreakers.putIfAbsent(server, created);
+            if (breaker == null) {
+                breaker = created;
+                // 0 closed, 1 half-open, 2 open
+                final Breaker gauged = breaker;
+                Metrics.registerGauge("remote.breaker.state." + server, new Metrics.Gauge() {
+                    @Override
+                    public long getValue() {
+                        return gauged.getState().ordinal();
+                    }
+                });
+            }
+        }
+        return breaker;
+    }
+}
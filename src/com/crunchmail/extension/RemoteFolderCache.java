@@ -0,0 +1,225 @@
+package com.crunchmail.extension;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.common.base.Joiner;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox.FolderNode;
+
+import com.crunchmail.extension.ContactsCrawler.RemoteResponse;
+
+/**
+ * Server-wide cache of the crawls answering other servers' requests for a
+ * shared folder, keyed by owner account, folder, included fields and
+ * response type.
+ *
+ * A crawl doesn't depend on the requester, so all the accounts allowed to
+ * see the folder share an entry and its results, written out once: only
+ * the deletions are matched per request (and the existing refs, for older
+ * requesters that don't match them themselves). Entries are
+ * only used while the folder subtree is unchanged (and all the owner's
+ * contact folders when it holds groups), stamps being read before crawling.
+ * Subtrees holding mountpoints are not cached, changes to the mounted
+ * folders can't be seen from here. GAL members are only picked up when
+ * entries expire.
+ *
+ * Each entry has the etag of its results (see ContactsCrawler.getSharedEtag),
+ * so the requesting server can keep its copy of the folder and ask for it
+ * conditionally (see RemoteResponseCache).
+ *
+ * The cache is bounded by the estimated heap size of its entries.
+ */
+public class RemoteFolderCache {
+
+    public static class Entry {
+        private final ContactsFetcher mFetcher;
+        private final long mSubtreeStamp;
+        private final long mContactsStamp;
+        private final boolean mHasGroups;
+        private final String mEtag;
+        private final int mWeight;
+
+        Entry(ContactsFetcher fetcher, long subtreeStamp, long contactsStamp) {
+            mFetcher = fetcher;
+            mSubtreeStamp = subtreeStamp;
+            mContactsStamp = contactsStamp;
+            mHasGroups = fetcher.hasGroups();
+            mEtag = fetcher.getSharedEtag(subtreeStamp);
+            // the written out results (2 bytes a char), and about as much for the objects
+            mWeight = (int) Math.min(4L * fetcher.getSharedResultsLength() + 1024, Integer.MAX_VALUE);
+        }
+
+        boolean isValid(long subtreeStamp, long contactsStamp) {
+            if (subtreeStamp != mSubtreeStamp) {
+                return false;
+            }
+            return !mHasGroups || contactsStamp == mContactsStamp;
+        }
+
+        public String getEtag() {
+            return mEtag;
+        }
+
+        /**
+         * @param etag  etag of the copy the requester holds, null if none
+         * @param since requester's sync state, null for a full response
+         * @return whether the requester's copy can be used as is, with nothing deleted since
+         */
+        public boolean isNotModified(String etag, Map<String, Integer> since) throws ServiceException {
+            return mFetcher.isSharedNotModified(mEtag, etag, since);
+        }
+
+        /**
+         * @param existing refs an older requester already knows, found ones are
+         *                 removed, null for newer requesters matching them themselves
+         * @param since    requester's sync state, null for a full response
+         */
+        public RemoteResponse makeResponse(Set<String> existing, Map<String, Integer> since) throws ServiceException {
+            RemoteResponse response = mFetcher.makeSharedResponse(existing, since);
+            response.etag = mEtag;
+            return response;
+        }
+    }
+
+    private Cache<String, Entry> mCache;
+    private long mMaxSize;
+
+    private AtomicLong mHits = new AtomicLong();
+    private AtomicLong mMisses = new AtomicLong();
+    private AtomicLong mStale = new AtomicLong();
+    private AtomicLong mEvictions = new AtomicLong();
+    private AtomicLong mSize = new AtomicLong();
+
+    private Logger mLogger = new Logger();
+
+    /**
+     * @param maxSize estimated heap size the entries can use, in bytes
+     * @param ttl     seconds after which an entry is dropped even if still valid
+     */
+    public RemoteFolderCache(long maxSize, long ttl) {
+        mMaxSize = maxSize;
+        mCache = CacheBuilder.newBuilder()
+            .maximumWeight(maxSize)
+            .weigher(new Weigher<String, Entry>() {
+                @Override
+                public int weigh(String key, Entry entry) {
+                    return entry.mWeight;
+                }
+            })
+            .expireAfterWrite(ttl, TimeUnit.SECONDS)
+            .removalListener(new RemovalListener<String, Entry>() {
+                @Override
+                public void onRemoval(RemovalNotification<String, Entry> notification) {
+                    mSize.addAndGet(-notification.getValue().mWeight);
+                    if (notification.getCause() == RemovalCause.SIZE) {
+                        mEvictions.incrementAndGet();
+                    }
+                }
+            })
+            .build();
+
+        mLogger.info("Remote folder cache created (max size: " + (maxSize / 1024 / 1024) + "MB, ttl: " + ttl + "s)");
+    }
+
+    /**
+     * @return key of a remote request for a folder, whoever the requester
+     */
+    public static String key(String ownerId, int folderId, String[] includeFields, boolean tree) {
+        return ownerId + ":" + folderId + "|" + Joiner.on(",").join(includeFields) + "|" + (tree ? "tree" : "collection");
+    }
+
+    /**
+     * Stamp of a folder subtree, changes with the content, the layout, the
+     * names or the colors of its folders
+     *
+     * @return the stamp, null if the subtree holds mountpoints and can't be cached
+     */
+    public static Long subtreeStamp(FolderNode root) {
+        return subtreeStamp(root, 0);
+    }
+
+    private static Long subtreeStamp(FolderNode node, long stamp) {
+        Folder folder = node.mFolder;
+        if (folder == null || folder.getType() == MailItem.Type.MOUNTPOINT) {
+            return null;
+        }
+        stamp = 31 * stamp + folder.getId();
+        stamp = 31 * stamp + folder.getImapMODSEQ();
+        // renames and recolors, which go into tree responses
+        stamp = 31 * stamp + folder.getModifiedSequence();
+        stamp = 31 * stamp + (node.mName == null ? 0 : node.mName.hashCode());
+        stamp = 31 * stamp + folder.getRgbColor().toString().hashCode();
+        stamp = 31 * stamp + folder.getItemCount();
+        stamp = 31 * stamp + node.mSubfolders.size();
+        for (FolderNode subnode : node.mSubfolders) {
+            Long sub = subtreeStamp(subnode, stamp);
+            if (sub == null) return null;
+            stamp = sub;
+        }
+        return stamp;
+    }
+
+    /**
+     * @return the cached crawl if the folders didn't change since, null otherwise
+     */
+    public Entry get(String key, long subtreeStamp, long contactsStamp) {
+        Entry entry = mCache.getIfPresent(key);
+        if (entry == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        if (!entry.isValid(subtreeStamp, contactsStamp)) {
+            mStale.incrementAndGet();
+            mCache.invalidate(key);
+            return null;
+        }
+        mHits.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Share the results of a crawl made without existing refs, with the
+     * stamps read before it
+     */
+    public Entry put(String key, ContactsFetcher fetcher, long subtreeStamp, long contactsStamp) {
+        fetcher.shareResults();
+        Entry entry = new Entry(fetcher, subtreeStamp, contactsStamp);
+        mSize.addAndGet(entry.mWeight);
+        mCache.put(key, entry);
+        return entry;
+    }
+
+    public void clear() {
+        mCache.invalidateAll();
+    }
+
+    /**
+     * @return hits, misses (absent or stale entries), evictions and usage
+     */
+    public Map<String, Long> getStats() {
+        // let the cache run its pending expirations first
+        mCache.cleanUp();
+
+        Map<String, Long> stats = new LinkedHashMap<String, Long>();
+        stats.put("hits", mHits.get());
+        stats.put("misses", mMisses.get() + mStale.get());
+        stats.put("stale", mStale.get());
+        stats.put("evictions", mEvictions.get());
+        stats.put("entries", mCache.size());
+        stats.put("size", mSize.get());
+        stats.put("maxSize", mMaxSize);
+        return stats;
+    }
+}
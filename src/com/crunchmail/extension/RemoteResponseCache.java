@@ -0,0 +1,163 @@
+package com.crunchmail.extension;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.common.base.Joiner;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+import com.crunchmail.extension.ContactsCrawler.Collection;
+import com.crunchmail.extension.ContactsCrawler.RemoteResponse;
+import com.crunchmail.extension.ContactsCrawler.Tree;
+
+/**
+ * Server-wide cache of the remote folders received from other servers,
+ * decoded, keyed by server, owner account, folder, included fields and
+ * response type.
+ *
+ * Only responses carrying an etag (answered from the owner server's
+ * RemoteFolderCache) are kept. An entry is never used on its own: its etag
+ * is sent with the next request for the folder, and the entry stands for
+ * the response when the owner server answers it wasn't modified. The
+ * content doesn't depend on the requester, the owner server still checks
+ * each requester can access the folder before answering.
+ *
+ * The cache is bounded by the estimated heap size of its entries.
+ */
+public class RemoteResponseCache {
+
+    public static class Entry {
+        final String mEtag;
+        final boolean mAsTree;
+        final Tree mTree;
+        final Collection mCollection;
+        final Map<String, Integer> mChangeIds;
+        final String mStructure;
+        final int mWeight;
+
+        Entry(RemoteResponse response) {
+            mEtag = response.etag;
+            mAsTree = response.asTree;
+            mTree = response.tree;
+            mCollection = response.collection;
+            mChangeIds = response.changeIds;
+            mStructure = response.structure;
+
+            int weight = 256;
+            if (mTree != null) weight += mTree.estimateSize();
+            if (mCollection != null) weight += mCollection.estimateSize();
+            mWeight = weight;
+        }
+
+        public String getEtag() {
+            return mEtag;
+        }
+    }
+
+    private Cache<String, Entry> mCache;
+    private long mMaxSize;
+
+    private AtomicLong mHits = new AtomicLong();
+    private AtomicLong mMisses = new AtomicLong();
+    private AtomicLong mEvictions = new AtomicLong();
+    private AtomicLong mSize = new AtomicLong();
+
+    private Logger mLogger = new Logger();
+
+    /**
+     * @param maxSize estimated heap size the entries can use, in bytes
+     * @param ttl     seconds after which an entry is dropped
+     */
+    public RemoteResponseCache(long maxSize, long ttl) {
+        mMaxSize = maxSize;
+        mCache = CacheBuilder.newBuilder()
+            .maximumWeight(maxSize)
+            .weigher(new Weigher<String, Entry>() {
+                @Override
+                public int weigh(String key, Entry entry) {
+                    return entry.mWeight;
+                }
+            })
+            .expireAfterWrite(ttl, TimeUnit.SECONDS)
+            .removalListener(new RemovalListener<String, Entry>() {
+                @Override
+                public void onRemoval(RemovalNotification<String, Entry> notification) {
+                    mSize.addAndGet(-notification.getValue().mWeight);
+                    if (notification.getCause() == RemovalCause.SIZE) {
+                        mEvictions.incrementAndGet();
+                    }
+                }
+            })
+            .build();
+
+        mLogger.info("Remote response cache created (max size: " + (maxSize / 1024 / 1024) + "MB, ttl: " + ttl + "s)");
+    }
+
+    /**
+     * @return key of a remote folder, whoever the requester
+     */
+    public static String key(String server, String ownerId, int itemId, String[] includeFields, boolean tree) {
+        return server + "|" + ownerId + ":" + itemId + "|" + Joiner.on(",").join(includeFields) + "|" + (tree ? "tree" : "collection");
+    }
+
+    /**
+     * @return the last response received for the folder, null if none
+     */
+    public Entry get(String key) {
+        return mCache.getIfPresent(key);
+    }
+
+    /**
+     * Keep a response received from the owner server, if it has an etag.
+     * The response content must not be modified afterwards.
+     */
+    public void put(String key, RemoteResponse response) {
+        if (response.etag == null) {
+            // the owner server can't tell when it changes, and the one we have is outdated
+            mCache.invalidate(key);
+            return;
+        }
+        Entry entry = new Entry(response);
+        mSize.addAndGet(entry.mWeight);
+        mCache.put(key, entry);
+    }
+
+    /**
+     * Count a conditional request, answered as not modified or with new content
+     */
+    public void recordRevalidation(boolean notModified) {
+        if (notModified) {
+            mHits.incrementAndGet();
+        } else {
+            mMisses.incrementAndGet();
+        }
+    }
+
+    public void clear() {
+        mCache.invalidateAll();
+    }
+
+    /**
+     * @return not modified answers (hits), new content received for a known
+     *         etag (misses), evictions and usage
+     */
+    public Map<String, Long> getStats() {
+        // let the cache run its pending expirations first
+        mCache.cleanUp();
+
+        Map<String, Long> stats = new LinkedHashMap<String, Long>();
+        stats.put("hits", mHits.get());
+        stats.put("misses", mMisses.get());
+        stats.put("evictions", mEvictions.get());
+        stats.put("entries", mCache.size());
+        stats.put("size", mSize.get());
+        stats.put("maxSize", mMaxSize);
+        return stats;
+    }
+}
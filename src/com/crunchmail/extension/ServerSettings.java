@@ -0,0 +1,115 @@
+package com.crunchmail.extension;
+
+import com.google.common.base.Strings;
+
+import com.zimbra.common.localconfig.LC;
+
+/**
+ * Per-server tuning of the extension, read from localconfig.
+ *
+ * Values are set on each mailbox server with:
+ *
+ *   zmlocalconfig -e crunchmail_crawl_parallelism=4
+ *
+ * and picked up at extension init (mailboxd restart).
+ */
+public class ServerSettings {
+
+    // Number of threads used to crawl address books in parallel (<= 1 disables it)
+    public static final String CRAWL_PARALLELISM = "crunchmail_crawl_parallelism";
+    // Number of threads running the lists and tags phases of contacts requests
+    public static final String REQUEST_THREADS = "crunchmail_request_threads";
+    // Number of threads used to fetch shared folders from other mailbox servers
+    public static final String REMOTE_FETCH_THREADS = "crunchmail_remote_fetch_threads";
+    // Server-to-server HTTP connection pool
+    public static final String HTTP_MAX_TOTAL = "crunchmail_http_max_total";
+    public static final String HTTP_MAX_PER_ROUTE = "crunchmail_http_max_per_route";
+    public static final String HTTP_CONNECT_TIMEOUT = "crunchmail_http_connect_timeout";
+    public static final String HTTP_READ_TIMEOUT = "crunchmail_http_read_timeout";
+    public static final String HTTP_KEEPALIVE = "crunchmail_http_keepalive";
+    // Gzip server-to-server payloads bigger than the threshold (in bytes)
+    public static final String HTTP_COMPRESSION = "crunchmail_http_compression";
+    public static final String HTTP_COMPRESSION_THRESHOLD = "crunchmail_http_compression_threshold";
+    // Time budget of a contacts request in ms (0 for none): shared folders from
+    // other servers not received by then are returned as pending
+    public static final String REQUEST_DEADLINE = "crunchmail_request_deadline";
+    // Remote calls slower than this percentile of the server's latencies (0 disables it)
+    // get a hedged duplicate, sent no sooner than the min delay (in ms)
+    public static final String REMOTE_HEDGE_PERCENTILE = "crunchmail_remote_hedge_percentile";
+    public static final String REMOTE_HEDGE_MIN_DELAY = "crunchmail_remote_hedge_min_delay";
+    // Circuit breaker of the requests to each server: number of last requests looked at
+    // (0 disables it), percentages of failed or slow (slower than the slow call time, in ms)
+    // requests opening it, and time the server is left alone once open (in ms, doubled
+    // each time a probe fails, up to the max)
+    public static final String REMOTE_BREAKER_WINDOW = "crunchmail_remote_breaker_window";
+    public static final String REMOTE_BREAKER_ERROR_RATE = "crunchmail_remote_breaker_error_rate";
+    public static final String REMOTE_BREAKER_SLOW_CALL = "crunchmail_remote_breaker_slow_call";
+    public static final String REMOTE_BREAKER_SLOW_RATE = "crunchmail_remote_breaker_slow_rate";
+    public static final String REMOTE_BREAKER_BACKOFF = "crunchmail_remote_breaker_backoff";
+    public static final String REMOTE_BREAKER_MAX_BACKOFF = "crunchmail_remote_breaker_max_backoff";
+    // Crawled folders cache: max size in MB (0 disables it) and entries lifetime in seconds
+    public static final String CONTACTS_CACHE_SIZE = "crunchmail_contacts_cache_size";
+    public static final String CONTACTS_CACHE_TTL = "crunchmail_contacts_cache_ttl";
+    // Paginated GetContacts results: max size of the snapshots kept in MB and their lifetime in seconds
+    public static final String PAGE_SNAPSHOTS_SIZE = "crunchmail_page_snapshots_size";
+    public static final String PAGE_SNAPSHOTS_TTL = "crunchmail_page_snapshots_ttl";
+    // Number of contact group GAL members resolved per directory search
+    public static final String GAL_BATCH_SIZE = "crunchmail_gal_batch_size";
+    // Expanded distribution lists cache: number of lists (0 disables it) and entries lifetime in seconds
+    public static final String LISTS_CACHE_SIZE = "crunchmail_lists_cache_size";
+    public static final String LISTS_CACHE_TTL = "crunchmail_lists_cache_ttl";
+    // Cache of the folders crawled for other servers: max size in MB (0 disables it) and entries lifetime in seconds
+    public static final String REMOTE_CACHE_SIZE = "crunchmail_remote_cache_size";
+    public static final String REMOTE_CACHE_TTL = "crunchmail_remote_cache_ttl";
+    // Cache of the folders received from other servers: max size in MB (0 disables it) and entries lifetime in seconds
+    public static final String REMOTE_RESPONSE_CACHE_SIZE = "crunchmail_remote_response_cache_size";
+    public static final String REMOTE_RESPONSE_CACHE_TTL = "crunchmail_remote_response_cache_ttl";
+
+    private static Logger logger = new Logger();
+
+    public static String get(String name) {
+        return get(name, null);
+    }
+
+    public static String get(String name, String def) {
+        String value = LC.get(name);
+        if (Strings.isNullOrEmpty(value)) {
+            return def;
+        }
+        return value.trim();
+    }
+
+    public static int getInt(String name, int def) {
+        String value = get(name);
+        if (value == null) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid integer value for localconfig key " + name + ": " + value);
+            return def;
+        }
+    }
+
+    public static long getLong(String name, long def) {
+        String value = get(name);
+        if (value == null) {
+            return def;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid long value for localconfig key " + name + ": " + value);
+            return def;
+        }
+    }
+
+    public static boolean getBool(String name, boolean def) {
+        String value = get(name);
+        if (value == null) {
+            return def;
+        }
+        return value.equalsIgnoreCase("true") || value.equals("1");
+    }
+}
@@ -0,0 +1,76 @@
+package com.crunchmail.extension;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Token handed to the client with every contacts response, to ask only for
+ * what changed since on its next request.
+ *
+ * It holds the change sequence of each mailbox the contacts were read from
+ * (read before reading them) and a hash of the crawled folders, so any
+ * change in the folders structure or settings leads to a full response.
+ *
+ * Encoded form: base64url of "1|structure|accountId=changeId,..."
+ */
+public class SyncToken {
+
+    private static final String VERSION = "1";
+
+    private final String mStructure;
+    private final Map<String, Integer> mChangeIds;
+
+    public SyncToken(String structure, Map<String, Integer> changeIds) {
+        mStructure = structure;
+        mChangeIds = new HashMap<String, Integer>(changeIds);
+    }
+
+    public String getStructure() {
+        return mStructure;
+    }
+
+    public Map<String, Integer> getChangeIds() {
+        return mChangeIds;
+    }
+
+    public String encode() {
+        StringBuilder sb = new StringBuilder(VERSION).append('|').append(mStructure).append('|');
+        boolean first = true;
+        // sorted so the same state always gives the same token
+        for (Map.Entry<String, Integer> entry : new TreeMap<String, Integer>(mChangeIds).entrySet()) {
+            if (!first) sb.append(',');
+            sb.append(entry.getKey()).append('=').append(entry.getValue());
+            first = false;
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the decoded token, null if it is malformed or from another version
+     */
+    public static SyncToken decode(String token) {
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            String[] parts = decoded.split("\\|", -1);
+            if (parts.length != 3 || !parts[0].equals(VERSION)) {
+                return null;
+            }
+
+            Map<String, Integer> changeIds = new HashMap<String, Integer>();
+            if (!parts[2].isEmpty()) {
+                for (String pair : parts[2].split(",")) {
+                    int idx = pair.indexOf('=');
+                    if (idx <= 0) return null;
+                    changeIds.put(pair.substring(0, idx), Integer.parseInt(pair.substring(idx + 1)));
+                }
+            }
+            return new SyncToken(parts[1], changeIds);
+        } catch (IllegalArgumentException e) {
+            // bad base64 or number
+            return null;
+        }
+    }
+}
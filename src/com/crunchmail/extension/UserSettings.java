@@ -1,14 +1,34 @@
 package com.crunchmail.extension;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element;
 import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
 
 import com.crunchmail.extension.Logger;
 
+/**
+ * Zimlet settings of an account, read from its zimletUserProperties.
+ *
+ * Settings are cached per account and parsed once: an entry is used as long
+ * as the account's properties are unchanged, so modifying the account
+ * invalidates it. Reading settings never writes to LDAP, old properties
+ * are removed by a background job.
+ */
 public class UserSettings {
 
     public static final String INCLUDE_SHARED = "contacts_include_shared";
@@ -17,40 +37,108 @@ public class UserSettings {
     public static final String DLIST_DIRECT_MEMBER_ONLY = "contacts_dlist_direct_member_only";
     public static final String DLIST_INCLUDE_HIDE_IN_GAL = "contacts_dlist_include_hide_in_gal";
 
+    private static final Cache<String, UserSettings> sCache = CacheBuilder.newBuilder()
+        .maximumSize(10000)
+        .expireAfterAccess(1, TimeUnit.HOURS)
+        .build();
+    // Accounts whose old properties were already handed to the cleanup job
+    private static final Set<String> sCleaned = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private static Logger logger = new Logger();
+
+    // Properties the settings were parsed from
+    private String[] mProperties;
     private Map<String, String> settings;
+    // Parsed values, by name (and delimiter for arrays)
+    private ConcurrentMap<String, String[]> mArrays = new ConcurrentHashMap<String, String[]>();
+    private ConcurrentMap<String, Boolean> mBools = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * @return the settings of an account, from the cache if its properties didn't change
+     */
+    public static UserSettings forAccount(Account account) throws ServiceException {
+        String[] properties = account.getZimletUserProperties();
+        UserSettings cached = sCache.getIfPresent(account.getId());
+        if (cached != null && Arrays.equals(cached.mProperties, properties)) {
+            return cached;
+        }
 
-    private Logger logger = new Logger();
+        UserSettings settings = new UserSettings(account, properties);
+        sCache.put(account.getId(), settings);
+        return settings;
+    }
 
-    public UserSettings(Account account) throws ServiceException {
+    public static void invalidate(String accountId) {
+        sCache.invalidate(accountId);
+    }
+
+    public static void clearCache() {
+        sCache.invalidateAll();
+        sCleaned.clear();
+    }
+
+    private UserSettings(Account account, String[] properties) {
+        mProperties = properties;
         settings = new HashMap<String, String>();
+        List<String> old = new ArrayList<String>();
 
-        String[] properties = account.getZimletUserProperties();
         for (String property : properties) {
             // 1: zimlet name
             // 2: property name
             // 3: property value
             String[] elements = property.split(":", 3);
 
-            /**
-             * 			TEMP
-             *  remove old settings
-             */
-            if (elements[0].equals("crunchmail_zimlet") || elements[0].equals("munchmail_zimlet")) {
-                logger.info("Removing old user property: " + property);
-                account.removeZimletUserProperties(property);
-                continue;
-            }
-            if (elements[0].equals("com_crunchmail_zimlet") && (elements[1].startsWith("crunchmail_") || elements[1].equals("contacts_dlist_owner_of"))) {
-                logger.info("Removing old user property: " + property);
-                account.removeZimletUserProperties(property);
+            if (isOldProperty(elements)) {
+                old.add(property);
                 continue;
             }
-            /*******/
 
             if (elements[0].equals("com_crunchmail_zimlet") && elements.length == 3) {
                 settings.put(elements[1], elements[2]);
             }
         }
+
+        if (!old.isEmpty()) {
+            scheduleCleanup(account.getId(), old);
+        }
+    }
+
+    /**
+     * Properties of older versions of the zimlet
+     */
+    private static boolean isOldProperty(String[] elements) {
+        if (elements[0].equals("crunchmail_zimlet") || elements[0].equals("munchmail_zimlet")) {
+            return true;
+        }
+        return elements[0].equals("com_crunchmail_zimlet") && elements.length > 1
+            && (elements[1].startsWith("crunchmail_") || elements[1].equals("contacts_dlist_owner_of"));
+    }
+
+    /**
+     * Remove old properties in the background, once per account
+     */
+    private static void scheduleCleanup(final String accountId, final List<String> properties) {
+        ExecutorService executor = CrunchmailExtension.getMaintenanceExecutor();
+        if (executor == null || !sCleaned.add(accountId)) {
+            return;
+        }
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Account account = Provisioning.getInstance().getAccount(accountId);
+                    if (account == null) return;
+                    for (String property : properties) {
+                        logger.info("Removing old user property: " + property);
+                        account.removeZimletUserProperties(property);
+                    }
+                } catch (ServiceException e) {
+                    logger.warn("Unable to remove old user properties of account " + accountId, e);
+                    // try again next time the settings are read
+                    sCleaned.remove(accountId);
+                }
+            }
+        });
     }
 
     public String get(String name) {
@@ -75,7 +163,14 @@ public class UserSettings {
 
     public String[] getArray(String name, String delimiter, String[] def) {
         if (settings.containsKey(name)) {
-            return settings.get(name).split(delimiter);
+            String key = name + "\0" + delimiter;
+            String[] values = mArrays.get(key);
+            if (values == null) {
+                values = settings.get(name).split(delimiter);
+                mArrays.putIfAbsent(key, values);
+            }
+            // settings are shared, don't let callers modify them
+            return values.clone();
         } else {
             return def;
         }
@@ -87,12 +182,16 @@ public class UserSettings {
 
     public boolean getBool(String name, boolean def) {
         if (settings.containsKey(name)) {
-            try {
-                boolean bool = Element.parseBool("", settings.get(name));
-                return bool;
-            } catch (ServiceException e) {
-                return def;
+            Boolean bool = mBools.get(name);
+            if (bool == null) {
+                try {
+                    bool = Element.parseBool("", settings.get(name));
+                    mBools.putIfAbsent(name, bool);
+                } catch (ServiceException e) {
+                    return def;
+                }
             }
+            return bool;
         } else {
             return def;
         }
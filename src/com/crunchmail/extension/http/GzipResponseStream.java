@@ -0,0 +1,76 @@
+package com.crunchmail.extension.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Response body stream that only compresses once the threshold is reached.
+ *
+ * Output is buffered until then, so the Content-Encoding header can still be
+ * set; smaller bodies are sent as is when the stream is closed.
+ */
+public class GzipResponseStream extends OutputStream {
+
+    private final HttpServletResponse mResponse;
+    private final int mThreshold;
+    private ByteArrayOutputStream mBuffer;
+    private GZIPOutputStream mGzip;
+    private boolean mClosed = false;
+
+    public GzipResponseStream(HttpServletResponse response, int threshold) {
+        mResponse = response;
+        mThreshold = threshold;
+        mBuffer = new ByteArrayOutputStream(Math.min(threshold, 8192));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mGzip == null) {
+            if (mBuffer.size() + len <= mThreshold) {
+                mBuffer.write(b, off, len);
+                return;
+            }
+            startGzip();
+        }
+        mGzip.write(b, off, len);
+    }
+
+    private void startGzip() throws IOException {
+        mResponse.setHeader("Content-Encoding", "gzip");
+        mGzip = new GZIPOutputStream(mResponse.getOutputStream(), 8192);
+        mBuffer.writeTo(mGzip);
+        mBuffer = null;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // nothing to do while buffering, flushing would commit the headers
+        if (mGzip != null) {
+            mGzip.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+
+        if (mGzip != null) {
+            mGzip.finish();
+        } else {
+            mResponse.setContentLength(mBuffer.size());
+            mBuffer.writeTo(mResponse.getOutputStream());
+        }
+        mResponse.getOutputStream().flush();
+    }
+}
@@ -0,0 +1,198 @@
+package com.crunchmail.extension.http;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.account.ZAttrProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.account.Server;
+
+import com.crunchmail.extension.Logger;
+import com.crunchmail.extension.ServerSettings;
+
+/**
+ * Extension-wide pool of keep-alive connections to the other mailbox servers,
+ * used for server-to-server folder fetches.
+ *
+ * The client is thread-safe and shared by all requests. Settings are read
+ * from localconfig when the pool is created.
+ */
+public class HttpClientPool {
+
+    public static final String REMOTE_FOLDER_PATH = "/service/extension/crunchmail/getremotefolder";
+
+    private PoolingClientConnectionManager mConnManager;
+    private DefaultHttpClient mClient;
+    private HttpParams mParams;
+    private int mConnectTimeout;
+    private int mReadTimeout;
+    private long mKeepAlive;
+    private boolean mCompression;
+    private int mCompressionThreshold;
+    // Servers that told us they accept gzipped request bodies
+    private ConcurrentMap<String, Boolean> mGzipRequestServers = new ConcurrentHashMap<String, Boolean>();
+
+    private Logger mLogger = new Logger();
+
+    public HttpClientPool() {
+        int maxTotal = ServerSettings.getInt(ServerSettings.HTTP_MAX_TOTAL, 100);
+        int maxPerRoute = ServerSettings.getInt(ServerSettings.HTTP_MAX_PER_ROUTE, 20);
+        mConnectTimeout = ServerSettings.getInt(ServerSettings.HTTP_CONNECT_TIMEOUT, 5000);
+        mReadTimeout = ServerSettings.getInt(ServerSettings.HTTP_READ_TIMEOUT, 60000);
+        mKeepAlive = ServerSettings.getLong(ServerSettings.HTTP_KEEPALIVE, 30000);
+        mCompression = ServerSettings.getBool(ServerSettings.HTTP_COMPRESSION, true);
+        // a negative threshold compresses everything, as 0 does
+        mCompressionThreshold = Math.max(ServerSettings.getInt(ServerSettings.HTTP_COMPRESSION_THRESHOLD, 4096), 0);
+
+        mConnManager = new PoolingClientConnectionManager();
+        mConnManager.setMaxTotal(maxTotal);
+        mConnManager.setDefaultMaxPerRoute(maxPerRoute);
+
+        mParams = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(mParams, mConnectTimeout);
+        HttpConnectionParams.setSoTimeout(mParams, mReadTimeout);
+        HttpConnectionParams.setStaleCheckingEnabled(mParams, true);
+
+        mClient = new DefaultHttpClient(mConnManager, mParams);
+        mClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                // Jetty doesn't send a Keep-Alive header, use our own duration
+                return mKeepAlive;
+            }
+        });
+
+        mLogger.info("HTTP client pool created (max total: " + maxTotal + ", max per route: " + maxPerRoute +
+            ", connect timeout: " + mConnectTimeout + "ms, read timeout: " + mReadTimeout + "ms, keep-alive: " + mKeepAlive + "ms, compression: " + (mCompression ? "over " + mCompressionThreshold + " bytes" : "off") + ")");
+    }
+
+    /**
+     * @return the shared client, backed by the pool
+     */
+    public DefaultHttpClient getClient() {
+        return mClient;
+    }
+
+    /**
+     * @return default timeouts in milliseconds, requests can use shorter ones
+     */
+    public int getConnectTimeout() {
+        return mConnectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return mReadTimeout;
+    }
+
+    /**
+     * @return whether payloads should be gzipped at all
+     */
+    public boolean isCompressionEnabled() {
+        return mCompression;
+    }
+
+    /**
+     * @return size in bytes under which payloads are not worth compressing
+     */
+    public int getCompressionThreshold() {
+        return mCompressionThreshold;
+    }
+
+    /**
+     * We only know a server decodes gzipped requests once it has answered one of ours
+     * with an Accept-Encoding header, older versions would fail to parse them.
+     */
+    public boolean acceptsGzipRequests(String serverName) {
+        Boolean accepts = mGzipRequestServers.get(serverName);
+        return accepts != null && accepts;
+    }
+
+    public void setAcceptsGzipRequests(String serverName, boolean accepts) {
+        mGzipRequestServers.put(serverName, accepts);
+    }
+
+    /**
+     * @return leased, pending, available and max connections of the whole pool
+     */
+    public PoolStats getStats() {
+        return mConnManager.getTotalStats();
+    }
+
+    public PoolStats getStats(HttpHost host) {
+        return mConnManager.getStats(new HttpRoute(host));
+    }
+
+    /**
+     * Open a connection to each of the given servers and put it back in the pool,
+     * so the first requests don't pay for the TCP and TLS setup.
+     */
+    public void warmUp(List<Server> servers) {
+        for (Server server : servers) {
+            HttpHost host = getHost(server);
+            HttpRoute route = new HttpRoute(host);
+            try {
+                ClientConnectionRequest request = mConnManager.requestConnection(route, null);
+                ManagedClientConnection conn = request.getConnection(mConnectTimeout, TimeUnit.MILLISECONDS);
+                try {
+                    conn.open(route, new BasicHttpContext(), mParams);
+                    conn.markReusable();
+                } finally {
+                    mConnManager.releaseConnection(conn, mKeepAlive, TimeUnit.MILLISECONDS);
+                }
+                mLogger.debug("Warmed up connection to " + host);
+            } catch (Exception e) {
+                mLogger.warn("Unable to warm up connection to " + host + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Drop the connections that expired or have been idle for too long
+     */
+    public void closeIdleConnections() {
+        mConnManager.closeExpiredConnections();
+        mConnManager.closeIdleConnections(mKeepAlive, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        mLogger.info("Shutting down HTTP client pool");
+        mConnManager.shutdown();
+    }
+
+    /**
+     * @return scheme, name and port of the server's mail service
+     */
+    public static HttpHost getHost(Server server) {
+        ZAttrProvisioning.MailMode mode = server.getMailMode();
+        if (mode.isHttp()) {
+            return new HttpHost(server.getName(), Integer.parseInt(server.getMailPortAsString()), "http");
+        } else {
+            return new HttpHost(server.getName(), Integer.parseInt(server.getMailSSLPortAsString()), "https");
+        }
+    }
+
+    /**
+     * @return full URL of the getremotefolder handler on the given server
+     */
+    public static String getRemoteFolderUrl(String serverName) throws ServiceException {
+        Server server = Provisioning.getInstance().getServerByName(serverName);
+        return getHost(server).toURI() + REMOTE_FOLDER_PATH;
+    }
+}
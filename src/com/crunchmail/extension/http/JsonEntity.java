@@ -0,0 +1,60 @@
+package com.crunchmail.extension.http;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import org.apache.http.entity.AbstractHttpEntity;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * HTTP entity serializing its payload as JSON straight to the connection,
+ * without building the whole document in memory first.
+ */
+public class JsonEntity extends AbstractHttpEntity {
+
+    private final Gson mGson;
+    private final Object mPayload;
+
+    public JsonEntity(Gson gson, Object payload) {
+        mGson = gson;
+        mPayload = payload;
+        setContentType("application/json; charset=UTF-8");
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        // Only used if something wants to read the entity back
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, "UTF-8")));
+        mGson.toJson(mPayload, mPayload.getClass(), writer);
+        // flush but don't close, the connection owns the stream
+        writer.flush();
+    }
+}
@@ -2,19 +2,29 @@ package com.crunchmail.extension.http.handlers;
 
 import java.util.Set;
 import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.StringTokenizer;
 import java.lang.reflect.Type;
 import java.io.IOException;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.util.zip.GZIPInputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
 
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.cs.extension.ExtensionHttpHandler;
@@ -25,33 +35,87 @@ import com.zimbra.cs.account.AuthTokenException;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.Mailbox.FolderNode;
 import com.zimbra.cs.mailbox.MailboxManager;
 import com.zimbra.cs.mailbox.OperationContext;
 
+import com.crunchmail.extension.ContactsCache;
+import com.crunchmail.extension.CrunchmailExtension;
 import com.crunchmail.extension.Logger;
+import com.crunchmail.extension.Metrics;
+import com.crunchmail.extension.ServerSettings;
 import com.crunchmail.extension.ContactsFetcher;
+import com.crunchmail.extension.ContactsCrawler;
 import com.crunchmail.extension.ContactsCrawler.Collection;
 import com.crunchmail.extension.ContactsCrawler.Tree;
 import com.crunchmail.extension.ContactsCrawler.RemoteResponse;
+import com.crunchmail.extension.RemoteFolderCache;
+import com.crunchmail.extension.http.GzipResponseStream;
 
 
 public class RemoteFolderHandler extends ExtensionHttpHandler {
 
+    // The caller's copy of the item is still good, no content to send
+    private static class NotModifiedException extends Exception {}
+
+    class FolderItem {
+        public String account;
+        public int item = 0;
+        // Etag of the caller's copy, as If-None-Match for single requests
+        public String etag;
+
+        public boolean validate() {
+            return (account != null) && (item != 0);
+        }
+    }
+
     class FolderRequest {
         public boolean tree = false;
         public String account;
         public int item = 0;
+        // Batched requests: all the folders the caller wants from this server
+        public List<FolderItem> items;
         public String[] includeFields;
+        // Existing refs of the caller, to be matched here (older callers)
         public Set<String> existing = new HashSet<String>();
+        // set when the caller reconciles its existing refs itself
+        public boolean noReconcile = false;
+        // Change sequences of the caller's sync token, to report deletions since
+        public Map<String, Integer> since;
         public boolean debug = false;
 
+        public boolean isBatch() {
+            return items != null;
+        }
+
+        /**
+         * @return the caller's existing refs to match, null if it matches them itself
+         */
+        public Set<String> getExisting() {
+            if (noReconcile) return null;
+            return existing == null ? new HashSet<String>() : new HashSet<String>(existing);
+        }
+
         public boolean validate() {
-            return (account != null) && (item != 0) && (includeFields != null && includeFields.length != 0);
+            if (includeFields == null || includeFields.length == 0) {
+                return false;
+            }
+            if (isBatch()) {
+                if (items.isEmpty()) return false;
+                for (FolderItem folderItem : items) {
+                    if (folderItem == null || !folderItem.validate()) return false;
+                }
+                return true;
+            }
+            return (account != null) && (item != 0);
         }
     }
 
-    private HttpServletResponse mResponse;
-    private OperationContext mOctxt;
+    // Only used for writing: the adapters are stateless so it is shared by all requests
+    private static final Gson sResponseGson = ContactsCrawler.createGson(null);
+
+    private boolean mCompression;
+    private int mCompressionThreshold;
 
     private Logger mLogger = new Logger(true);
 
@@ -62,11 +126,16 @@ public class RemoteFolderHandler extends ExtensionHttpHandler {
 
     public void init(ZimbraExtension ext) throws ServiceException {
         super.init(ext);
-        // your initialization
+        mCompression = ServerSettings.getBool(ServerSettings.HTTP_COMPRESSION, true);
+        // a negative threshold compresses everything, as 0 does
+        mCompressionThreshold = Math.max(ServerSettings.getInt(ServerSettings.HTTP_COMPRESSION_THRESHOLD, 4096), 0);
     }
 
-    private boolean authenticateRequest(HttpServletRequest req) {
-        boolean auth = false;
+    /**
+     * @return the context of the account owning the token, null if authentication failed
+     */
+    private OperationContext authenticateRequest(HttpServletRequest req) {
+        OperationContext octxt = null;
 
         String authHeader = req.getHeader("Authorization");
         if (authHeader != null) {
@@ -80,8 +149,7 @@ public class RemoteFolderHandler extends ExtensionHttpHandler {
                         String token = st.nextToken();
                         AuthToken authToken = AuthToken.getAuthToken(token);
                         if (!authToken.isExpired() && authToken.isZimbraUser()) {
-                            mOctxt = new OperationContext(authToken.getAccount());
-                            auth = true;
+                            octxt = new OperationContext(authToken.getAccount());
                         }
                     } catch (ServiceException|AuthTokenException e) {
                         mLogger.error("RemoteFolderHandler - Token Authentication Exception: " + e.getMessage());
@@ -90,104 +158,278 @@ public class RemoteFolderHandler extends ExtensionHttpHandler {
             }
         }
 
-        return auth;
+        return octxt;
     }
 
-    private boolean isAuthorized(Mailbox mbox, ItemId iid) throws ServiceException {
+    /**
+     * @return the folder subtree as seen by the remote account, null if it can't access it
+     */
+    private FolderNode getAuthorizedTree(OperationContext octxt, Mailbox mbox, ItemId iid) throws ServiceException {
         try {
             // will throw an exception if current user does not have sufficient permissions on owner's object
             // IMPORTANT: needs false as last argument for exception to be thrown
-            mbox.getFolderTree(mOctxt, iid, false);
+            return mbox.getFolderTree(octxt, iid, false);
         } catch (ServiceException e) {
             if (e.getCode().equals(ServiceException.PERM_DENIED)) {
                 // if it is a permission denied, fail gracefully
-                mLogger.error("RemoteFolderHandler - Can't access requested item ("+ mbox.getAccount().getId() +":"+ iid.getId() +") with account "+ mOctxt.getAuthenticatedUser().getId() +". Permission denied.");
-                return false;
+                mLogger.error("RemoteFolderHandler - Can't access requested item ("+ mbox.getAccount().getId() +":"+ iid.getId() +") with account "+ octxt.getAuthenticatedUser().getId() +". Permission denied.");
+                return null;
             } else {
                 // re-raise
                 throw e;
             }
         }
-
-        return true;
     }
 
-    private void processRequest(HttpServletRequest request) throws ServletException, IOException, ServiceException {
+    private void processRequest(HttpServletRequest request, HttpServletResponse response, OperationContext octxt) throws ServletException, IOException, ServiceException {
         Gson gson = new Gson();
 
-        StringBuilder sb = new StringBuilder();
-        String s;
-        while ((s = request.getReader().readLine()) != null) {
-           sb.append(s);
+        String encoding = request.getHeader("Content-Encoding");
+        if (encoding != null && !encoding.equalsIgnoreCase("gzip") && !encoding.equalsIgnoreCase("identity")) {
+            sendResponse(request, response, "Unsupported content encoding: " + encoding, HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            return;
         }
 
-        FolderRequest req = gson.fromJson(sb.toString(), FolderRequest.class);
+        FolderRequest req;
+        try {
+            // parse straight from the request body
+            req = gson.fromJson(getRequestReader(request), FolderRequest.class);
+        } catch (JsonParseException e) {
+            req = null;
+        }
 
         // Validate the request
-        if (!req.validate()) {
-           sendResponse("Request badly formatted. Missing required attributes.", HttpServletResponse.SC_BAD_REQUEST);
+        if (req == null || !req.validate()) {
+           sendResponse(request, response, "Request badly formatted. Missing required attributes.", HttpServletResponse.SC_BAD_REQUEST);
+        } else if (req.isBatch()) {
+            processBatchRequest(request, response, octxt, req);
         } else {
 
+            String etag = request.getHeader("If-None-Match");
             try {
-                mLogger.debug("Remote server asking for folder content (account: "+req.account+", item: "+req.item+", remote account: "+mOctxt.getAuthenticatedUser().getId()+")");
-                Account account = Provisioning.getInstance().getAccount(req.account);
-                Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(req.account);
-                ItemId iid = new ItemId(req.account, req.item);
-
-                if (isAuthorized(mbox, iid)) {
-                    ContactsFetcher fetcher = new ContactsFetcher(mbox, account, req.debug, req.existing, req.includeFields, true);
-
-                    if (req.tree) {
-                        Tree tree = fetcher.fetchTree(iid);
-                        // sendResponse(tree);
-                        RemoteResponse resp = fetcher.makeResponse(tree);
-                        sendResponse(resp);
-                    } else {
-                        Collection collection = fetcher.fetchCollection(iid);
-                        // sendResponse(collection);
-                        RemoteResponse resp = fetcher.makeResponse(collection);
-                        sendResponse(resp);
-                    }
+                RemoteResponse resp = fetchItem(octxt, req.account, req.item, req, req.getExisting(), etag);
+                if (resp != null) {
+                    sendResponse(request, response, resp);
                 } else {
-                    sendResponse("Not authorized to access requested item.", HttpServletResponse.SC_UNAUTHORIZED);
+                    sendResponse(request, response, "Not authorized to access requested item.", HttpServletResponse.SC_UNAUTHORIZED);
                 }
 
+            } catch (NotModifiedException e) {
+                sendNotModified(response, etag);
             } catch (Exception e) {
                 mLogger.error("RemoteFolderHandler - Exception while processing request: " + e);
-                sendResponse("Error while processing request.", HttpServletResponse.SC_INTERNAL_SERVER_ERROR );
+                sendResponse(request, response, "Error while processing request.", HttpServletResponse.SC_INTERNAL_SERVER_ERROR );
             }
         }
     }
 
-    private void sendResponse(Object payload) throws IOException{
-        sendResponse(payload, HttpServletResponse.SC_OK);
+    /**
+     * Answer all the items of a batched request in one response, keyed per item.
+     * A failing item is reported in the errors map and doesn't fail the others,
+     * items still matching the caller's etag are only listed as not modified.
+     *
+     * Each item is written as soon as it is crawled, so only one is held in memory at a time.
+     */
+    private void processBatchRequest(HttpServletRequest request, HttpServletResponse response, OperationContext octxt, FolderRequest req) throws IOException {
+        mLogger.debug("Remote server asking for " + req.items.size() + " folder(s) in one request");
+        Map<String, String> errors = new HashMap<String, String>();
+        List<String> notModified = new ArrayList<String>();
+
+        JsonWriter writer = startResponse(request, response, HttpServletResponse.SC_OK);
+        writer.beginObject();
+        writer.name("responses").beginObject();
+
+        for (FolderItem folderItem : req.items) {
+            String key = ContactsCrawler.remoteItemKey(folderItem.account, folderItem.item);
+            RemoteResponse resp = null;
+            try {
+                // older callers: every item is matched against the full existing set, as separate requests would
+                resp = fetchItem(octxt, folderItem.account, folderItem.item, req, req.getExisting(), folderItem.etag);
+                if (resp == null) {
+                    errors.put(key, "Not authorized to access requested item.");
+                }
+            } catch (NotModifiedException e) {
+                notModified.add(key);
+            } catch (Exception e) {
+                mLogger.error("RemoteFolderHandler - Exception while processing item " + key + ": " + e);
+                errors.put(key, "Error while processing request.");
+            }
+
+            if (resp != null) {
+                writer.name(key);
+                sResponseGson.toJson(resp, RemoteResponse.class, writer);
+            }
+        }
+
+        writer.endObject();
+        writer.name("errors").beginObject();
+        for (Map.Entry<String, String> error : errors.entrySet()) {
+            writer.name(error.getKey()).value(error.getValue());
+        }
+        writer.endObject();
+        if (!notModified.isEmpty()) {
+            writer.name("notModified").beginArray();
+            for (String key : notModified) {
+                writer.value(key);
+            }
+            writer.endArray();
+        }
+        writer.endObject();
+        writer.close();
     }
 
-    private void sendResponse(String error, int status) throws IOException{
-        Map<String, String> payload = new HashMap<String, String>();
-        payload.put("error", error);
-        sendResponse(payload, status);
+    /**
+     * Crawl one shared item for the remote account
+     * @param  etag etag of the caller's copy of the item, null if none
+     * @return the response, or null if the remote account can't access the item
+     * @throws NotModifiedException if the caller's copy is still good
+     */
+    private RemoteResponse fetchItem(OperationContext octxt, String accountId, int itemId, FolderRequest req, Set<String> existing, String etag) throws ServiceException, NotModifiedException {
+        mLogger.debug("Remote server asking for folder content (account: "+accountId+", item: "+itemId+", remote account: "+octxt.getAuthenticatedUser().getId()+")");
+        Account account = Provisioning.getInstance().getAccount(accountId);
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(accountId);
+        ItemId iid = new ItemId(accountId, itemId);
+
+        FolderNode root = getAuthorizedTree(octxt, mbox, iid);
+        if (root == null) {
+            return null;
+        }
+
+        // The crawl is the same for all the requesters, and the folder tree
+        // just read tells whether a cached one is still good
+        RemoteFolderCache cache = CrunchmailExtension.getRemoteFolderCache();
+        Long subtreeStamp = cache == null ? null : RemoteFolderCache.subtreeStamp(root);
+        if (subtreeStamp != null) {
+            String key = RemoteFolderCache.key(accountId, itemId, req.includeFields, req.tree);
+            long contactsStamp = ContactsCache.contactsStamp(mbox);
+            RemoteFolderCache.Entry entry = cache.get(key, subtreeStamp, contactsStamp);
+            if (entry == null) {
+                entry = cache.put(key, crawlItem(mbox, account, iid, req), subtreeStamp, contactsStamp);
+            } else {
+                mLogger.debug("Answering from the remote folder cache");
+            }
+            if (entry.isNotModified(etag, req.since)) {
+                throw notModified();
+            }
+            return entry.makeResponse(existing, req.since);
+        }
+
+        // Not cached: streamed out straight from the crawl, without an etag
+        // as the results are never written out whole to be hashed
+        ContactsFetcher fetcher = new ContactsFetcher(mbox, account, req.debug, existing == null ? new HashSet<String>() : existing, req.includeFields, true);
+        fetcher.setSince(req.since);
+        RemoteResponse response;
+        if (req.tree) {
+            Tree tree = fetcher.fetchTree(iid);
+            response = fetcher.makeResponse(tree);
+        } else {
+            Collection collection = fetcher.fetchCollection(iid);
+            response = fetcher.makeResponse(collection);
+        }
+        if (existing == null) {
+            // the requester matches its existing refs itself
+            response.existing = null;
+            response.existingCollection = null;
+        }
+        return response;
     }
 
-    private void sendResponse(Object payload, int status) throws IOException{
-        Gson gson = new Gson();
-        mResponse.setContentType("application/json");
-        mResponse.setStatus(status);
-        mResponse.getOutputStream().print(gson.toJson(payload));
-        mResponse.getOutputStream().flush();
+    /**
+     * Crawl an item without existing refs, so the results can be shared
+     */
+    private ContactsFetcher crawlItem(Mailbox mbox, Account account, ItemId iid, FolderRequest req) throws ServiceException {
+        ContactsFetcher fetcher = new ContactsFetcher(mbox, account, req.debug, new HashSet<String>(), req.includeFields, true);
+        if (req.tree) {
+            fetcher.fetchTree(iid);
+        } else {
+            fetcher.fetchCollection(iid);
+        }
+        return fetcher;
     }
 
-    public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException, ServletException {
-        mResponse = resp;
+    private NotModifiedException notModified() {
+        mLogger.debug("Caller's copy of the folder is up to date");
+        Metrics.increment("remotefolder.notModified");
+        return new NotModifiedException();
+    }
+
+    /**
+     * @return a reader on the request body, decompressed if the client sent it gzipped
+     */
+    private Reader getRequestReader(HttpServletRequest request) throws IOException {
+        String encoding = request.getHeader("Content-Encoding");
+        if (encoding != null && encoding.equalsIgnoreCase("gzip")) {
+            return new InputStreamReader(new GZIPInputStream(request.getInputStream(), 8192), "UTF-8");
+        }
+        return request.getReader();
+    }
 
+    private boolean acceptsGzip(HttpServletRequest request) {
+        String accept = request.getHeader("Accept-Encoding");
+        return accept != null && accept.toLowerCase().contains("gzip");
+    }
+
+    private void sendResponse(HttpServletRequest request, HttpServletResponse response, RemoteResponse payload) throws IOException{
+        if (payload.etag != null) {
+            response.setHeader("ETag", payload.etag);
+        }
+        JsonWriter writer = startResponse(request, response, HttpServletResponse.SC_OK);
+        sResponseGson.toJson(payload, RemoteResponse.class, writer);
+        writer.close();
+    }
+
+    private void sendResponse(HttpServletRequest request, HttpServletResponse response, String error, int status) throws IOException{
+        JsonWriter writer = startResponse(request, response, status);
+        writer.beginObject();
+        writer.name("error").value(error);
+        writer.endObject();
+        writer.close();
+    }
+
+    private void sendNotModified(HttpServletResponse response, String etag) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        response.setHeader("ETag", etag);
+        setEncodingHeaders(response);
+    }
+
+    private void setEncodingHeaders(HttpServletResponse response) {
+        // tell the client it can send us gzipped requests (RFC 7694)
+        response.setHeader("Accept-Encoding", mCompression ? "gzip" : "identity");
+        response.setHeader("Vary", "Accept-Encoding");
+    }
+
+    /**
+     * Set status and headers, and return a writer on the response body.
+     * The body is gzipped if the client accepts it and it goes over the threshold.
+     */
+    private JsonWriter startResponse(HttpServletRequest request, HttpServletResponse response, int status) throws IOException{
+        response.setContentType("application/json; charset=UTF-8");
+        response.setStatus(status);
+        setEncodingHeaders(response);
+
+        OutputStream out;
+        if (mCompression && acceptsGzip(request)) {
+            out = new GzipResponseStream(response, mCompressionThreshold);
+        } else {
+            out = response.getOutputStream();
+        }
+        return new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, "UTF-8")));
+    }
+
+    public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException, ServletException {
+        // the handler instance is shared by concurrent requests, keep their state on the stack
+        long start = System.nanoTime();
         try {
-            if (authenticateRequest(req)) {
-                processRequest(req);
+            OperationContext octxt = authenticateRequest(req);
+            if (octxt != null) {
+                processRequest(req, resp, octxt);
             } else {
-                sendResponse("Token authentication failed.", HttpServletResponse.SC_UNAUTHORIZED);
+                sendResponse(req, resp, "Token authentication failed.", HttpServletResponse.SC_UNAUTHORIZED);
             }
         } catch (ServiceException e) {
             mLogger.error("RemoteFolderHandler - Exception while processing request: " + e);
+        } finally {
+            Metrics.recordTime("remotefolder.request", start);
         }
     }
 }
@@ -0,0 +1,107 @@
+package com.crunchmail.extension.lib;
+
+/**
+ * Single-pass helpers for the email addresses found in contacts and groups.
+ *
+ * They don't allocate unless they have to, as they run for every contact.
+ */
+public class AddressScanner
+{
+  private static final String ATEXT_SPECIALS = "!#$%&'*+/=?^_`{|}~-";
+
+  /**
+   * Extract the address of a header-like value ("Name <address>" or a bare
+   * address), without the commas and whitespace it may contain.
+   */
+  public static String extract(String value)
+  {
+    int start = 0;
+    int end = value.length();
+
+    int lt = value.indexOf('<');
+    if (lt >= 0) {
+      start = lt + 1;
+      int gt = value.indexOf('>', start);
+      if (gt >= 0) {
+        end = gt;
+      }
+    }
+
+    // Only copy when there is something to strip
+    int i = start;
+    while (i < end && !isStripped(value.charAt(i))) {
+      i++;
+    }
+    if (i == end) {
+      return (start == 0 && end == value.length()) ? value : value.substring(start, end);
+    }
+
+    StringBuilder sb = new StringBuilder(end - start);
+    sb.append(value, start, i);
+    for (; i < end; i++) {
+      char c = value.charAt(i);
+      if (!isStripped(c)) {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Check the common form of addresses: dot-atom local part and host name domain.
+   *
+   * Everything accepted here is also accepted by InternetAddress.validate(),
+   * addresses refused here still have to be checked with it.
+   */
+  public static boolean isSimpleAddress(String email)
+  {
+    int len = email.length();
+    int at = -1;
+    // start as if after a dot, so a leading dot is refused
+    char prev = '.';
+
+    for (int i = 0; i < len; i++) {
+      char c = email.charAt(i);
+      if (c == '@') {
+        if (at >= 0 || prev == '.') {
+          return false;
+        }
+        at = i;
+        // the domain can't start with a dot either
+        prev = '.';
+        continue;
+      }
+
+      if (c == '.') {
+        if (prev == '.') {
+          return false;
+        }
+      } else if (at < 0 ? !isAtext(c) : !isDomainChar(c)) {
+        return false;
+      }
+      prev = c;
+    }
+
+    return at > 0 && prev != '.';
+  }
+
+  private static boolean isStripped(char c)
+  {
+    return c == ',' || c == ' ' || c == '\t' || c == '\n' || c == '\r';
+  }
+
+  private static boolean isAlnum(char c)
+  {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+  }
+
+  private static boolean isAtext(char c)
+  {
+    return isAlnum(c) || ATEXT_SPECIALS.indexOf(c) >= 0;
+  }
+
+  private static boolean isDomainChar(char c)
+  {
+    return isAlnum(c) || c == '-';
+  }
+}
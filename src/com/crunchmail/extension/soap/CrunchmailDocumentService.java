@@ -43,5 +43,10 @@ public class CrunchmailDocumentService implements DocumentService{
             new GetContactsTree()
         );
 
+        dispatcher.registerHandler(
+            QName.get("GetStatsRequest", namespace),
+            new GetStats()
+        );
+
     }
 }
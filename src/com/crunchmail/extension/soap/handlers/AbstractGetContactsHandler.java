@@ -5,6 +5,12 @@ import java.util.Set;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 import com.google.common.base.Stopwatch;
 
 import com.zimbra.common.service.ServiceException;
@@ -17,7 +23,11 @@ import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.Tag;
 import com.zimbra.cs.mailbox.OperationContext;
 
+import com.crunchmail.extension.CrunchmailExtension;
 import com.crunchmail.extension.Logger;
+import com.crunchmail.extension.Metrics;
+import com.crunchmail.extension.ServerSettings;
+import com.crunchmail.extension.SyncToken;
 import com.crunchmail.extension.ListsFetcher;
 import com.crunchmail.extension.ListsFetcher.ListsCollection;
 
@@ -25,7 +35,11 @@ public abstract class AbstractGetContactsHandler extends DocumentHandler {
 
     private Logger mLogger;
 
-    abstract Element fetchContacts(ZimbraSoapContext zsc, Mailbox mbox, Account account, boolean debug, Set<String> existing) throws ServiceException;
+    /**
+     * @param deadline System.nanoTime() after which shared folders from other
+     *                 servers are returned as pending, 0 for none
+     */
+    abstract Element fetchContacts(Element request, ZimbraSoapContext zsc, Mailbox mbox, Account account, boolean debug, Set<String> existing, SyncToken token, long deadline) throws ServiceException;
 
     /**
      * Handle the SOAP the request
@@ -51,17 +65,85 @@ public abstract class AbstractGetContactsHandler extends DocumentHandler {
         // Remove duplicates
         Set<String> existing = new HashSet<String>(ex);
 
+        // Only send the changes since this token, if it can be used
+        SyncToken token = null;
+        String encodedToken = request.getAttribute("token", null);
+        if (encodedToken != null) {
+            token = SyncToken.decode(encodedToken);
+            if (token == null) mLogger.debug("Ignoring malformed sync token");
+        }
+
         // We time fetch exec time to return it to the client
         Stopwatch timer = new Stopwatch().start();
+        long start = System.nanoTime();
+
+        // Time budget from the server config, the client can ask for a shorter one
+        long budget = ServerSettings.getLong(ServerSettings.REQUEST_DEADLINE, 30000);
+        long requested = request.getAttributeLong("deadline", 0);
+        if (requested > 0 && (budget <= 0 || requested < budget)) {
+            budget = requested;
+        }
+        long deadline = budget > 0 ? start + TimeUnit.MILLISECONDS.toNanos(budget) : 0;
 
         ZimbraSoapContext zsc = getZimbraSoapContext(context);
-        Mailbox mbox = getRequestedMailbox(zsc);
+        final Mailbox mbox = getRequestedMailbox(zsc);
         Account account = mbox.getAccount();
 
-        Element response = fetchContacts(zsc, mbox, account, debug, existing);
+        // Lists (LDAP) and tags are fetched while the contacts (mailbox) are crawled.
+        // Each fetcher consumes its own copy of the existing refs.
+        final Set<String> listsExisting = new HashSet<String>(existing);
+        final ListsFetcher listsFetcher = new ListsFetcher(account, debug, listsExisting);
+        final Stopwatch listsTimer = new Stopwatch();
+        Future<ListsCollection> listsFuture = submit(new Callable<ListsCollection>() {
+            @Override
+            public ListsCollection call() throws ServiceException {
+                listsTimer.start();
+                try {
+                    return listsFetcher.fetch();
+                } finally {
+                    listsTimer.stop();
+                }
+            }
+        });
+
+        final Stopwatch tagsTimer = new Stopwatch();
+        Future<List<Tag>> tagsFuture = submit(new Callable<List<Tag>>() {
+            @Override
+            public List<Tag> call() throws ServiceException {
+                tagsTimer.start();
+                long tagsStart = System.nanoTime();
+                try {
+                    return mbox.getTagList(new OperationContext(mbox));
+                } finally {
+                    tagsTimer.stop();
+                    Metrics.recordTime("phase.tags", tagsStart);
+                }
+            }
+        });
+
+        Stopwatch contactsTimer = new Stopwatch().start();
+        long contactsStart = System.nanoTime();
+        Element response;
+        ListsCollection listsCollection;
+        List<Tag> tags;
+        boolean joined = false;
+        try {
+            response = fetchContacts(request, zsc, mbox, account, debug, existing, token, deadline);
+            contactsTimer.stop();
+            Metrics.recordTime("phase.contacts", contactsStart);
+
+            listsCollection = join(listsFuture);
+            tags = join(tagsFuture);
+            joined = true;
+        } finally {
+            if (!joined) {
+                // the request failed, don't keep the other phases running for nothing
+                listsFuture.cancel(true);
+                tagsFuture.cancel(true);
+            }
+        }
 
-        ListsFetcher listsFetcher = new ListsFetcher(account, debug, existing);
-        ListsCollection listsCollection = listsFetcher.fetch();
+        long serializationStart = System.nanoTime();
         listsCollection.toElement(response);
 
         Element el;
@@ -72,6 +154,8 @@ public abstract class AbstractGetContactsHandler extends DocumentHandler {
         }
         listsFetcher.mExistingCollection.toElement(el);
 
+        // Remaining refs are the ones neither fetcher found
+        existing.retainAll(listsExisting);
         if (existing.isEmpty()) {
             // add empty element so client doesn't have to test
             response.addUniqueElement("remaining");
@@ -82,21 +166,50 @@ public abstract class AbstractGetContactsHandler extends DocumentHandler {
             }
         }
 
-        OperationContext octxt = new OperationContext(mbox);
-        List<Tag> tags = mbox.getTagList(octxt);
         for (Tag tag : tags) {
             Element t = response.addNonUniqueElement("tags");
 
             t.addAttribute("name", tag.getName());
             t.addAttribute("color", tag.getRgbColor().toString());
         }
+        Metrics.recordTime("response.serialization.lists", serializationStart);
 
         // stop timing
         timer.stop();
 
-        response.addAttribute("timer", timer.toString());
-        mLogger.info("Fetched contacts in: "+timer);
+        String timings = timer + " (contacts: " + contactsTimer + ", lists: " + listsTimer + ", tags: " + tagsTimer + ")";
+        response.addAttribute("timer", timings);
+        Metrics.recordTime("request." + request.getName(), start);
+        Metrics.recordCount("request.lists", listsCollection.size());
+        mLogger.info("Fetched contacts in: " + timings);
 
         return response;
     }
+
+    /**
+     * Run a phase of the request on the request executor, or right away if there is none
+     */
+    private <T> Future<T> submit(Callable<T> task) throws ServiceException {
+        ExecutorService executor = CrunchmailExtension.getRequestExecutor();
+        if (executor != null) {
+            return executor.submit(task);
+        }
+        FutureTask<T> future = new FutureTask<T>(task);
+        future.run();
+        return future;
+    }
+
+    private <T> T join(Future<T> future) throws ServiceException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw ServiceException.FAILURE("Interrupted while fetching contacts", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ServiceException) {
+                throw (ServiceException) e.getCause();
+            }
+            throw ServiceException.FAILURE("Error while fetching contacts", e.getCause());
+        }
+    }
 }
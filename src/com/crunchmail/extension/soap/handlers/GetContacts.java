@@ -1,5 +1,6 @@
 package com.crunchmail.extension.soap.handlers;
 
+import java.util.Map;
 import java.util.Set;
 
 import com.zimbra.common.service.ServiceException;
@@ -9,16 +10,36 @@ import com.zimbra.cs.account.Account;
 import com.zimbra.cs.mailbox.Mailbox;
 
 import com.crunchmail.extension.soap.handlers.AbstractGetContactsHandler;
+import com.crunchmail.extension.CrunchmailExtension;
 import com.crunchmail.extension.ContactsFetcher;
+import com.crunchmail.extension.Metrics;
+import com.crunchmail.extension.PageSnapshots;
+import com.crunchmail.extension.SyncToken;
 import com.crunchmail.extension.ContactsCrawler.Collection;
 
 /**
  * Get the contacts and distributions lists Collection for the account,
  * for use within the zimlet's iFrame
  *
- * <GetContactsRequest xmlns="urn:crunchmail" [debug="0|1"] />
+ * <GetContactsRequest xmlns="urn:crunchmail" [debug="0|1"] [token="sync-token"] [limit="page-size"] [cursor="cursor"] [deadline="ms"] />
  *
- * <GetContactsResponse>
+ * With a limit, only the first contacts and groups (contacts first) are
+ * returned, along with a cursor if there are more. Requesting the cursor
+ * returns the next page from a snapshot of the results kept a short while,
+ * so pages stay consistent. Next pages only hold contacts and groups, all
+ * the other elements are in the first one. An expired cursor is an
+ * INVALID_REQUEST: start again from the first page.
+ *
+ * With a token from a previous response, only the contacts changed since are
+ * returned (delta="1") along with the ids of the deleted ones. Groups are always
+ * returned. If the token can't be used the response is a full one (delta="0").
+ *
+ * Shared address books from other servers not received within the deadline
+ * (crunchmail_request_deadline, or a shorter one asked for), or whose server
+ * failed, are listed as pending and the response is partial="1". The next token gives them in full.
+ *
+ * <GetContactsResponse token="sync-token" delta="0|1" [partial="1"] [cursor="cursor"]>
+ *   (<pending name="shared-folder-name" />)*
  *   (<contacts email="contact-email" name="contact-name"
  *              sourceRef="contact:AccountId:ContactId"
  *              sourceType="zimbra">
@@ -39,18 +60,79 @@ import com.crunchmail.extension.ContactsCrawler.Collection;
  *       </members>)*
  *   </dls>)*
  *   (<tags name="tag-name" color="HEX color" />)*
+ *   (<deleted id="AccountId:ItemId" />)*
  * </GetContactsResponse>
  *
  */
 public class GetContacts extends AbstractGetContactsHandler {
 
+    // Page size of a cursor request without limit
+    private static final int DEFAULT_PAGE_SIZE = 500;
+
     @Override
-    Element fetchContacts(ZimbraSoapContext zsc, Mailbox mbox, Account account, boolean debug, Set<String> existing) throws ServiceException {
+    public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+        String cursor = request.getAttribute("cursor", null);
+        if (cursor == null) {
+            return super.handle(request, context);
+        }
+
+        ZimbraSoapContext zsc = getZimbraSoapContext(context);
+        Mailbox mbox = getRequestedMailbox(zsc);
+
+        // cursor is snapshot-id:offset
+        int idx = cursor.lastIndexOf(':');
+        int offset = -1;
+        if (idx > 0) {
+            try {
+                offset = Integer.parseInt(cursor.substring(idx + 1));
+            } catch (NumberFormatException e) {}
+        }
+        if (offset < 0) {
+            throw ServiceException.INVALID_REQUEST("Malformed cursor: " + cursor, null);
+        }
+        String snapshotId = cursor.substring(0, idx);
+
+        PageSnapshots snapshots = CrunchmailExtension.getPageSnapshots();
+        Collection collection = snapshots == null ? null : snapshots.get(snapshotId, mbox.getAccountId());
+        if (collection == null) {
+            throw ServiceException.INVALID_REQUEST("Cursor expired, request the first page again", null);
+        }
+
+        int limit = request.getAttributeInt("limit", DEFAULT_PAGE_SIZE);
+        if (limit <= 0) limit = DEFAULT_PAGE_SIZE;
+
+        Element response = zsc.createElement("GetContactsResponse");
+        int next = collection.toElement(response, offset, limit);
+        if (next >= 0) {
+            response.addAttribute("cursor", snapshotId + ":" + next);
+        }
+        return response;
+    }
+
+    @Override
+    Element fetchContacts(Element request, ZimbraSoapContext zsc, Mailbox mbox, Account account, boolean debug, Set<String> existing, SyncToken token, long deadline) throws ServiceException {
         Element response = zsc.createElement("GetContactsResponse");
 
         ContactsFetcher contactsFetcher = new ContactsFetcher(mbox, account, debug, existing);
+        contactsFetcher.setSyncToken(token);
+        contactsFetcher.setDeadline(deadline);
         Collection contactsCollection = contactsFetcher.fetchCollection();
-        contactsCollection.toElement(response);
+
+        int limit = request.getAttributeInt("limit", 0);
+        PageSnapshots snapshots = CrunchmailExtension.getPageSnapshots();
+        long start = System.nanoTime();
+        if (limit > 0 && snapshots != null) {
+            int next = contactsCollection.toElement(response, 0, limit);
+            if (next >= 0) {
+                // keep the rest for the next requests
+                String snapshotId = snapshots.put(account.getId(), contactsCollection);
+                response.addAttribute("cursor", snapshotId + ":" + next);
+            }
+        } else {
+            contactsCollection.toElement(response);
+        }
+        Metrics.recordTime("response.serialization.contacts", start);
+        contactsFetcher.syncToElement(response);
 
         Element el = response.addUniqueElement("existing");
         contactsFetcher.mExistingCollection.toElement(el);
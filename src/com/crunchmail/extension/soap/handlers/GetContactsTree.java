@@ -10,6 +10,8 @@ import com.zimbra.cs.mailbox.Mailbox;
 
 import com.crunchmail.extension.soap.handlers.AbstractGetContactsHandler;
 import com.crunchmail.extension.ContactsFetcher;
+import com.crunchmail.extension.Metrics;
+import com.crunchmail.extension.SyncToken;
 import com.crunchmail.extension.ContactsCrawler.Tree;
 
 
@@ -17,9 +19,13 @@ import com.crunchmail.extension.ContactsCrawler.Tree;
  * Get the contacts and distributions lists Tree for the account,
  * use within the zimlet's iFrame
  *
- * <GetContactsTreeRequest xmlns="urn:crunchmail" [debug="0|1"] />
+ * <GetContactsTreeRequest xmlns="urn:crunchmail" [debug="0|1"] [token="sync-token"] [deadline="ms"] />
  *
- * <GetContactsTreeResponse>
+ * See GetContacts for sync tokens and deadlines. In delta responses the tree
+ * is complete but folders only hold their changed contacts. Pending shared
+ * folders are in the tree, empty, with pending="1" in their _attrs.
+ *
+ * <GetContactsTreeResponse token="sync-token" delta="0|1" [partial="1"]>
  *   TREE
  *   (<dls name="group-name">
  *       (<members email="contact-email" sourceType="zimbra"
@@ -28,18 +34,24 @@ import com.crunchmail.extension.ContactsCrawler.Tree;
  *       </members>)*
  *   </dls>)*
  *   (<tags name="tag-name" color="HEX color" />)*
+ *   (<deleted id="AccountId:ItemId" />)*
  * </GetContactsTreeResponse>
  *
  */
 public class GetContactsTree extends AbstractGetContactsHandler {
 
     @Override
-    Element fetchContacts(ZimbraSoapContext zsc, Mailbox mbox, Account account, boolean debug, Set<String> existing) throws ServiceException {
+    Element fetchContacts(Element request, ZimbraSoapContext zsc, Mailbox mbox, Account account, boolean debug, Set<String> existing, SyncToken token, long deadline) throws ServiceException {
         Element response = zsc.createElement("GetContactsTreeResponse");
 
         ContactsFetcher contactsFetcher = new ContactsFetcher(mbox, account, debug, existing);
+        contactsFetcher.setSyncToken(token);
+        contactsFetcher.setDeadline(deadline);
         Tree contactsTree = contactsFetcher.fetchTree();
+        long start = System.nanoTime();
         contactsTree.toElement(response);
+        Metrics.recordTime("response.serialization.contacts", start);
+        contactsFetcher.syncToElement(response);
 
         Element el = response.addUniqueElement("existing");
         contactsFetcher.mExistingCollection.toElement(el);
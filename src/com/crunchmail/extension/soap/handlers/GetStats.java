@@ -0,0 +1,67 @@
+package com.crunchmail.extension.soap.handlers;
+
+import java.util.Map;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.soap.Element;
+import com.zimbra.soap.DocumentHandler;
+import com.zimbra.soap.ZimbraSoapContext;
+
+import com.crunchmail.extension.Metrics;
+
+/**
+ * Get the extension metrics of this server. Admin accounts only.
+ *
+ * <GetStatsRequest xmlns="urn:crunchmail" [reset="0|1"] />
+ *
+ * Times are in microseconds, percentiles are approximate.
+ *
+ * <GetStatsResponse>
+ *   (<histogram name="metric-name" unit="us|bytes|count" count="" mean="" p50="" p95="" p99="" max="" />)*
+ *   (<counter name="metric-name" value="" />)*
+ *   (<gauge name="metric-name" value="" />)*
+ * </GetStatsResponse>
+ */
+public class GetStats extends DocumentHandler {
+
+    @Override
+    public Element handle(Element request, Map<String, Object> context) throws ServiceException {
+
+        ZimbraSoapContext zsc = getZimbraSoapContext(context);
+        if (!zsc.getAuthToken().isAdmin()) {
+            throw ServiceException.PERM_DENIED("Metrics are only available to admins");
+        }
+
+        Element response = zsc.createElement("GetStatsResponse");
+
+        for (Map.Entry<String, Metrics.Histogram> entry : Metrics.getHistograms().entrySet()) {
+            Metrics.Histogram histogram = entry.getValue();
+            Element h = response.addNonUniqueElement("histogram");
+            h.addAttribute("name", entry.getKey());
+            h.addAttribute("unit", histogram.getUnit());
+            h.addAttribute("count", histogram.getCount());
+            h.addAttribute("mean", histogram.getMean());
+            h.addAttribute("p50", histogram.getPercentile(0.5));
+            h.addAttribute("p95", histogram.getPercentile(0.95));
+            h.addAttribute("p99", histogram.getPercentile(0.99));
+            h.addAttribute("max", histogram.getMax());
+        }
+        for (Map.Entry<String, Long> entry : Metrics.getCounters().entrySet()) {
+            Element c = response.addNonUniqueElement("counter");
+            c.addAttribute("name", entry.getKey());
+            c.addAttribute("value", entry.getValue());
+        }
+        for (Map.Entry<String, Long> entry : Metrics.getGauges().entrySet()) {
+            Element g = response.addNonUniqueElement("gauge");
+            g.addAttribute("name", entry.getKey());
+            g.addAttribute("value", entry.getValue());
+        }
+
+        if (request.getAttributeBool("reset", false)) {
+            Metrics.reset();
+        }
+
+        return response;
+    }
+
+}